@@ -0,0 +1,25 @@
+// TTR proportional to how often the file changes: hot files get short TTRs, stable files long ones.
+// The estimate is the larger of the average gap between versions and the time since the last version,
+// so a file that has gone quiet drifts back toward the maximum.
+public class AdaptiveTtrPolicy implements TtrPolicy {
+    private static final double FRACTION_OF_INTERVAL = 0.5; // Poll about twice per expected modification
+
+    private int minTTR;
+    private int maxTTR;
+
+    public AdaptiveTtrPolicy(int minTTR, int maxTTR) {
+        this.minTTR = minTTR;
+        this.maxTTR = maxTTR;
+    }
+
+    @Override
+    public int computeTTR(FileEntry file) {
+        long sinceLastModification = System.currentTimeMillis() - file.getLastModifiedTime();
+        long averageInterval = file.getAverageModificationInterval();
+        if (averageInterval == 0) return maxTTR; // Never modified since registration
+
+        long expectedInterval = Math.max(averageInterval, sinceLastModification);
+        long ttr = (long) (expectedInterval * FRACTION_OF_INTERVAL);
+        return (int) Math.max(minTTR, Math.min(maxTTR, ttr));
+    }
+}
@@ -0,0 +1,158 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
+import java.util.Arrays;
+import java.util.UUID;
+
+// Binary frame format, version 1:
+//   int32   length of the rest of the frame
+//   byte    version
+//   byte    type code (see Message)
+//   byte    flags: 1 = has message ID, 2 = has TTL, 4 = has hops
+//   int64   message ID, high 64 bits (zero when absent)
+//   int64   message ID, low 64 bits
+//   byte    TTL
+//   byte    hops
+//   uint16  field count
+//   fields  each a uint16 byte length followed by UTF-8 bytes, so names may contain ':'
+// A codec reuses one growable buffer for every frame it encodes, so each thread or connection needs its own.
+public class BinaryCodec {
+    public static final byte VERSION = 1;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private static final int FLAG_MESSAGE_ID = 1;
+    private static final int FLAG_TTL = 2;
+    private static final int FLAG_HOPS = 4;
+
+    private static final byte[] HEX_VALUES = new byte[256]; // -1 for anything that is not a hex digit
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES[Character.forDigit(i, 16)] = (byte) i;
+            HEX_VALUES[Character.toUpperCase(Character.forDigit(i, 16))] = (byte) i;
+        }
+    }
+
+    private ByteBuffer buffer = ByteBuffer.allocate(8192);
+    private char[] chars = new char[256];           // Field text is copied here so the encoder sees an array
+    private CharBuffer charBuffer = CharBuffer.wrap(chars);
+    private CharsetEncoder utf8 = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE) // Unpaired surrogates become '?'
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    // Returns the frame, length prefix included, in a buffer that is overwritten by the next call
+    public ByteBuffer encode(Message message) {
+        while (true) {
+            buffer.clear();
+            try {
+                encodeInto(message);
+                buffer.flip();
+                return buffer;
+            } catch (BufferOverflowException e) {
+                if (buffer.capacity() >= MAX_FRAME_SIZE) throw new IllegalArgumentException("Message too large: " + message.getType());
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            }
+        }
+    }
+
+    private void encodeInto(Message message) {
+        String messageId = message.getMessageId();
+        int flags = (messageId != null ? FLAG_MESSAGE_ID : 0) | (message.getTtl() >= 0 ? FLAG_TTL : 0)
+                | (message.getHops() >= 0 ? FLAG_HOPS : 0);
+
+        buffer.position(4); // Length prefix is filled in last
+        buffer.put(VERSION);
+        buffer.put((byte) Message.typeCode(message.getType()));
+        buffer.put((byte) flags);
+        if (messageId == null) {
+            buffer.putLong(0).putLong(0);
+        } else if (!putUuid(messageId)) { // Only UUIDs fit in 128 bits; anything else is hashed
+            UUID hashed = UUID.nameUUIDFromBytes(messageId.getBytes(StandardCharsets.UTF_8));
+            buffer.putLong(hashed.getMostSignificantBits());
+            buffer.putLong(hashed.getLeastSignificantBits());
+        }
+        buffer.put((byte) Math.max(0, message.getTtl()));
+        buffer.put((byte) Math.max(0, message.getHops()));
+
+        String[] fields = message.getFields();
+        if (fields.length > 0xFFFF) throw new IllegalArgumentException("Too many fields: " + fields.length);
+        buffer.putShort((short) fields.length);
+        for (String field : fields) {
+            int lengthPosition = buffer.position();
+            if (buffer.remaining() < 2) throw new BufferOverflowException(); // position() would not signal it
+            buffer.position(lengthPosition + 2);
+            putUtf8(field);
+            int length = buffer.position() - lengthPosition - 2;
+            if (length > 0xFFFF) throw new IllegalArgumentException("Field too long: " + length + " bytes");
+            buffer.putShort(lengthPosition, (short) length);
+        }
+        buffer.putInt(0, buffer.position() - 4);
+    }
+
+    // Decodes one frame whose length prefix has already been consumed; frame must be array-backed
+    public Message decode(ByteBuffer frame) {
+        byte version = frame.get();
+        if (version != VERSION) throw new IllegalArgumentException("Unsupported frame version " + version);
+        String type = Message.typeForCode(frame.get() & 0xFF);
+        int flags = frame.get();
+        long high = frame.getLong();
+        long low = frame.getLong();
+        int ttl = frame.get() & 0xFF;
+        int hops = frame.get() & 0xFF;
+
+        String[] fields = new String[frame.getShort() & 0xFFFF];
+        for (int i = 0; i < fields.length; i++) {
+            int length = frame.getShort() & 0xFFFF;
+            fields[i] = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+            frame.position(frame.position() + length);
+        }
+
+        String messageId = ((flags & FLAG_MESSAGE_ID) != 0) ? new UUID(high, low).toString() : null;
+        return new Message(type, messageId, (flags & FLAG_TTL) != 0 ? ttl : -1, (flags & FLAG_HOPS) != 0 ? hops : -1, fields);
+    }
+
+    // Encodes straight into the frame buffer, avoiding the temporary byte[] of String.getBytes
+    private void putUtf8(String value) {
+        int length = value.length();
+        if (length > chars.length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+            charBuffer = CharBuffer.wrap(chars);
+        }
+        value.getChars(0, length, chars, 0);
+        charBuffer.limit(length).position(0);
+        utf8.reset();
+        if (utf8.encode(charBuffer, buffer, true).isOverflow()) throw new BufferOverflowException(); // encode grows and retries
+    }
+
+    // Writes a canonical 8-4-4-4-12 UUID as two longs; returns false, writing nothing, for any other ID.
+    // Digits are decoded four at a time without per-character branches, as UUID.fromString does.
+    private boolean putUuid(String id) {
+        if (id.length() != 36 || id.charAt(8) != '-' || id.charAt(13) != '-' || id.charAt(18) != '-' || id.charAt(23) != '-') {
+            return false;
+        }
+        long a = hexQuad(id, 0);
+        long b = hexQuad(id, 4);
+        long c = hexQuad(id, 9);
+        long d = hexQuad(id, 14);
+        long e = hexQuad(id, 19);
+        long f = hexQuad(id, 24);
+        long g = hexQuad(id, 28);
+        long h = hexQuad(id, 32);
+        if ((a | b | c | d | e | f | g | h) < 0) return false;
+        buffer.putLong(a << 48 | b << 32 | c << 16 | d);
+        buffer.putLong(e << 48 | f << 32 | g << 16 | h);
+        return true;
+    }
+
+    // Value of four hex digits, or negative if any is not a hex digit
+    private static long hexQuad(String id, int from) {
+        char c1 = id.charAt(from);
+        char c2 = id.charAt(from + 1);
+        char c3 = id.charAt(from + 2);
+        char c4 = id.charAt(from + 3);
+        if ((c1 | c2 | c3 | c4) > 0xFF) return -1;
+        return HEX_VALUES[c1] << 12 | HEX_VALUES[c2] << 8 | HEX_VALUES[c3] << 4 | HEX_VALUES[c4];
+    }
+}
@@ -0,0 +1,42 @@
+import java.util.*;
+
+// Order-independent fingerprint of the files one leaf has registered, split into buckets by file name.
+// A leaf and its super-peer compare bucket hashes (DIGEST) and only the buckets that differ are re-sent
+// (SYNC), so reconnecting after a restart costs one round trip when nothing changed.
+public class CatalogDigest {
+    private static final int FILES_PER_BUCKET = 128;
+    private static final int MAX_BUCKETS = 32768; // Keeps a DIGEST within the binary frame's field limit
+
+    // Power of two, so both sides agree on the bucket of a name without sharing more than the count
+    public static int bucketCount(int fileCount) {
+        int buckets = 1;
+        while (buckets < MAX_BUCKETS && (long) buckets * FILES_PER_BUCKET < fileCount) {
+            buckets <<= 1;
+        }
+        return buckets;
+    }
+
+    public static int bucketOf(String fileName, int bucketCount) {
+        int hash = fileName.hashCode(); // Specified by String, so identical on every JVM
+        return (hash ^ (hash >>> 16)) & (bucketCount - 1);
+    }
+
+    // fileName -> version
+    public static long[] compute(Map<String, Integer> files, int bucketCount) {
+        long[] buckets = new long[bucketCount];
+        for (Map.Entry<String, Integer> file : files.entrySet()) {
+            buckets[bucketOf(file.getKey(), bucketCount)] += fileHash(file.getKey(), file.getValue()); // Sum: order does not matter
+        }
+        return buckets;
+    }
+
+    // 64-bit FNV-1a over the name, with the version mixed in
+    static long fileHash(String fileName, int version) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < fileName.length(); i++) {
+            hash = (hash ^ fileName.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ version) * 0x100000001b3L;
+        return hash ^ (hash >>> 29);
+    }
+}
@@ -0,0 +1,360 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+// Durable copy of a super-peer's FileCatalog: a compacted binary snapshot plus an append-only log of the
+// registrations, unregistrations and version changes made since it was taken. Both are read through
+// memory-mapped I/O on restart. Each record reaches the OS as it is written and is forced to disk within
+// a second; whatever a crash loses is repaired when leaves reconcile their digests (see CatalogDigest).
+//
+// Snapshot (catalog.snapshot):
+//   int32 magic "GCAT", byte format version, int64 first log generation to replay, int32 leaf count,
+//   per leaf: string name, int32 file count, per file: string name, int32 version, int64 last modified;
+//   then int64 CRC32 of everything before it. Strings are a uint16 byte length followed by UTF-8.
+// Log (catalog-<generation>.log), records back to back:
+//   int32 body length, int32 CRC32 of the body,
+//   body: byte type, int64 time, string leaf, int32 item count, items: string file name
+//         plus int32 version for REGISTER and VERSION. An UNREGISTER with no items drops the whole leaf.
+// Only files a leaf owns are stored, so origins are not: the copies leaves offer (REPLICA) are left out of
+// snapshots and never logged, and come back when their holders reconnect.
+public class CatalogStore {
+    private static final int MAGIC = 0x47434154; // "GCAT"
+    private static final byte FORMAT_VERSION = 1;
+    private static final byte REGISTER = 1;
+    private static final byte UNREGISTER = 2;
+    private static final byte VERSION = 3;
+    private static final String SNAPSHOT = "catalog.snapshot";
+    private static final long FORCE_INTERVAL_MS = 1000;
+
+    private String nodeName;
+    private File directory;
+    private long generation;          // Log segment being appended to
+    private FileChannel log;          // null until loaded, or after a write failure
+    private ByteBuffer record = ByteBuffer.allocate(8192); // Guarded by this; grows for large registrations
+    private CRC32 checksum = new CRC32();
+    private volatile long recordsSinceSnapshot;
+
+    public CatalogStore(String nodeName, File directory) {
+        this.nodeName = nodeName;
+        this.directory = directory;
+    }
+
+    // Rebuilds the catalog from the snapshot and every later log segment, then starts a new segment.
+    // Returns the number of entries restored.
+    public synchronized int load(FileCatalog catalog, int defaultTTR) throws IOException {
+        directory.mkdirs();
+        long firstGeneration = 0;
+        int restored = 0;
+        File snapshot = new File(directory, SNAPSHOT);
+        if (snapshot.exists()) {
+            try {
+                firstGeneration = readSnapshot(snapshot, catalog, defaultTTR);
+            } catch (IOException | RuntimeException e) { // Leaves re-send what is missing when they reconcile
+                Log.warn(nodeName + ": Ignoring unreadable catalog snapshot: " + e.getMessage());
+            }
+        }
+
+        long lastGeneration = firstGeneration - 1;
+        for (long logGeneration : logGenerations()) {
+            if (logGeneration < firstGeneration || logFile(logGeneration).length() == 0) { // Folded in, or never used
+                logFile(logGeneration).delete();
+                continue;
+            }
+            replay(logFile(logGeneration), catalog, defaultTTR);
+            lastGeneration = logGeneration;
+        }
+        for (String leaf : catalog.getLeafNodes()) {
+            restored += catalog.getFiles(leaf).size();
+        }
+
+        generation = lastGeneration + 1; // Never append after a torn tail
+        openLog();
+        return restored;
+    }
+
+    // Forces the log to disk every second and compacts it into a new snapshot at the given interval
+    public void startCompaction(FileCatalog catalog, long snapshotIntervalMs) {
+        Thread compactor = new Thread(() -> {
+            long lastSnapshot = System.currentTimeMillis();
+            while (true) {
+                try {
+                    Thread.sleep(FORCE_INTERVAL_MS);
+                    force();
+                    if (recordsSinceSnapshot > 0 && System.currentTimeMillis() - lastSnapshot >= snapshotIntervalMs) {
+                        long startedAt = System.nanoTime();
+                        int entries = snapshot(catalog);
+                        lastSnapshot = System.currentTimeMillis();
+                        Log.info(nodeName + ": Wrote catalog snapshot of " + entries + " entries in " +
+                                (System.nanoTime() - startedAt) / 1000000 + " ms");
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    Log.error(nodeName + ": Catalog snapshot failed", e);
+                }
+            }
+        }, nodeName + "-catalog");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    public long getRecordsSinceSnapshot() {
+        return recordsSinceSnapshot;
+    }
+
+    public void logRegister(String leaf, Collection<FileEntry> entries) {
+        append(REGISTER, leaf, entries.size(), () -> {
+            for (FileEntry entry : entries) {
+                putString(record, entry.getFileName());
+                record.putInt(entry.getVersion());
+            }
+        });
+    }
+
+    // An empty list unregisters every file of the leaf
+    public void logUnregister(String leaf, Collection<String> fileNames) {
+        append(UNREGISTER, leaf, fileNames.size(), () -> {
+            for (String fileName : fileNames) {
+                putString(record, fileName);
+            }
+        });
+    }
+
+    public void logVersion(String leaf, String fileName, int version) {
+        append(VERSION, leaf, 1, () -> {
+            putString(record, fileName);
+            record.putInt(version);
+        });
+    }
+
+    private synchronized void append(byte type, String leaf, int count, Runnable items) {
+        if (log == null) return;
+        while (true) {
+            record.clear();
+            try {
+                record.position(8); // Length and checksum are filled in last
+                record.put(type).putLong(System.currentTimeMillis());
+                putString(record, leaf);
+                record.putInt(count);
+                items.run();
+                break;
+            } catch (BufferOverflowException e) {
+                record = ByteBuffer.allocate(record.capacity() * 2);
+            }
+        }
+        int length = record.position() - 8;
+        checksum.reset();
+        checksum.update(record.array(), 8, length);
+        record.putInt(0, length).putInt(4, (int) checksum.getValue());
+        record.flip();
+        try {
+            while (record.hasRemaining()) {
+                log.write(record);
+            }
+            recordsSinceSnapshot++;
+        } catch (IOException e) {
+            Log.error(nodeName + ": Catalog log write failed; the catalog is no longer persisted", e);
+            closeLog();
+        }
+    }
+
+    private synchronized void force() throws IOException {
+        if (log != null) log.force(false);
+    }
+
+    // Starts a new log segment, then writes the catalog to a snapshot that replaces the older segments.
+    // Updates made while the snapshot is written land in the new segment; replaying them over a snapshot
+    // that already reflects some of them gives the same catalog, since the last record for a file wins.
+    public int snapshot(FileCatalog catalog) throws IOException {
+        long firstGeneration;
+        synchronized (this) {
+            if (log == null) return 0;
+            log.force(false);
+            closeLog();
+            firstGeneration = ++generation;
+            openLog();
+            recordsSinceSnapshot = 0;
+        }
+
+        int written = 0;
+        File temp = new File(directory, SNAPSHOT + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            List<String> leaves = new ArrayList<>(catalog.getLeafNodes());
+            out.writeInt(MAGIC);
+            out.writeByte(FORMAT_VERSION);
+            out.writeLong(firstGeneration);
+            out.writeInt(leaves.size());
+            for (String leaf : leaves) {
+                List<FileEntry> entries = new ArrayList<>();
+                for (String fileName : catalog.getFiles(leaf)) {
+                    FileEntry entry = catalog.getReplica(fileName, leaf);
+                    if (entry != null && entry.getOriginServer().equals(leaf)) entries.add(entry); // Not copies
+                }
+                writeString(out, leaf);
+                out.writeInt(entries.size());
+                for (FileEntry entry : entries) {
+                    writeString(out, entry.getFileName());
+                    out.writeInt(entry.getVersion());
+                    out.writeLong(entry.getLastModifiedTime());
+                }
+                written += entries.size();
+            }
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp.toPath(), new File(directory, SNAPSHOT).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        for (long logGeneration : logGenerations()) {
+            if (logGeneration < firstGeneration) logFile(logGeneration).delete();
+        }
+        return written;
+    }
+
+    private long readSnapshot(File snapshot, FileCatalog catalog, int defaultTTR) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Snapshot larger than one mapping: " + size + " bytes");
+            if (size < 8) throw new IOException("Snapshot truncated");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate().limit((int) size - 8));
+            if (crc.getValue() != buffer.getLong((int) size - 8)) throw new IOException("Snapshot checksum mismatch");
+
+            if (buffer.getInt() != MAGIC) throw new IOException("Not a catalog snapshot");
+            byte format = buffer.get();
+            if (format != FORMAT_VERSION) throw new IOException("Unsupported snapshot format " + format);
+            long firstGeneration = buffer.getLong();
+            byte[] scratch = new byte[0xFFFF];
+            int leafCount = buffer.getInt();
+            for (int i = 0; i < leafCount; i++) {
+                String leaf = getString(buffer, scratch);
+                int fileCount = buffer.getInt();
+                List<FileEntry> entries = new ArrayList<>(fileCount);
+                for (int j = 0; j < fileCount; j++) {
+                    String fileName = getString(buffer, scratch);
+                    FileEntry entry = new FileEntry(fileName, buffer.getInt(), leaf, defaultTTR);
+                    entry.setLastModifiedTime(buffer.getLong());
+                    entries.add(entry);
+                }
+                catalog.registerAll(leaf, entries);
+            }
+            return firstGeneration;
+        }
+    }
+
+    // Applies every intact record; a torn or corrupt tail from a crash is cut off
+    private void replay(File file, FileCatalog catalog, int defaultTTR) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Log segment larger than one mapping: " + file);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            byte[] scratch = new byte[0xFFFF];
+            CRC32 crc = new CRC32();
+            int good = 0;
+            while (buffer.remaining() >= 8) {
+                int length = buffer.getInt();
+                int expected = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) break;
+                ByteBuffer body = buffer.slice().limit(length);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != expected) break;
+                apply(body, catalog, defaultTTR, scratch);
+                buffer.position(buffer.position() + length);
+                good = buffer.position();
+            }
+            if (good < size) {
+                Log.warn(nodeName + ": Dropping " + (size - good) + " torn byte(s) at the end of " + file.getName());
+                channel.truncate(good);
+            }
+        }
+    }
+
+    private void apply(ByteBuffer body, FileCatalog catalog, int defaultTTR, byte[] scratch) {
+        byte type = body.get();
+        long time = body.getLong();
+        String leaf = getString(body, scratch);
+        int count = body.getInt();
+        if (type == UNREGISTER && count == 0) {
+            catalog.unregisterLeaf(leaf);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            String fileName = getString(body, scratch);
+            if (type == REGISTER) {
+                FileEntry entry = new FileEntry(fileName, body.getInt(), leaf, defaultTTR);
+                entry.setLastModifiedTime(time);
+                catalog.register(leaf, entry);
+            } else if (type == UNREGISTER) {
+                catalog.unregister(leaf, fileName);
+            } else if (type == VERSION) {
+                int version = body.getInt();
+                FileEntry entry = catalog.getReplica(fileName, leaf);
+                if (entry != null && version > entry.getVersion()) entry.restoreVersion(version, time);
+            }
+        }
+    }
+
+    private void openLog() throws IOException {
+        log = FileChannel.open(logFile(generation).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private void closeLog() {
+        try {
+            log.close();
+        } catch (IOException e) {
+            // Nothing more to write to it
+        }
+        log = null;
+    }
+
+    private File logFile(long logGeneration) {
+        return new File(directory, "catalog-" + logGeneration + ".log");
+    }
+
+    private List<Long> logGenerations() {
+        List<Long> generations = new ArrayList<>();
+        String[] names = directory.list();
+        if (names == null) return generations;
+        for (String name : names) {
+            if (name.startsWith("catalog-") && name.endsWith(".log")) {
+                try {
+                    generations.add(Long.parseLong(name.substring("catalog-".length(), name.length() - ".log".length())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) throw new IllegalArgumentException("Name too long: " + bytes.length + " bytes");
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer, byte[] scratch) {
+        int length = buffer.getShort() & 0xFFFF;
+        buffer.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.*;
+import java.util.*;
+
+// Per-chunk hashes of one version of a file, so a download assembled from several holders can check every
+// chunk before it is written. Hashes are SHA-256 cut to 128 bits, plenty to catch a holder whose bytes
+// differ from the version it claims.
+public class ChunkHashes {
+    private static final int HASH_BYTES = 16;
+
+    private int version;
+    private long totalSize;
+    private int chunkSize;
+    private long lastModified; // Of the file hashed, so a server can tell when its cached hashes are out of date
+    private byte[][] hashes;
+
+    ChunkHashes(int version, long totalSize, int chunkSize, long lastModified, byte[][] hashes) {
+        this.version = version;
+        this.totalSize = totalSize;
+        this.chunkSize = chunkSize;
+        this.lastModified = lastModified;
+        this.hashes = hashes;
+    }
+
+    public static ChunkHashes compute(FileChannel file, int version, int chunkSize, long lastModified) throws IOException {
+        long totalSize = file.size();
+        byte[][] hashes = new byte[chunkCount(totalSize, chunkSize)][];
+        ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+        for (int i = 0; i < hashes.length; i++) {
+            buffer.clear();
+            long offset = (long) i * chunkSize;
+            buffer.limit((int) Math.min(chunkSize, totalSize - offset));
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, offset + buffer.position()) < 0) throw new IOException("File shrank while hashing");
+            }
+            buffer.flip();
+            hashes[i] = hash(buffer);
+        }
+        return new ChunkHashes(version, totalSize, chunkSize, lastModified, hashes);
+    }
+
+    static int chunkCount(long totalSize, int chunkSize) {
+        return (int) ((totalSize + chunkSize - 1) / chunkSize);
+    }
+
+    // Checks the chunk's bytes between position and limit of buffer, leaving the buffer as it was
+    public boolean matches(int chunk, ByteBuffer buffer) {
+        return Arrays.equals(hashes[chunk], hash(buffer.duplicate()));
+    }
+
+    private static byte[] hash(ByteBuffer bytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(bytes);
+            return Arrays.copyOf(digest.digest(), HASH_BYTES);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM must provide SHA-256
+        }
+    }
+
+    // Format: version:totalSize:chunkSize:hash0[,hash1...] with hashes in hex
+    public String format() {
+        StringBuilder line = new StringBuilder(hashes.length * (HASH_BYTES * 2 + 1) + 32);
+        line.append(version).append(':').append(totalSize).append(':').append(chunkSize).append(':');
+        for (int i = 0; i < hashes.length; i++) {
+            if (i > 0) line.append(',');
+            for (byte b : hashes[i]) {
+                line.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+        }
+        return line.toString();
+    }
+
+    public static ChunkHashes parse(String[] parts, int from) {
+        int version = Integer.parseInt(parts[from]);
+        long totalSize = Long.parseLong(parts[from + 1]);
+        int chunkSize = Integer.parseInt(parts[from + 2]);
+        String[] hex = (parts.length > from + 3) ? parts[from + 3].split(",") : new String[0];
+        if (hex.length != chunkCount(totalSize, chunkSize)) {
+            throw new IllegalArgumentException(hex.length + " chunk hashes for " + totalSize + " bytes");
+        }
+        byte[][] hashes = new byte[hex.length][HASH_BYTES];
+        for (int i = 0; i < hex.length; i++) {
+            for (int j = 0; j < HASH_BYTES; j++) {
+                hashes[i][j] = (byte) Integer.parseInt(hex[i].substring(2 * j, 2 * j + 2), 16);
+            }
+        }
+        return new ChunkHashes(version, totalSize, chunkSize, 0, hashes);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public int getChunkCount() {
+        return hashes.length;
+    }
+}
@@ -5,6 +5,30 @@ public class ConfigParser {
     private boolean pushEnabled;
     private boolean pullEnabled;
     private int defaultTTR;
+    private String ttrPolicy = "static";
+    private int minTTR = 5000;
+    private int maxTTR = 300000;
+    private String serverMode = "thread";
+    private int ioThreads = 2;
+    private int seenCacheSize = 100000;
+    private long seenCacheTTL = 60000;
+    private int queryTTL = 2;
+    private long leaseDuration = 60000;
+    private int invalidationQueueSize = 10000;
+    private boolean blockWhenQueueFull = false;
+    private long queryTimeout = 1000;
+    private boolean binaryProtocol = true;
+    private Log.Level logLevel = Log.Level.INFO;
+    private int metricsPort = 0; // 0 = no scrape endpoint
+    private String dataDirectory = ""; // Empty = super-peer catalogs are not persisted
+    private long snapshotInterval = 60000;
+    private boolean watchShared = false;
+    private int queryCacheSize = 10000;
+    private boolean swarmDownloads = true;
+    private boolean deltaSync = true;
+    private long replicaCacheBytes = 1L << 30;
+    private int replicaCacheFiles = 10000;
+    private ReplicaCache.Policy replicaCachePolicy = ReplicaCache.Policy.LRU;
     private Map<String, List<String>> superPeers = new HashMap<>();
     private Map<String, List<String>> leafNodes = new HashMap<>();
 
@@ -19,8 +43,56 @@ public class ConfigParser {
                 pushEnabled = Boolean.parseBoolean(line.split("=")[1].trim());
             } else if (line.startsWith("PULL_ENABLED")) {
                 pullEnabled = Boolean.parseBoolean(line.split("=")[1].trim());
+            } else if (line.startsWith("TTR_POLICY")) { // Checked before TTR, which is a prefix of these keys
+                ttrPolicy = line.split("=")[1].trim().toLowerCase();
+            } else if (line.startsWith("TTR_MIN")) {
+                minTTR = Integer.parseInt(line.split("=")[1].trim());
+            } else if (line.startsWith("TTR_MAX")) {
+                maxTTR = Integer.parseInt(line.split("=")[1].trim());
             } else if (line.startsWith("TTR")) {
                 defaultTTR = Integer.parseInt(line.split("=")[1].trim());
+            } else if (line.startsWith("SERVER_MODE")) {
+                serverMode = line.split("=")[1].trim().toLowerCase();
+            } else if (line.startsWith("IO_THREADS")) {
+                ioThreads = Integer.parseInt(line.split("=")[1].trim());
+            } else if (line.startsWith("SEEN_CACHE_SIZE")) {
+                seenCacheSize = Integer.parseInt(line.split("=")[1].trim());
+            } else if (line.startsWith("SEEN_CACHE_TTL")) {
+                seenCacheTTL = Long.parseLong(line.split("=")[1].trim());
+            } else if (line.startsWith("INVALIDATION_QUEUE_SIZE")) {
+                invalidationQueueSize = Integer.parseInt(line.split("=")[1].trim());
+            } else if (line.startsWith("INVALIDATION_OVERFLOW")) {
+                blockWhenQueueFull = line.split("=")[1].trim().equalsIgnoreCase("block");
+            } else if (line.startsWith("LEASE_DURATION")) {
+                leaseDuration = Long.parseLong(line.split("=")[1].trim());
+            } else if (line.startsWith("QUERY_TTL")) {
+                queryTTL = Integer.parseInt(line.split("=")[1].trim());
+            } else if (line.startsWith("QUERY_TIMEOUT")) {
+                queryTimeout = Long.parseLong(line.split("=")[1].trim());
+            } else if (line.startsWith("WIRE_PROTOCOL")) {
+                binaryProtocol = !line.split("=")[1].trim().equalsIgnoreCase("text");
+            } else if (line.startsWith("LOG_LEVEL")) {
+                logLevel = Log.parseLevel(line.split("=")[1]);
+            } else if (line.startsWith("METRICS_PORT")) {
+                metricsPort = Integer.parseInt(line.split("=")[1].trim());
+            } else if (line.startsWith("DATA_DIRECTORY")) {
+                dataDirectory = line.substring(line.indexOf('=') + 1).trim(); // May be empty
+            } else if (line.startsWith("SNAPSHOT_INTERVAL")) {
+                snapshotInterval = Long.parseLong(line.split("=")[1].trim());
+            } else if (line.startsWith("QUERY_CACHE_SIZE")) {
+                queryCacheSize = Integer.parseInt(line.split("=")[1].trim());
+            } else if (line.startsWith("WATCH_SHARED")) {
+                watchShared = Boolean.parseBoolean(line.split("=")[1].trim());
+            } else if (line.startsWith("SWARM_DOWNLOADS")) {
+                swarmDownloads = Boolean.parseBoolean(line.split("=")[1].trim());
+            } else if (line.startsWith("DELTA_SYNC")) {
+                deltaSync = Boolean.parseBoolean(line.split("=")[1].trim());
+            } else if (line.startsWith("REPLICA_CACHE_BYTES")) {
+                replicaCacheBytes = Long.parseLong(line.split("=")[1].trim());
+            } else if (line.startsWith("REPLICA_CACHE_FILES")) {
+                replicaCacheFiles = Integer.parseInt(line.split("=")[1].trim());
+            } else if (line.startsWith("REPLICA_CACHE_POLICY")) {
+                replicaCachePolicy = ReplicaCache.Policy.valueOf(line.split("=")[1].trim().toUpperCase());
             }
         }
         reader.close();
@@ -35,7 +107,7 @@ public class ConfigParser {
 
             String[] parts = line.split(":");
             if (parts.length != 2) {
-                System.out.println("Skipping invalid line in network configuration: " + line);
+                Log.warn("Skipping invalid line in network configuration: " + line);
                 continue;
             }
 
@@ -63,6 +135,102 @@ public class ConfigParser {
         return defaultTTR;
     }
 
+    public String getTtrPolicy() {
+        return ttrPolicy;
+    }
+
+    public int getMinTTR() {
+        return minTTR;
+    }
+
+    public int getMaxTTR() {
+        return maxTTR;
+    }
+
+    public String getServerMode() {
+        return serverMode;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public int getSeenCacheSize() {
+        return seenCacheSize;
+    }
+
+    public long getSeenCacheTTL() {
+        return seenCacheTTL;
+    }
+
+    public int getInvalidationQueueSize() {
+        return invalidationQueueSize;
+    }
+
+    public boolean isBlockWhenQueueFull() {
+        return blockWhenQueueFull;
+    }
+
+    public long getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    public int getQueryTTL() {
+        return queryTTL;
+    }
+
+    public long getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    public boolean isBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    public Log.Level getLogLevel() {
+        return logLevel;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public String getDataDirectory() {
+        return dataDirectory;
+    }
+
+    public long getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    public int getQueryCacheSize() {
+        return queryCacheSize;
+    }
+
+    public boolean isWatchShared() {
+        return watchShared;
+    }
+
+    public boolean isSwarmDownloads() {
+        return swarmDownloads;
+    }
+
+    public boolean isDeltaSync() {
+        return deltaSync;
+    }
+
+    public long getReplicaCacheBytes() {
+        return replicaCacheBytes;
+    }
+
+    public int getReplicaCacheFiles() {
+        return replicaCacheFiles;
+    }
+
+    public ReplicaCache.Policy getReplicaCachePolicy() {
+        return replicaCachePolicy;
+    }
+
     public Map<String, List<String>> getSuperPeers() {
         return superPeers;
     }
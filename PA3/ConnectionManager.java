@@ -0,0 +1,74 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+public class ConnectionManager {
+    private String ownerName;
+    private Map<Integer, PeerConnection> connections = new ConcurrentHashMap<>(); // By port
+    private Consumer<Message> unsolicitedHandler; // Receives messages no pending request is waiting for
+    private boolean binaryPreferred = true;       // Offer binary framing on new connections
+    private Consumer<String> dropListener;        // Told the peer name when a connection fails or the peer closes it
+
+    public ConnectionManager(String ownerName, Consumer<Message> unsolicitedHandler) {
+        this.ownerName = ownerName;
+        this.unsolicitedHandler = unsolicitedHandler;
+    }
+
+    public void setBinaryPreferred(boolean binaryPreferred) {
+        this.binaryPreferred = binaryPreferred;
+    }
+
+    public void setDropListener(Consumer<String> dropListener) {
+        this.dropListener = dropListener;
+    }
+
+    // Returns the long-lived connection to a peer, reconnecting if the previous one dropped
+    public PeerConnection getConnection(String peerName) throws IOException {
+        int port = PeerDirectory.getMessagePort(peerName);
+        PeerConnection connection = connections.get(port);
+        if (connection != null && connection.isOpen()) return connection;
+
+        synchronized (this) {
+            connection = connections.get(port);
+            if (connection == null || !connection.isOpen()) {
+                connection = new PeerConnection(peerName, port, unsolicitedHandler, binaryPreferred);
+                if (dropListener != null) connection.setDropListener(() -> dropListener.accept(peerName));
+                connections.put(port, connection);
+                PeerConnection opened = connection;
+                Log.debug(() -> ownerName + ": Opened " + (opened.isBinary() ? "binary" : "text") + " connection to " + peerName);
+            }
+            return connection;
+        }
+    }
+
+    public void send(String peerName, Message message) throws IOException {
+        try {
+            getConnection(peerName).send(message);
+        } catch (IOException e) {
+            // The pooled connection may have gone stale; retry once on a fresh one
+            discard(peerName);
+            getConnection(peerName).send(message);
+        }
+    }
+
+    public Message request(String peerName, Message message, long timeoutMs) throws IOException {
+        return getConnection(peerName).request(message, timeoutMs);
+    }
+
+    public void discard(String peerName) {
+        PeerConnection connection = connections.remove(PeerDirectory.getMessagePort(peerName));
+        if (connection != null) connection.close();
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    public void closeAll() {
+        for (PeerConnection connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+    }
+}
@@ -0,0 +1,284 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.*;
+import java.util.*;
+
+// rsync-style delta transfer of a file's new version to a leaf still holding an old copy. The leaf sends a
+// rolling checksum and a strong hash of every block of its copy; the origin slides a block-sized window over
+// the new version and answers with runs of blocks the leaf already has, plus the bytes found nowhere in it.
+// The patch ends with a hash of the whole new version, so a checksum collision cannot go unnoticed.
+public class DeltaSync {
+    public static final long MIN_FILE_SIZE = 16 * 1024; // Below this, a plain download costs about the same
+    static final int MIN_BLOCK_SIZE = 1024;
+    static final int MAX_BLOCK_SIZE = 64 * 1024;
+    static final int MAX_BLOCKS = 1 << 22;
+    private static final int HASH_BYTES = 16;
+    private static final int MAX_LITERAL = 64 * 1024; // Bytes per literal op
+
+    // Patch ops: COPY firstBlock count, LITERAL length bytes..., END
+    private static final byte COPY = 'C';
+    private static final byte LITERAL = 'L';
+    private static final byte END = 'E';
+
+    // About the square root of the size, as rsync picks it, which balances signature size against the bytes
+    // resent around each change
+    public static int blockSize(long fileSize) {
+        int size = (int) Math.min(MAX_BLOCK_SIZE, Math.sqrt(fileSize));
+        return Math.max(MIN_BLOCK_SIZE, size & ~63);
+    }
+
+    // Checksums of every whole block of a copy; a short last block is left for the origin to send
+    public static class Signatures {
+        private int blockSize;
+        private int[] weak;
+        private byte[][] strong;
+
+        Signatures(int blockSize, int[] weak, byte[][] strong) {
+            this.blockSize = blockSize;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        public static Signatures compute(FileChannel file, int blockSize) throws IOException {
+            int blocks = (int) Math.min(MAX_BLOCKS, file.size() / blockSize);
+            int[] weak = new int[blocks];
+            byte[][] strong = new byte[blocks][];
+            int perRead = Math.max(1, MAX_LITERAL * 4 / blockSize); // Blocks per read, to keep system calls down
+            ByteBuffer buffer = ByteBuffer.allocate(perRead * blockSize);
+            MessageDigest digest = newDigest();
+            for (int first = 0; first < blocks; first += perRead) {
+                int count = Math.min(perRead, blocks - first);
+                buffer.clear().limit(count * blockSize);
+                while (buffer.hasRemaining()) {
+                    if (file.read(buffer, (long) first * blockSize + buffer.position()) < 0) throw new EOFException("Copy shrank");
+                }
+                for (int i = 0; i < count; i++) {
+                    weak[first + i] = weakChecksum(buffer.array(), i * blockSize, blockSize);
+                    digest.update(buffer.array(), i * blockSize, blockSize);
+                    strong[first + i] = Arrays.copyOf(digest.digest(), HASH_BYTES);
+                }
+            }
+            return new Signatures(blockSize, weak, strong);
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        public int getBlockCount() {
+            return weak.length;
+        }
+
+        // Format: per block, int32 rolling checksum then the 16-byte hash
+        void writeTo(DataOutputStream out) throws IOException {
+            for (int i = 0; i < weak.length; i++) {
+                out.writeInt(weak[i]);
+                out.write(strong[i]);
+            }
+        }
+
+        static Signatures readFrom(DataInputStream in, int blockSize, int blocks) throws IOException {
+            if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || blocks < 0 || blocks > MAX_BLOCKS) {
+                throw new IllegalArgumentException("Bad signatures: " + blocks + " blocks of " + blockSize + " bytes");
+            }
+            int[] weak = new int[blocks];
+            byte[][] strong = new byte[blocks][HASH_BYTES];
+            for (int i = 0; i < blocks; i++) {
+                weak[i] = in.readInt();
+                in.readFully(strong[i]);
+            }
+            return new Signatures(blockSize, weak, strong);
+        }
+    }
+
+    // How to build the new version from the old copy: runs of the copy's blocks and ranges of the new version
+    public static class Delta {
+        private List<long[]> ops = new ArrayList<>(); // {COPY, firstBlock, count} or {LITERAL, offset, length}
+        private long literalBytes;
+        private byte[] fileHash;
+
+        public long getLiteralBytes() {
+            return literalBytes;
+        }
+
+        public String getFileHash() {
+            return HexFormat.of().formatHex(fileHash);
+        }
+
+        private void copy(int block) {
+            long[] last = ops.isEmpty() ? null : ops.get(ops.size() - 1);
+            if (last != null && last[0] == COPY && last[1] + last[2] == block) {
+                last[2]++;
+            } else {
+                ops.add(new long[] {COPY, block, 1});
+            }
+        }
+
+        private void literal(long offset, long length) {
+            if (length == 0) return;
+            ops.add(new long[] {LITERAL, offset, length});
+            literalBytes += length;
+        }
+
+        // Streams the ops, with literal bytes taken from the new version
+        void writeTo(DataOutputStream out, ByteBuffer newVersion) throws IOException {
+            byte[] chunk = new byte[MAX_LITERAL];
+            for (long[] op : ops) {
+                if (op[0] == COPY) {
+                    out.writeByte(COPY);
+                    out.writeInt((int) op[1]);
+                    out.writeInt((int) op[2]);
+                    continue;
+                }
+                for (long offset = op[1]; offset < op[1] + op[2]; offset += MAX_LITERAL) {
+                    int length = (int) Math.min(MAX_LITERAL, op[1] + op[2] - offset);
+                    newVersion.get((int) offset, chunk, 0, length);
+                    out.writeByte(LITERAL);
+                    out.writeInt(length);
+                    out.write(chunk, 0, length);
+                }
+            }
+            out.writeByte(END);
+        }
+    }
+
+    // Slides a window over the new version, rolling the weak checksum a byte at a time; the strong hash is only
+    // computed where the weak one matches some block of the copy
+    public static Delta diff(ByteBuffer newVersion, Signatures old) {
+        int blockSize = old.blockSize;
+        Map<Integer, List<Integer>> blocksByWeak = new HashMap<>(old.weak.length * 2);
+        for (int i = 0; i < old.weak.length; i++) {
+            blocksByWeak.computeIfAbsent(old.weak[i], k -> new ArrayList<>(1)).add(i);
+        }
+
+        Delta delta = new Delta();
+        MessageDigest digest = newDigest();
+        int size = newVersion.limit();
+        int literalStart = 0;
+        int position = 0;
+        int expected = 0; // The block after the last match, tried first so unchanged stretches form one run
+        byte[] window = new byte[blockSize];
+        int checksum = (size >= blockSize && !blocksByWeak.isEmpty()) ? weakChecksum(newVersion, 0, window) : 0;
+        while (position + blockSize <= size && !blocksByWeak.isEmpty()) {
+            List<Integer> candidates = blocksByWeak.get(checksum);
+            int match = (candidates == null) ? -1 : findBlock(newVersion, position, window, old, candidates, expected, digest);
+            if (match >= 0) {
+                delta.literal(literalStart, position - literalStart);
+                delta.copy(match);
+                position += blockSize;
+                literalStart = position;
+                expected = match + 1;
+                if (position + blockSize <= size) checksum = weakChecksum(newVersion, position, window);
+                continue;
+            }
+            if (position + blockSize < size) {
+                checksum = roll(checksum, newVersion.get(position) & 0xFF, newVersion.get(position + blockSize) & 0xFF, blockSize);
+            }
+            position++;
+        }
+        delta.literal(literalStart, size - literalStart);
+
+        digest.update(newVersion.duplicate().clear());
+        delta.fileHash = Arrays.copyOf(digest.digest(), HASH_BYTES);
+        return delta;
+    }
+
+    private static int findBlock(ByteBuffer file, int position, byte[] window, Signatures old, List<Integer> candidates,
+                                 int expected, MessageDigest digest) {
+        file.get(position, window);
+        digest.update(window);
+        byte[] hash = Arrays.copyOf(digest.digest(), HASH_BYTES);
+        if (expected < old.strong.length && candidates.contains(expected) && Arrays.equals(old.strong[expected], hash)) {
+            return expected;
+        }
+        for (int block : candidates) {
+            if (Arrays.equals(old.strong[block], hash)) return block;
+        }
+        return -1;
+    }
+
+    // Writes the new version to target from the patch ops and the old copy; returns the literal bytes received.
+    // Throws if the result does not hash to fileHash.
+    public static long apply(DataInputStream patch, FileChannel oldCopy, int blockSize, FileChannel target, String fileHash)
+            throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(MAX_LITERAL, blockSize));
+        long position = 0;
+        long literalBytes = 0;
+        while (true) {
+            byte op = patch.readByte();
+            if (op == END) break;
+            if (op == COPY) {
+                long from = (long) patch.readInt() * blockSize;
+                long end = from + (long) patch.readInt() * blockSize;
+                if (end > oldCopy.size()) throw new IOException("Patch refers past the end of the old copy");
+                while (from < end) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), end - from));
+                    while (buffer.hasRemaining()) {
+                        if (oldCopy.read(buffer, from + buffer.position()) < 0) throw new EOFException("Old copy shrank");
+                    }
+                    from += buffer.position();
+                    position += write(buffer, digest, target, position);
+                }
+            } else if (op == LITERAL) {
+                int length = patch.readInt();
+                if (length < 0 || length > MAX_LITERAL) throw new IOException("Bad literal of " + length + " bytes");
+                buffer.clear().limit(length);
+                patch.readFully(buffer.array(), 0, length);
+                buffer.position(length);
+                position += write(buffer, digest, target, position);
+                literalBytes += length;
+            } else {
+                throw new IOException("Unknown patch op " + op);
+            }
+        }
+        if (!HexFormat.of().formatHex(Arrays.copyOf(digest.digest(), HASH_BYTES)).equals(fileHash)) {
+            throw new IOException("Patched file does not match the new version");
+        }
+        return literalBytes;
+    }
+
+    private static int write(ByteBuffer buffer, MessageDigest digest, FileChannel target, long position) throws IOException {
+        buffer.flip();
+        digest.update(buffer.duplicate());
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            target.write(buffer, position + buffer.position());
+        }
+        return length;
+    }
+
+    // Checksum of the window.length bytes at from, read through window
+    private static int weakChecksum(ByteBuffer file, int from, byte[] window) {
+        file.get(from, window);
+        return weakChecksum(window, 0, window.length);
+    }
+
+    // rsync's rolling checksum: a is the byte sum, b the sum weighted by distance from the window's end, both mod 2^16
+    static int weakChecksum(byte[] bytes, int from, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = bytes[from + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    // Slides the window one byte: drops out, takes in
+    static int roll(int checksum, int out, int in, int length) {
+        int a = ((checksum & 0xFFFF) - out + in) & 0xFFFF;
+        int b = ((checksum >>> 16) - length * out + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM must provide SHA-256
+        }
+    }
+}
@@ -0,0 +1,255 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+// Keeps a leaf in step with its shared/ directory without periodic rescans. Changes arrive as WatchService
+// events, bursts for one file are debounced, and only files whose size or modification time moved are hashed
+// (in parallel) to tell real edits from touches. The full listing is read only at start and when the event
+// queue overflows, and even then only changed files are hashed.
+public class DirectoryWatcher {
+    private static final long DEBOUNCE_MS = 200;   // Quiet time in the directory before changed files are examined
+    private static final long MAX_DELAY_MS = 2000; // During a long burst, files waiting this long are examined anyway
+    private static final int MAX_BATCH = 10000;    // Files examined per round
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    // Shared by every watcher in the JVM so many leaves do not multiply the hashing threads
+    private static final ExecutorService hashers = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "file-hasher");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final ThreadLocal<ByteBuffer> hashBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HASH_BUFFER_SIZE));
+
+    private String ownerName;
+    private Path directory;
+    private Consumer<Changes> listener;
+    private Map<String, Fingerprint> fingerprints = new HashMap<>(); // Watcher thread only
+    private Map<String, Long> pending = new LinkedHashMap<>();       // Watcher thread only: first event time, oldest first
+    private long lastEventAt;
+    private boolean overflowed; // Events were lost; the listing is compared once the directory goes quiet
+
+    public DirectoryWatcher(String ownerName, File directory, Consumer<Changes> listener) {
+        this.ownerName = ownerName;
+        this.directory = directory.toPath();
+        this.listener = listener;
+    }
+
+    // known: files the leaf already serves from this directory. Differences found by the first scan are
+    // reported like any other change.
+    public void start(Set<String> known) throws IOException {
+        WatchService service = directory.getFileSystem().newWatchService();
+        directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE); // Before the scan, so nothing slips in between
+        Thread watcher = new Thread(() -> {
+            rescan(known);
+            watchLoop(service);
+        }, ownerName + "-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void watchLoop(WatchService service) {
+        while (true) {
+            try {
+                WatchKey key = service.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+                long now = System.currentTimeMillis();
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        lastEventAt = now;
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflowed = true;
+                            continue;
+                        }
+                        String fileName = event.context().toString();
+                        if (!isIgnored(fileName)) pending.putIfAbsent(fileName, now);
+                    }
+                    if (!key.reset()) {
+                        Log.warn(ownerName + ": " + directory + " can no longer be watched");
+                        return;
+                    }
+                }
+                if (!overflowed) {
+                    examine(takeDue(now));
+                } else if (now - lastEventAt >= DEBOUNCE_MS) {
+                    Log.info(ownerName + ": Watch events overflowed, rescanning " + directory);
+                    overflowed = false;
+                    pending.clear(); // The rescan sees these too
+                    rescan(new HashSet<>(fingerprints.keySet()));
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                Log.error(ownerName + ": Watching " + directory + " failed", e);
+            }
+        }
+    }
+
+    // Everything pending once the directory has been quiet for a moment, so a burst becomes one batch, or
+    // once the oldest file has waited too long during a burst that does not end
+    private List<String> takeDue(long now) {
+        List<String> due = new ArrayList<>();
+        if (pending.isEmpty()) return due;
+        long oldest = pending.values().iterator().next();
+        if (now - lastEventAt < DEBOUNCE_MS && now - oldest < MAX_DELAY_MS) return due;
+        Iterator<String> it = pending.keySet().iterator();
+        while (it.hasNext() && due.size() < MAX_BATCH) {
+            due.add(it.next());
+            it.remove();
+        }
+        return due;
+    }
+
+    // Known files still present become the baseline; everything else is examined as a possible change
+    private void rescan(Set<String> known) {
+        Set<String> present = new HashSet<>();
+        List<String> candidates = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path path : files) {
+                String fileName = path.getFileName().toString();
+                if (isIgnored(fileName)) continue;
+                BasicFileAttributes attributes = stat(path);
+                if (attributes == null) continue;
+                present.add(fileName);
+                Fingerprint previous = fingerprints.get(fileName);
+                if (previous == null && known.contains(fileName)) {
+                    fingerprints.put(fileName, new Fingerprint(attributes, null)); // Unchanged as far as anyone knows
+                } else if (previous == null || !previous.matches(attributes)) {
+                    candidates.add(fileName);
+                }
+            }
+        } catch (IOException e) {
+            Log.error(ownerName + ": Could not list " + directory, e);
+            return;
+        }
+        for (String fileName : known) {
+            if (!present.contains(fileName)) {
+                fingerprints.put(fileName, Fingerprint.GONE); // Reported as deleted below
+                candidates.add(fileName);
+            }
+        }
+        for (int i = 0; i < candidates.size(); i += MAX_BATCH) {
+            examine(candidates.subList(i, Math.min(candidates.size(), i + MAX_BATCH)));
+        }
+    }
+
+    // Stats each file, hashes the ones whose size or time changed, and reports the real changes as one batch
+    private void examine(List<String> fileNames) {
+        if (fileNames.isEmpty()) return;
+        Changes changes = new Changes();
+        Map<String, BasicFileAttributes> changed = new HashMap<>();
+        Map<String, Future<byte[]>> hashes = new HashMap<>();
+        for (String fileName : fileNames) {
+            Path path = directory.resolve(fileName);
+            BasicFileAttributes attributes = stat(path);
+            Fingerprint previous = fingerprints.get(fileName);
+            if (attributes == null) {
+                if (previous != null && fingerprints.remove(fileName) != null) changes.deleted.add(fileName);
+                continue;
+            }
+            if (previous != null && previous.matches(attributes)) continue; // Touched, or the event was for an earlier write
+            changed.put(fileName, attributes);
+            hashes.put(fileName, hashers.submit(() -> hash(path)));
+        }
+
+        for (Map.Entry<String, Future<byte[]>> hashed : hashes.entrySet()) {
+            String fileName = hashed.getKey();
+            byte[] hash;
+            try {
+                hash = hashed.getValue().get();
+            } catch (ExecutionException e) { // Removed or unreadable mid-hash; a delete event follows if it is gone
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            Fingerprint previous = fingerprints.put(fileName, new Fingerprint(changed.get(fileName), hash));
+            if (previous == null || previous == Fingerprint.GONE) {
+                changes.created.add(fileName);
+            } else if (previous.hash == null || !Arrays.equals(previous.hash, hash)) { // No hash yet: assume it changed
+                changes.modified.add(fileName);
+            }
+        }
+        if (!changes.isEmpty()) listener.accept(changes);
+    }
+
+    // Editors' swap and backup files are not shared
+    private static boolean isIgnored(String fileName) {
+        return fileName.startsWith(".") || fileName.endsWith("~");
+    }
+
+    // null if the file is gone or is not a regular file
+    private static BasicFileAttributes stat(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return attributes.isRegularFile() ? attributes : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] hash(Path path) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        ByteBuffer buffer = hashBuffers.get();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (true) {
+                buffer.clear();
+                if (channel.read(buffer) < 0) break;
+                buffer.flip();
+                digest.update(buffer);
+            }
+        }
+        return digest.digest();
+    }
+
+    // One debounced batch; files appear in at most one list
+    public static class Changes {
+        private List<String> created = new ArrayList<>();
+        private List<String> modified = new ArrayList<>();
+        private List<String> deleted = new ArrayList<>();
+
+        public List<String> getCreated() {
+            return created;
+        }
+
+        public List<String> getModified() {
+            return modified;
+        }
+
+        public List<String> getDeleted() {
+            return deleted;
+        }
+
+        boolean isEmpty() {
+            return created.isEmpty() && modified.isEmpty() && deleted.isEmpty();
+        }
+    }
+
+    private static class Fingerprint {
+        static final Fingerprint GONE = new Fingerprint(-1, -1, null); // Known file missing from the listing
+
+        private long size;
+        private long modifiedTime;
+        private byte[] hash; // SHA-256 of the contents, null until the file first changes
+
+        Fingerprint(long size, long modifiedTime, byte[] hash) {
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.hash = hash;
+        }
+
+        Fingerprint(BasicFileAttributes attributes, byte[] hash) {
+            this(attributes.size(), attributes.lastModifiedTime().toMillis(), hash);
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && modifiedTime == attributes.lastModifiedTime().toMillis();
+        }
+    }
+}
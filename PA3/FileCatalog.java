@@ -0,0 +1,107 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Registered files indexed by file name, with a per-leaf index for bulk unregistration.
+// Updates lock only the hash bin of the file being changed, so handler threads rarely contend.
+public class FileCatalog {
+    private Map<String, Map<String, FileEntry>> replicasByFile = new ConcurrentHashMap<>(); // fileName -> leaf -> entry
+    private Map<String, Set<String>> filesByLeaf = new ConcurrentHashMap<>();               // leaf -> file names
+    private RouteSummary summary; // Optional; told as each name enters or leaves the catalog
+    private SearchIndex index;    // Optional, likewise
+
+    public void setSummary(RouteSummary summary) {
+        this.summary = summary;
+    }
+
+    public void setSearchIndex(SearchIndex index) {
+        this.index = index;
+    }
+
+    public void register(String leafNode, FileEntry entry) {
+        addReplica(leafNode, entry);
+        filesByLeaf.computeIfAbsent(leafNode, k -> ConcurrentHashMap.newKeySet()).add(entry.getFileName());
+    }
+
+    // Looks up the leaf's index once for the whole batch, which matters when a restart reloads millions of entries
+    public void registerAll(String leafNode, Collection<FileEntry> entries) {
+        Set<String> files = filesByLeaf.computeIfAbsent(leafNode, k -> ConcurrentHashMap.newKeySet(entries.size()));
+        for (FileEntry entry : entries) {
+            addReplica(leafNode, entry);
+            files.add(entry.getFileName());
+        }
+    }
+
+    private void addReplica(String leafNode, FileEntry entry) {
+        replicasByFile.compute(entry.getFileName(), (fileName, replicas) -> {
+            if (replicas == null) {
+                replicas = new ConcurrentHashMap<>(2); // Most files have only a few replicas
+                if (summary != null) summary.add(fileName);
+                if (index != null) index.add(fileName);
+            }
+            replicas.put(leafNode, entry);
+            return replicas;
+        });
+    }
+
+    public void unregister(String leafNode, String fileName) {
+        removeReplica(leafNode, fileName);
+        Set<String> files = filesByLeaf.get(leafNode);
+        if (files != null) files.remove(fileName);
+    }
+
+    private void removeReplica(String leafNode, String fileName) {
+        replicasByFile.computeIfPresent(fileName, (name, replicas) -> {
+            replicas.remove(leafNode);
+            if (!replicas.isEmpty()) return replicas;
+            if (summary != null) summary.remove(name);
+            if (index != null) index.remove(name);
+            return null;
+        });
+    }
+
+    // Removes every file a leaf registered, e.g. when it leaves the network
+    public int unregisterLeaf(String leafNode) {
+        Set<String> files = filesByLeaf.remove(leafNode);
+        if (files == null) return 0;
+        for (String fileName : files) {
+            removeReplica(leafNode, fileName);
+        }
+        return files.size();
+    }
+
+    // Every replica of a file, keyed by the leaf holding it
+    public Map<String, FileEntry> getReplicas(String fileName) {
+        Map<String, FileEntry> replicas = replicasByFile.get(fileName);
+        return (replicas == null) ? Collections.emptyMap() : Collections.unmodifiableMap(replicas);
+    }
+
+    public FileEntry getReplica(String fileName, String leafNode) {
+        return getReplicas(fileName).get(leafNode);
+    }
+
+    // The origin's own entry, or null when only copies are registered here: a copy cannot vouch for the
+    // current version
+    public FileEntry getOrigin(String fileName) {
+        for (Map.Entry<String, FileEntry> replica : getReplicas(fileName).entrySet()) {
+            if (replica.getKey().equals(replica.getValue().getOriginServer())) return replica.getValue();
+        }
+        return null;
+    }
+
+    public boolean contains(String fileName) {
+        return replicasByFile.containsKey(fileName);
+    }
+
+    public Set<String> getFiles(String leafNode) {
+        Set<String> files = filesByLeaf.get(leafNode);
+        return (files == null) ? Collections.emptySet() : Collections.unmodifiableSet(files);
+    }
+
+    public Set<String> getLeafNodes() {
+        return Collections.unmodifiableSet(filesByLeaf.keySet());
+    }
+
+    public int getFileCount() {
+        return replicasByFile.size();
+    }
+}
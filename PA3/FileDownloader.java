@@ -0,0 +1,206 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Client side of FileServer. Bytes go from the socket straight into the target file with
+// FileChannel.transferFrom; interrupted downloads resume from the end of their .part file.
+public class FileDownloader {
+    private String nodeName;
+
+    public FileDownloader(String nodeName) {
+        this.nodeName = nodeName;
+    }
+
+    // Downloads a whole file into directory, resuming a previous partial download of the same version
+    public Header download(String fileName, String holder, int port, int expectedVersion, File directory) throws IOException {
+        directory.mkdirs();
+        File part = new File(directory, fileName + ".v" + expectedVersion + ".part");
+        long offset = part.exists() ? part.length() : 0;
+
+        Header header;
+        try (FileChannel target = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            while (true) {
+                try (SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+                    header = request(socket, fileName, holder, offset, -1);
+                    if (header == null) return null;
+
+                    if (offset > 0 && (header.getVersion() != expectedVersion || offset >= header.getTotalSize())) {
+                        // The bytes we kept are not a prefix of the holder's copy: it moved on to another
+                        // version, or the file is no longer than the part. Start over from the beginning.
+                        target.truncate(0);
+                        offset = 0;
+                        continue;
+                    }
+                    try {
+                        receive(socket, header, target, holder);
+                    } catch (IOException e) {
+                        // The part is named for expectedVersion, so never leave another version's bytes in it
+                        if (header.getVersion() != expectedVersion) target.truncate(0);
+                        throw e;
+                    }
+                }
+                break;
+            }
+            if (target.size() != header.getTotalSize()) {
+                throw new IOException("Incomplete download of " + fileName + " from " + holder);
+            }
+        }
+
+        Files.move(part.toPath(), new File(directory, fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return header;
+    }
+
+    // Fetches [offset, offset + length) of a remote file into target at the same position (length -1 = to end)
+    public Header fetchRange(String fileName, String holder, int port, FileChannel target, long offset, long length)
+            throws IOException {
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+            Header header = request(socket, fileName, holder, offset, length);
+            if (header == null) return null;
+            receive(socket, header, target, holder);
+            return header;
+        }
+    }
+
+    // Sends a DOWNLOAD request and reads the FILE header; the bytes follow on the socket
+    private Header request(SocketChannel socket, String fileName, String holder, long offset, long length) throws IOException {
+        String messageId = UUID.randomUUID().toString();
+        FileServer.writeLine(socket, "DOWNLOAD:" + messageId + ":" + nodeName + ":" + fileName + ":" + offset + ":" + length);
+
+        String response = FileServer.readLine(socket);
+        if (response == null || !response.startsWith("FILE")) {
+            Log.debug(() -> nodeName + ": " + holder + " does not have " + fileName);
+            return null;
+        }
+        return Header.parse(response);
+    }
+
+    private void receive(SocketChannel socket, Header header, FileChannel target, String holder) throws IOException {
+        long position = header.getOffset();
+        long end = header.getOffset() + header.getLength();
+        while (position < end) {
+            long transferred = target.transferFrom(socket, position, end - position);
+            if (transferred <= 0) throw new EOFException("Transfer of " + header.getFileName() + " from " + holder + " cut short");
+            position += transferred;
+        }
+    }
+
+    // Fetches [offset, offset + length) of a remote file into buffer, which is cleared first and flipped after
+    public Header fetchChunk(String fileName, String holder, int port, long offset, int length, ByteBuffer buffer)
+            throws IOException {
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+            String messageId = UUID.randomUUID().toString();
+            FileServer.writeLine(socket, "DOWNLOAD:" + messageId + ":" + nodeName + ":" + fileName + ":" + offset + ":" + length);
+
+            String response = FileServer.readLine(socket);
+            if (response == null || !response.startsWith("FILE")) return null;
+
+            Header header = Header.parse(response);
+            if (header.getLength() > buffer.capacity()) throw new IOException(holder + " sent more than was asked for");
+            buffer.clear().limit((int) header.getLength());
+            while (buffer.hasRemaining()) {
+                if (socket.read(buffer) < 0) throw new EOFException("Transfer of " + fileName + " from " + holder + " cut short");
+            }
+            buffer.flip();
+            return header;
+        }
+    }
+
+    // The holder's chunk hashes for its copy of the file, or null if it does not have the file
+    public ChunkHashes fetchChunkHashes(String fileName, String holder, int port, int chunkSize) throws IOException {
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+            String messageId = UUID.randomUUID().toString();
+            FileServer.writeLine(socket, "HASHES:" + messageId + ":" + nodeName + ":" + fileName + ":" + chunkSize);
+
+            // Nothing follows the line, so it can be read buffered, unlike a FILE header
+            BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(socket), StandardCharsets.UTF_8));
+            String response = reader.readLine();
+            if (response == null || !response.startsWith("CHUNKS")) return null;
+            // Format: CHUNKS:messageId:fileName:version:totalSize:chunkSize:hash0[,hash1...]
+            return ChunkHashes.parse(response.split(":"), 3);
+        }
+    }
+
+    // Brings an old copy up to the holder's version, fetching only the blocks that changed. The new version is
+    // assembled next to the copy and then replaces it. Returns null if the holder does not have the file.
+    public Header syncDelta(String fileName, String holder, int port, File copy) throws IOException {
+        File patched = new File(copy.getParentFile(), fileName + ".delta");
+        Header header;
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", port));
+             FileChannel oldCopy = FileChannel.open(copy.toPath())) {
+            DeltaSync.Signatures signatures = DeltaSync.Signatures.compute(oldCopy, DeltaSync.blockSize(oldCopy.size()));
+            String messageId = UUID.randomUUID().toString();
+            FileServer.writeLine(socket, "DELTA:" + messageId + ":" + nodeName + ":" + fileName + ":" +
+                    signatures.getBlockSize() + ":" + signatures.getBlockCount());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(socket), 64 * 1024));
+            signatures.writeTo(out);
+            out.flush();
+
+            String response = FileServer.readLine(socket);
+            if (response == null || !response.startsWith("PATCH")) return null;
+            header = Header.parse(response);
+            String fileHash = response.split(":")[8];
+
+            DataInputStream patch = new DataInputStream(new BufferedInputStream(Channels.newInputStream(socket), 64 * 1024));
+            try (FileChannel target = FileChannel.open(patched.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                DeltaSync.apply(patch, oldCopy, signatures.getBlockSize(), target, fileHash);
+                if (target.size() != header.getTotalSize()) throw new IOException("Patched " + fileName + " has the wrong size");
+            }
+        } catch (IOException e) {
+            patched.delete();
+            throw e;
+        }
+        Files.move(patched.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return header;
+    }
+
+    // Format: FILE:messageId:fileName:version:origin:totalSize:offset:length
+    public static class Header {
+        private String fileName;
+        private int version;
+        private String origin;
+        private long totalSize;
+        private long offset;
+        private long length;
+
+        static Header parse(String message) {
+            String[] parts = message.split(":");
+            Header header = new Header();
+            header.fileName = parts[2];
+            header.version = Integer.parseInt(parts[3]);
+            header.origin = parts[4];
+            header.totalSize = Long.parseLong(parts[5]);
+            header.offset = Long.parseLong(parts[6]);
+            header.length = Long.parseLong(parts[7]);
+            return header;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public String getOrigin() {
+            return origin;
+        }
+
+        public long getTotalSize() {
+            return totalSize;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+}
@@ -1,10 +1,15 @@
 public class FileEntry {
+    private static final double MODIFICATION_RATE_WEIGHT = 0.3; // Weight of the newest interval in the average
+
     private String fileName;
-    private int version;
+    private volatile int version; // Entries are shared between handler threads
     private String originServer;
-    private long lastModifiedTime;
-    private int ttr; // Time-to-refresh
-    private boolean valid;
+    private volatile long lastModifiedTime;
+    private volatile long lastValidatedTime; // When the origin last confirmed this copy
+    private volatile int ttr; // Time-to-refresh
+    private volatile long averageModificationInterval; // Moving average of ms between versions, 0 until known
+    private volatile boolean valid;
+    private volatile long leaseExpiry; // Until when the super-peer pushes invalidations for this copy, 0 if none
 
     public FileEntry(String fileName, int version, String originServer, int ttr) {
         this.fileName = fileName;
@@ -13,6 +18,7 @@ public class FileEntry {
         this.ttr = ttr;
         this.valid = true;
         this.lastModifiedTime = System.currentTimeMillis(); // Set default to current time
+        this.lastValidatedTime = lastModifiedTime;
     }
 
     public String getFileName() {
@@ -35,9 +41,29 @@ public class FileEntry {
         this.lastModifiedTime = lastModifiedTime;
     }
 
-    public void incrementVersion() {
-        this.version++;
-        this.lastModifiedTime = System.currentTimeMillis(); // Update last modified time
+    public synchronized void incrementVersion() {
+        advanceVersion(version + 1);
+    }
+
+    // Moves to a newer version, folding the time since the last change into the modification-rate average
+    public synchronized void advanceVersion(int newVersion) {
+        if (newVersion <= version) return;
+        long now = System.currentTimeMillis();
+        long interval = (now - lastModifiedTime) / (newVersion - version);
+        averageModificationInterval = (averageModificationInterval == 0) ? interval
+                : (long) (MODIFICATION_RATE_WEIGHT * interval + (1 - MODIFICATION_RATE_WEIGHT) * averageModificationInterval);
+        this.version = newVersion;
+        this.lastModifiedTime = now; // Update last modified time
+    }
+
+    // Sets a version read back from disk; unlike advanceVersion it is not counted as a modification
+    public synchronized void restoreVersion(int restoredVersion, long modifiedTime) {
+        this.version = restoredVersion;
+        this.lastModifiedTime = modifiedTime;
+    }
+
+    public long getAverageModificationInterval() {
+        return averageModificationInterval;
     }
 
     public boolean isValid() {
@@ -51,9 +77,26 @@ public class FileEntry {
     public void refreshTTR(int newTTR) {
         this.ttr = newTTR;
         this.valid = true;
+        this.lastValidatedTime = System.currentTimeMillis(); // A fresh TTR window starts now
     }
 
     public boolean isExpired() {
-        return System.currentTimeMillis() - lastModifiedTime > ttr;
+        return System.currentTimeMillis() > getExpiryTime();
+    }
+
+    public long getLeaseExpiry() {
+        return leaseExpiry;
+    }
+
+    public void setLeaseExpiry(long leaseExpiry) {
+        this.leaseExpiry = leaseExpiry;
+    }
+
+    public boolean hasLiveLease() {
+        return System.currentTimeMillis() < leaseExpiry;
+    }
+
+    public long getExpiryTime() {
+        return lastValidatedTime + ttr;
     }
 }
@@ -0,0 +1,183 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// Serves file contents to other leaves. Bytes go from the page cache to the socket with
+// FileChannel.transferTo, so large files are never copied through the heap.
+public class FileServer {
+    static final int MAX_LINE = 8 * 1024; // Longest request or header line; a peer sending more is cut off
+
+    private String nodeName;
+    private int port;
+    private File[] directories;                   // Searched in order, e.g. shared/ then downloads/
+    private Function<String, FileEntry> entries;  // Version and origin of each file this leaf holds
+    private Map<String, ChunkHashes> chunkHashes = new ConcurrentHashMap<>(); // Reused until the file changes
+
+    public FileServer(String nodeName, int port, File[] directories, Function<String, FileEntry> entries) {
+        this.nodeName = nodeName;
+        this.port = port;
+        this.directories = directories;
+        this.entries = entries;
+    }
+
+    public void start() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    new Thread(() -> serve(channel)).start(); // Transfers are long-lived, one thread each
+                } catch (IOException e) {
+                    Log.error(nodeName + ": Accepting a file transfer failed", e);
+                }
+            }
+        }, nodeName + "-files");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Log.info(nodeName + ": Serving files on port " + port);
+    }
+
+    // Request:  DOWNLOAD:messageId:requester:fileName:offset:length   (length -1 = to end of file)
+    // Response: FILE:messageId:fileName:version:origin:totalSize:offset:length followed by the raw bytes,
+    //           or MISSING:messageId:fileName
+    // Request:  HASHES:messageId:requester:fileName:chunkSize
+    // Response: CHUNKS:messageId:fileName:version:totalSize:chunkSize:hash0[,hash1...], or MISSING
+    // Request:  DELTA:messageId:requester:fileName:blockSize:blockCount followed by the signatures of the
+    //           requester's old copy (see DeltaSync)
+    // Response: PATCH:messageId:fileName:version:origin:totalSize:0:literalBytes:fileHash followed by the
+    //           patch ops, or MISSING
+    private void serve(SocketChannel channel) {
+        try (SocketChannel socket = channel) {
+            String request = readLine(socket);
+            if (request != null && request.startsWith("HASHES")) {
+                serveHashes(socket, request.split(":"));
+                return;
+            }
+            if (request != null && request.startsWith("DELTA")) {
+                serveDelta(socket, request.split(":"));
+                return;
+            }
+            if (request == null || !request.startsWith("DOWNLOAD")) return;
+
+            String[] parts = request.split(":");
+            String messageId = parts[1];
+            String requester = parts[2];
+            String fileName = parts[3];
+            long offset = (parts.length > 4) ? Long.parseLong(parts[4]) : 0;
+            long length = (parts.length > 5) ? Long.parseLong(parts[5]) : -1;
+
+            File file = locate(fileName);
+            FileEntry entry = entries.apply(fileName);
+            if (file == null || entry == null) {
+                writeLine(socket, "MISSING:" + messageId + ":" + fileName);
+                return;
+            }
+
+            try (FileChannel fileChannel = FileChannel.open(file.toPath())) {
+                long totalSize = fileChannel.size();
+                offset = Math.min(offset, totalSize);
+                long end = (length < 0) ? totalSize : Math.min(totalSize, offset + length);
+
+                writeLine(socket, "FILE:" + messageId + ":" + fileName + ":" + entry.getVersion() + ":" +
+                        entry.getOriginServer() + ":" + totalSize + ":" + offset + ":" + (end - offset));
+
+                long position = offset;
+                while (position < end) {
+                    position += fileChannel.transferTo(position, end - position, socket);
+                }
+                long sent = end - offset;
+                Log.debug(() -> nodeName + ": Sent " + sent + " bytes of " + fileName + " to " + requester);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.warn(nodeName + ": File transfer failed: " + e.getMessage());
+        }
+    }
+
+    private void serveHashes(SocketChannel socket, String[] parts) throws IOException {
+        String messageId = parts[1];
+        String fileName = parts[3];
+        int chunkSize = Integer.parseInt(parts[4]);
+        if (chunkSize <= 0) throw new IllegalArgumentException("Bad chunk size " + chunkSize);
+
+        File file = locate(fileName);
+        FileEntry entry = entries.apply(fileName);
+        if (file == null || entry == null) {
+            writeLine(socket, "MISSING:" + messageId + ":" + fileName);
+            return;
+        }
+
+        ChunkHashes hashes = chunkHashes.get(fileName);
+        if (hashes == null || hashes.getVersion() != entry.getVersion() || hashes.getChunkSize() != chunkSize ||
+                hashes.getLastModified() != file.lastModified() || hashes.getTotalSize() != file.length()) {
+            try (FileChannel fileChannel = FileChannel.open(file.toPath())) {
+                hashes = ChunkHashes.compute(fileChannel, entry.getVersion(), chunkSize, file.lastModified());
+            }
+            chunkHashes.put(fileName, hashes);
+        }
+        writeLine(socket, "CHUNKS:" + messageId + ":" + fileName + ":" + hashes.format());
+    }
+
+    private void serveDelta(SocketChannel socket, String[] parts) throws IOException {
+        String messageId = parts[1];
+        String requester = parts[2];
+        String fileName = parts[3];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(socket)));
+        DeltaSync.Signatures signatures = DeltaSync.Signatures.readFrom(in, Integer.parseInt(parts[4]), Integer.parseInt(parts[5]));
+
+        File file = locate(fileName);
+        FileEntry entry = entries.apply(fileName);
+        if (file == null || entry == null || file.length() > Integer.MAX_VALUE) { // Too large to map; sent whole instead
+            writeLine(socket, "MISSING:" + messageId + ":" + fileName);
+            return;
+        }
+
+        try (FileChannel fileChannel = FileChannel.open(file.toPath())) {
+            ByteBuffer newVersion = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+            DeltaSync.Delta delta = DeltaSync.diff(newVersion, signatures);
+            writeLine(socket, "PATCH:" + messageId + ":" + fileName + ":" + entry.getVersion() + ":" + entry.getOriginServer() +
+                    ":" + newVersion.limit() + ":0:" + delta.getLiteralBytes() + ":" + delta.getFileHash());
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(socket), 64 * 1024));
+            delta.writeTo(out, newVersion);
+            out.flush();
+            Log.debug(() -> nodeName + ": Sent " + delta.getLiteralBytes() + " of " + newVersion.limit() + " bytes of " +
+                    fileName + " to " + requester + " as a patch");
+        }
+    }
+
+    private File locate(String fileName) {
+        if (fileName.contains("/") || fileName.contains("\\") || fileName.contains("..")) return null;
+        for (File directory : directories) {
+            File file = new File(directory, fileName);
+            if (file.isFile()) return file;
+        }
+        return null;
+    }
+
+    // Reads the header one byte at a time so no file bytes are consumed past the newline
+    static String readLine(ReadableByteChannel channel) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        ByteBuffer single = ByteBuffer.allocate(1);
+        while (true) {
+            single.clear();
+            if (channel.read(single) < 0) return (line.size() == 0) ? null : line.toString(StandardCharsets.UTF_8);
+            byte b = single.get(0);
+            if (b == '\n') return line.toString(StandardCharsets.UTF_8);
+            if (line.size() == MAX_LINE) throw new IOException("Line longer than " + MAX_LINE + " bytes");
+            line.write(b);
+        }
+    }
+
+    static void writeLine(WritableByteChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Outbound invalidations for one peer, drained by its own writer thread so a slow or dead peer
+// only delays itself. Repeated invalidations of a file collapse into the newest version, and
+// everything that accumulates during the linger is sent as one INVALIDATIONBATCH frame.
+public class InvalidationQueue {
+    private static final long LINGER_MS = 5;      // Wait this long for more invalidations to share a frame
+    private static final int MAX_BATCH = 256;     // Invalidations per frame
+    private static final long BLOCK_TIMEOUT_MS = 1000; // Longest a producer waits for room before dropping
+
+    private String ownerName;
+    private String destination;
+    private ConnectionManager connections;
+    private int capacity;
+    private boolean blockWhenFull; // Otherwise drop new invalidations while the queue is full
+
+    private LinkedHashMap<String, Invalidation> pending = new LinkedHashMap<>(); // fileName -> newest invalidation
+    private LongAdder sent = new LongAdder();
+    private LongAdder coalesced = new LongAdder();
+    private LongAdder dropped = new LongAdder();
+
+    public InvalidationQueue(String ownerName, String destination, ConnectionManager connections,
+                             int capacity, boolean blockWhenFull) {
+        this.ownerName = ownerName;
+        this.destination = destination;
+        this.connections = connections;
+        this.capacity = capacity;
+        this.blockWhenFull = blockWhenFull;
+
+        Thread writer = new Thread(this::drainLoop, ownerName + "-inv-" + destination);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Returns false if the invalidation was dropped because the queue stayed full
+    public synchronized boolean offer(Invalidation invalidation) {
+        Invalidation queued = pending.get(invalidation.getFileName());
+        if (queued != null) {
+            if (invalidation.getVersion() > queued.getVersion()) pending.put(invalidation.getFileName(), invalidation);
+            coalesced.increment();
+            return true;
+        }
+
+        long deadline = System.currentTimeMillis() + BLOCK_TIMEOUT_MS;
+        while (pending.size() >= capacity) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (!blockWhenFull || remaining <= 0) {
+                dropped.increment();
+                return false;
+            }
+            try {
+                wait(remaining); // Backpressure: the writer notifies after each frame
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.increment();
+                return false;
+            }
+        }
+
+        pending.put(invalidation.getFileName(), invalidation);
+        notifyAll();
+        return true;
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private void drainLoop() {
+        while (true) {
+            try {
+                List<Invalidation> batch = takeBatch();
+                send(batch);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private List<Invalidation> takeBatch() throws InterruptedException {
+        synchronized (this) {
+            while (pending.isEmpty()) {
+                wait();
+            }
+        }
+        Thread.sleep(LINGER_MS); // Let a burst accumulate
+
+        synchronized (this) {
+            List<Invalidation> batch = new ArrayList<>(Math.min(MAX_BATCH, pending.size()));
+            Iterator<Invalidation> it = pending.values().iterator();
+            while (it.hasNext() && batch.size() < MAX_BATCH) {
+                batch.add(it.next());
+                it.remove();
+            }
+            notifyAll(); // Wake producers waiting for room
+            return batch;
+        }
+    }
+
+    private void send(List<Invalidation> batch) {
+        // Format: INVALIDATIONBATCH:batchId:messageId:originServer:fileName:version[:messageId:originServer:fileName:version...]
+        String[] fields = new String[batch.size() * 4];
+        int i = 0;
+        for (Invalidation invalidation : batch) {
+            fields[i++] = invalidation.getMessageId();
+            fields[i++] = invalidation.getOriginServer();
+            fields[i++] = invalidation.getFileName();
+            fields[i++] = Integer.toString(invalidation.getVersion());
+        }
+        Message frame = new Message(Message.INVALIDATIONBATCH, UUID.randomUUID().toString(), fields);
+        try {
+            connections.send(destination, frame);
+            sent.add(batch.size());
+        } catch (IOException e) {
+            // Push is best effort; replicas still catch the change when their TTR expires
+            dropped.add(batch.size());
+            Log.warn(ownerName + ": Dropped " + batch.size() + " invalidation(s) for " + destination + ": " + e.getMessage());
+        }
+    }
+
+    public static class Invalidation {
+        private String messageId;
+        private String originServer;
+        private String fileName;
+        private int version;
+
+        public Invalidation(String messageId, String originServer, String fileName, int version) {
+            this.messageId = messageId;
+            this.originServer = originServer;
+            this.fileName = fileName;
+            this.version = version;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+
+        public String getOriginServer() {
+            return originServer;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+    }
+}
@@ -1,29 +1,62 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 public class LeafNode {
     private String nodeName;
     private String superPeer;
-    private Map<String, FileEntry> downloadedFiles = new HashMap<>();
+    private ReplicaCache downloadedFiles; // Owned files and copies; downloads land while pollers iterate
     private boolean pullEnabled;
     private int defaultTTR;
+    private ConnectionManager connections;
+    private FileDownloader downloader;
+    private SwarmDownloader swarmDownloader;
+    private boolean swarmDownloads = true; // Fetch from every up-to-date holder at once
+    private boolean deltaSync = true;      // Bring invalidated copies up to date with only the blocks that changed
+    private InvalidationQueue invalidationQueue; // Created on the first modification
+    private PollScheduler pollScheduler = new PollScheduler(POLL_COALESCE_MS);
+    private int queryTTL = 2;           // Super-peer hops a query may travel
+    private long queryTimeout = 1000;   // How long to collect QUERYHITs, in ms
+    private File baseDirectory;         // Parent of this leaf's shared/ and downloads/, null for the working directory
+    private LeafObserver observer;      // Optional, for load testing
+    private Metrics metrics;
+    private volatile boolean registered;  // Set once the super-peer has this leaf's files
+    private AtomicBoolean reconnecting = new AtomicBoolean();
 
-    private int totalQueries = 0;      // Total queries sent
-    private int invalidResults = 0;   // Count of invalid query results
+    private static final long POLL_TIMEOUT_MS = 5000;  // How long to wait for a POLL response
+    private static final long POLL_COALESCE_MS = 1000; // Files expiring this close together share one poll
+    private static final long POLL_RETRY_MS = 5000;    // Retry delay when an origin does not answer
+    private static final int POLL_BATCH_SIZE = 500;    // Files per POLLBATCH message
+    private static final int INVALIDATION_QUEUE_SIZE = 10000; // Distinct files awaiting invalidation
+    private static final int REGISTER_BATCH_SIZE = 500; // Files per REGISTER message
+    private static final long RECONNECT_DELAY_MS = 1000; // Between attempts to reach a super-peer that went away
+
+    private LongAdder totalQueries = new LongAdder();   // Total queries sent
+    private LongAdder invalidResults = new LongAdder(); // Queries that returned at least one stale hit
 
     public LeafNode(String nodeName, String superPeer, List<FileEntry> files) {
         this.nodeName = nodeName;
         this.superPeer = superPeer;
+        this.connections = new ConnectionManager(nodeName, this::handlePushedMessage);
+        this.connections.setDropListener(peer -> {
+            if (peer.equals(superPeer)) reconnectToSuperPeer();
+        });
+        this.downloader = new FileDownloader(nodeName);
+        this.downloadedFiles = new ReplicaCache(nodeName);
+        this.downloadedFiles.setDirectory(nodeDirectory("downloads"));
+        this.downloadedFiles.setEvictionListener(this::copyEvicted);
         for (FileEntry file : files) {
-            downloadedFiles.put(file.getFileName(), file);
+            downloadedFiles.put(file, 0); // Size unknown until downloaded again
         }
+        setMetrics(new Metrics("LeafNode", nodeName));
     }
 
     public void initializeOwnedFiles() {
-        File sharedDir = new File(nodeName + "/shared");
+        File sharedDir = nodeDirectory("shared");
         if (!sharedDir.exists() || !sharedDir.isDirectory()) {
-            System.out.println(nodeName + ": Shared directory not found. Creating...");
+            Log.info(nodeName + ": Shared directory not found. Creating...");
             sharedDir.mkdirs();
         }
 
@@ -31,26 +64,170 @@ public class LeafNode {
         if (files != null) {
             for (File file : files) {
                 if (file.isFile()) {
-                    FileEntry fileEntry = new FileEntry(file.getName(), 1, nodeName, 30000); // Default version = 1
-                    downloadedFiles.put(file.getName(), fileEntry);
-                    System.out.println(nodeName + ": Loaded owned file " + file.getName());
+                    FileEntry fileEntry = new FileEntry(file.getName(), 1, nodeName, defaultTTR); // Default version = 1
+                    downloadedFiles.put(fileEntry);
+                    Log.debug(() -> nodeName + ": Loaded owned file " + file.getName());
                 }
             }
         }
     }
 
+    // Serves shared/ and downloaded files to other leaves
+    public void startFileServer() {
+        metrics.publish();
+        File[] directories = {nodeDirectory("shared"), nodeDirectory("downloads")};
+        try {
+            new FileServer(nodeName, PeerDirectory.getFilePort(nodeName), directories, downloadedFiles::touch).start();
+        } catch (BindException e) {
+            Log.warn(nodeName + ": File server port already in use, an earlier instance keeps serving");
+        } catch (IOException e) {
+            Log.error(nodeName + ": File server failed to start", e);
+        }
+    }
+
+    // Brings the super-peer's record of this leaf's own files up to date. Bucket digests are compared first,
+    // so after a super-peer restart only the buckets it lost are re-sent. Super-peers that do not answer
+    // the digest get every file in REGISTER messages.
     public void registerFilesWithSuperPeer() throws IOException {
-        try (Socket socket = new Socket("localhost", getPort(superPeer));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            for (String fileName : downloadedFiles.keySet()) {
-                out.println("REGISTER:" + nodeName + ":" + fileName);
-                System.out.println(nodeName + ": Registered file " + fileName + " with super-peer " + superPeer);
+        Map<String, Integer> owned = new HashMap<>();
+        for (FileEntry file : downloadedFiles.files()) {
+            if (file.getOriginServer().equals(nodeName)) owned.put(file.getFileName(), file.getVersion());
+        }
+        int bucketCount = CatalogDigest.bucketCount(owned.size());
+        long[] digest = CatalogDigest.compute(owned, bucketCount);
+
+        // Format: DIGEST:messageId:leaf:bucketCount:hash0[:hash1...]
+        String[] fields = new String[2 + bucketCount];
+        fields[0] = nodeName;
+        fields[1] = Integer.toString(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            fields[2 + i] = Long.toHexString(digest[i]);
+        }
+        Message response = connections.request(superPeer, new Message(Message.DIGEST, UUID.randomUUID().toString(), fields),
+                POLL_TIMEOUT_MS);
+        if (response == null) {
+            registerAll(owned.keySet());
+        } else {
+            syncBuckets(owned, bucketCount, response);
+        }
+        for (FileEntry file : downloadedFiles.files()) {
+            if (!file.getOriginServer().equals(nodeName) && file.isValid()) offerCopy(file); // Lost if the super-peer restarted
+        }
+        registered = true;
+    }
+
+    // Lets other leaves download this copy too, spreading a popular file's downloads beyond its origin
+    private void offerCopy(FileEntry file) throws IOException {
+        // Format: REPLICA:leaf:origin:fileName:version
+        connections.send(superPeer, new Message(Message.REPLICA, null, nodeName, file.getOriginServer(), file.getFileName(),
+                Integer.toString(file.getVersion())));
+    }
+
+    // Response format: DIGESTRESULT:messageId[:bucket...] listing the buckets the super-peer has wrong
+    private void syncBuckets(Map<String, Integer> owned, int bucketCount, Message response) throws IOException {
+        Map<Integer, List<String>> differing = new HashMap<>();
+        for (int i = 0; i < response.getFieldCount(); i++) {
+            differing.put(response.getIntField(i), new ArrayList<>());
+        }
+        for (String fileName : owned.keySet()) {
+            List<String> bucket = differing.get(CatalogDigest.bucketOf(fileName, bucketCount));
+            if (bucket != null) bucket.add(fileName);
+        }
+
+        int sent = 0;
+        for (Map.Entry<Integer, List<String>> bucket : differing.entrySet()) {
+            // Format: SYNC:messageId:leaf:bucketCount:bucket[:fileName:version...]; an empty bucket clears it
+            String[] fields = new String[3 + 2 * bucket.getValue().size()];
+            fields[0] = nodeName;
+            fields[1] = Integer.toString(bucketCount);
+            fields[2] = Integer.toString(bucket.getKey());
+            int i = 3;
+            for (String fileName : bucket.getValue()) {
+                fields[i++] = fileName;
+                fields[i++] = Integer.toString(owned.get(fileName));
             }
+            connections.send(superPeer, new Message(Message.SYNC, UUID.randomUUID().toString(), fields));
+            sent += bucket.getValue().size();
         }
+        Log.info(nodeName + ": " + differing.size() + " of " + bucketCount + " bucket(s) out of date at " + superPeer +
+                ", re-sent " + sent + " of " + owned.size() + " file(s)");
+    }
+
+    private void registerAll(Collection<String> fileNames) throws IOException {
+        sendFileBatches(Message.REGISTER, fileNames);
+    }
+
+    // Format: REGISTER:leaf:file1[:file2...] or UNREGISTER:leaf:file1[:file2...]
+    private void sendFileBatches(String type, Collection<String> fileNames) throws IOException {
+        List<String> batch = new ArrayList<>();
+        batch.add(nodeName);
+        for (String fileName : fileNames) {
+            batch.add(fileName);
+            Log.debug(() -> nodeName + ": Sent " + type + " for file " + fileName + " to super-peer " + superPeer);
+            if (batch.size() - 1 == REGISTER_BATCH_SIZE) {
+                connections.send(superPeer, new Message(type, null, batch.toArray(new String[0])));
+                batch.subList(1, batch.size()).clear();
+            }
+        }
+        if (batch.size() > 1) connections.send(superPeer, new Message(type, null, batch.toArray(new String[0])));
+    }
+
+    // Follows edits, new files and deletions in shared/ as they happen, instead of only the startup listing
+    public void startWatching() throws IOException {
+        Set<String> owned = new HashSet<>();
+        for (FileEntry file : downloadedFiles.files()) {
+            if (file.getOriginServer().equals(nodeName)) owned.add(file.getFileName());
+        }
+        new DirectoryWatcher(nodeName, nodeDirectory("shared"), this::applySharedChanges).start(owned);
+    }
+
+    // One debounced batch from the watcher: edits get a new version and an invalidation, new and deleted
+    // files reach the super-peer as one REGISTER and one UNREGISTER rather than a message each
+    private void applySharedChanges(DirectoryWatcher.Changes changes) {
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        List<String> changed = new ArrayList<>(changes.getCreated());
+        changed.addAll(changes.getModified());
+        for (String fileName : changed) {
+            FileEntry file = downloadedFiles.get(fileName);
+            if (file == null) {
+                downloadedFiles.put(new FileEntry(fileName, 1, nodeName, defaultTTR));
+                added.add(fileName);
+            } else if (file.getOriginServer().equals(nodeName)) {
+                modifyFile(fileName);
+            } else {
+                Log.warn(nodeName + ": " + fileName + " in shared/ has the name of a copy from " + file.getOriginServer() +
+                        ", not sharing it");
+            }
+        }
+        for (String fileName : changes.getDeleted()) {
+            FileEntry file = downloadedFiles.get(fileName);
+            if (file == null || !file.getOriginServer().equals(nodeName)) continue;
+            downloadedFiles.remove(fileName);
+            removed.add(fileName);
+            broadcastInvalidation(fileName, file.getVersion() + 1); // Leased copies stop serving the old contents now
+        }
+        metrics.counter("shared_changes", "created").add(added.size());
+        metrics.counter("shared_changes", "modified").add(changes.getModified().size());
+        metrics.counter("shared_changes", "deleted").add(removed.size());
+
+        try {
+            sendFileBatches(Message.REGISTER, added);
+            sendFileBatches(Message.UNREGISTER, removed);
+        } catch (IOException e) {
+            // The digest exchange after reconnecting brings the super-peer up to date
+            Log.warn(nodeName + ": Could not update super-peer " + superPeer + ": " + e.getMessage());
+        }
+        Log.info(nodeName + ": shared/ changed: " + added.size() + " added, " + changes.getModified().size() +
+                " modified, " + removed.size() + " removed");
     }
 
     public List<String> getOwnedFiles() {
-        return new ArrayList<>(downloadedFiles.keySet());
+        List<String> owned = new ArrayList<>();
+        for (FileEntry file : downloadedFiles.files()) {
+            if (file.getOriginServer().equals(nodeName)) owned.add(file.getFileName());
+        }
+        return owned;
     }
 
     public void simulateQueriesAndDownloads(Random random, List<String> fileNames) {
@@ -58,13 +235,17 @@ public class LeafNode {
             while (true) {
                 try {
                     String fileName = fileNames.get(random.nextInt(fileNames.size()));
-                    searchFile(fileName);
+                    if (!isOwned(fileName) && getValidCopy(fileName) != null) {
+                        Thread.sleep(1000 + random.nextInt(2000));
+                        continue; // Read from the cache
+                    }
+                    List<QueryHit> hits = searchFile(fileName);
 
                     Thread.sleep(1000 + random.nextInt(2000)); // Delay between queries
-                    downloadFile(fileName, superPeer);
+                    downloadFile(fileName, hits);
 
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    Log.error(nodeName + ": Query or download failed", e);
                 }
             }
         }).start();
@@ -74,73 +255,334 @@ public class LeafNode {
         new Thread(() -> {
             while (true) {
                 try {
-                    List<String> files = new ArrayList<>(downloadedFiles.keySet());
-                    String fileName = files.get(random.nextInt(files.size()));
-
-                    FileEntry file = downloadedFiles.get(fileName);
-                    file.incrementVersion();
-                    file.setLastModifiedTime(System.currentTimeMillis());
-
-                    broadcastInvalidation(fileName, file.getVersion());
+                    List<String> files = getOwnedFiles(); // Copies come and go with eviction
+                    modifyFile(files.get(random.nextInt(files.size())));
 
                     Thread.sleep(2000 + random.nextInt(5000)); // Delay between modifications
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    Log.error(nodeName + ": Modification failed", e);
                 }
             }
         }).start();
     }
 
-    private void broadcastInvalidation(String fileName, int version) throws IOException {
-        try (Socket socket = new Socket("localhost", getPort(superPeer));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            String message = "INVALIDATION:" + UUID.randomUUID().toString() + ":" + nodeName + ":" + fileName + ":" + version;
-            out.println(message);
-            System.out.println(nodeName + ": Broadcast invalidation for file " + fileName);
+    // Bumps the version of an owned file and tells the super-peer
+    public void modifyFile(String fileName) {
+        FileEntry file = downloadedFiles.get(fileName);
+        file.incrementVersion();
+        file.setLastModifiedTime(System.currentTimeMillis());
+
+        metrics.counter("modifications").increment();
+        broadcastInvalidation(fileName, file.getVersion());
+    }
+
+    private void broadcastInvalidation(String fileName, int version) {
+        synchronized (this) {
+            if (invalidationQueue == null) {
+                // The origin's invalidations are the source of truth, so producers wait for room rather than drop
+                invalidationQueue = new InvalidationQueue(nodeName, superPeer, connections, INVALIDATION_QUEUE_SIZE, true);
+            }
+        }
+        invalidationQueue.offer(new InvalidationQueue.Invalidation(UUID.randomUUID().toString(), nodeName, fileName, version));
+        Log.debug(() -> nodeName + ": Broadcast invalidation for file " + fileName);
+    }
+
+    // Floods a query through the overlay and returns every QUERYHIT that arrives within the query timeout
+    public List<QueryHit> searchFile(String fileName) throws IOException {
+        totalQueries.increment();
+        List<QueryHit> results = flood(new Message(Message.QUERY, UUID.randomUUID().toString(), queryTTL, 0, fileName),
+                Message.QUERY);
+        boolean invalid = false;
+        for (QueryHit hit : results) {
+            if (hit.isStale()) {
+                invalid = true;
+                Log.debug(() -> nodeName + ": Invalid result for file " + fileName + " from " + hit.getHolder());
+            } else {
+                Log.debug(() -> nodeName + ": Valid result for file " + fileName + " from " + hit.getHolder());
+            }
         }
+        metrics.histogram("query_hits").record(results.size());
+        if (results.isEmpty()) metrics.counter("queries_unanswered").increment();
+        if (invalid) invalidResults.increment();
+        return results;
     }
 
-    public void searchFile(String fileName) throws IOException {
-        totalQueries++; // Increment total queries
-        try (Socket socket = new Socket("localhost", getPort(superPeer));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+    // Finds files by keywords ("report", all must appear in the name) or a wildcard pattern ("*.iso"). Returns
+    // the hits for at most limit names, best matches first, each name's holders together.
+    public List<QueryHit> search(String expression, int limit) throws IOException {
+        if (expression.indexOf(':') >= 0) throw new IllegalArgumentException("Search expressions cannot contain ':'");
+        List<QueryHit> hits = flood(new Message(Message.QUERY, UUID.randomUUID().toString(), queryTTL, 0, expression,
+                Integer.toString(limit)), "SEARCH");
 
-            String queryMessage = "QUERY:" + UUID.randomUUID().toString() + ":" + fileName;
-            out.println(queryMessage);
+        // Super-peers rank only their own names; merged, a name is ranked the same way, then by its holder count
+        Map<String, List<QueryHit>> byName = new HashMap<>();
+        for (QueryHit hit : hits) {
+            byName.computeIfAbsent(hit.getFileName(), k -> new ArrayList<>()).add(hit);
+        }
+        List<String> names = new ArrayList<>(byName.keySet());
+        names.sort((a, b) -> {
+            int byScore = Double.compare(SearchIndex.score(expression, b), SearchIndex.score(expression, a));
+            if (byScore != 0) return byScore;
+            int byHolders = Integer.compare(byName.get(b).size(), byName.get(a).size());
+            return (byHolders != 0) ? byHolders : a.compareTo(b);
+        });
 
-            String response = in.readLine(); // Read the query response
-            if (response != null && response.startsWith("QUERYHIT")) {
-                // Response format: QUERYHIT:fileName:originLastModified:resultLastModified
-                String[] parts = response.split(":");
-                long originLastModified = Long.parseLong(parts[2]); // From origin server
-                long resultLastModified = Long.parseLong(parts[3]); // From query result
+        List<QueryHit> ranked = new ArrayList<>();
+        for (String name : names.subList(0, Math.min(limit, names.size()))) {
+            ranked.addAll(byName.get(name));
+        }
+        metrics.histogram("search_results").record(Math.min(limit, names.size()));
+        return ranked;
+    }
 
-                if (resultLastModified < originLastModified) {
-                    invalidResults++; // Increment invalid results
-                    System.out.println(nodeName + ": Invalid result for file " + fileName);
-                } else {
-                    System.out.println(nodeName + ": Valid result for file " + fileName);
+    // Sends a query and collects every QUERYHIT that arrives within the query timeout
+    private List<QueryHit> flood(Message query, String requestType) throws IOException {
+        List<QueryHit> hits = Collections.synchronizedList(new ArrayList<>());
+        PeerConnection connection = connections.getConnection(superPeer);
+        long sentAt = System.nanoTime();
+        connection.addListener(query.getMessageId(), response -> {
+            if (response.getType() != Message.QUERYHIT) return;
+            hits.add(QueryHit.fromMessage(response));
+            if (hits.size() == 1) recordRequest(requestType, sentAt); // Time to first hit
+        });
+        try {
+            connection.send(query);
+            Thread.sleep(queryTimeout); // Hits from remote super-peers trickle in along the reverse path
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connection.removeListener(query.getMessageId());
+        }
+        synchronized (hits) {
+            return withOriginVersions(hits);
+        }
+    }
+
+    // A super-peer holding only copies of a file cannot tell whether they are current. The origin's super-peer
+    // answers with the origin's version, which then judges every copy of the file.
+    private static List<QueryHit> withOriginVersions(List<QueryHit> hits) {
+        Map<String, Integer> originVersions = new HashMap<>();
+        for (QueryHit hit : hits) {
+            if (hit.getOriginVersion() >= 0) originVersions.merge(hit.getFileName(), hit.getOriginVersion(), Math::max);
+        }
+        List<QueryHit> resolved = new ArrayList<>(hits.size());
+        for (QueryHit hit : hits) {
+            Integer originVersion = originVersions.get(hit.getFileName());
+            resolved.add((originVersion == null || hit.getOriginVersion() >= 0) ? hit : hit.withOriginVersion(originVersion));
+        }
+        return resolved;
+    }
+
+    // Fetches the file from the leaf holding it and records the new replica
+    public void downloadFile(String fileName, String server, int version) throws IOException {
+        if (isOwned(fileName) || syncStaleCopy(fileName)) return; // Never overwrite an owned file
+        downloadFrom(fileName, server, version);
+    }
+
+    private void downloadFrom(String fileName, String server, int version) throws IOException {
+        long startedAt = System.nanoTime();
+        FileDownloader.Header header = downloader.download(fileName, server, PeerDirectory.getFilePort(server), version,
+                nodeDirectory("downloads"));
+        if (header == null) return;
+        metrics.counter("download_bytes").add(header.getTotalSize());
+        recordCopy(fileName, header, "DOWNLOAD", startedAt, server);
+    }
+
+    // Fetches the file from every up-to-date holder among the hits at once, falling back to the best single
+    // holder when there is only one or the swarm fails
+    public void downloadFile(String fileName, List<QueryHit> hits) throws IOException {
+        if (isOwned(fileName) || syncStaleCopy(fileName)) return;
+
+        List<String> holders = swarmSources(hits);
+        if (swarmDownloads && holders.size() > 1) {
+            int version = newestVersion(hits);
+            long startedAt = System.nanoTime();
+            try {
+                FileDownloader.Header header = swarmDownloader.download(fileName, holders, version,
+                        nodeDirectory("downloads"));
+                if (header != null) {
+                    metrics.counter("download_bytes").add(header.getTotalSize());
+                    recordCopy(fileName, header, "DOWNLOAD", startedAt, holders.size() + " holders");
+                    return;
                 }
+            } catch (IOException e) {
+                Log.warn(nodeName + ": Swarm download of " + fileName + " failed, trying one holder: " + e.getMessage());
             }
         }
+        QueryHit source = pickDownloadSource(hits);
+        if (source != null) downloadFrom(fileName, source.getHolder(), source.getVersion());
     }
 
-    public void downloadFile(String fileName, String server) throws IOException {
-        try (Socket socket = new Socket("localhost", getPort(server));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            out.println("DOWNLOAD:" + nodeName + ":" + fileName);
+    // An invalidated copy usually differs from the new version in a few blocks, so only those are fetched from
+    // the origin. False when there is no such copy or it could not be patched, leaving a full download to the caller.
+    private boolean syncStaleCopy(String fileName) {
+        FileEntry stale = downloadedFiles.get(fileName);
+        if (!deltaSync || stale == null || stale.isValid()) return false;
+        File copy = new File(nodeDirectory("downloads"), fileName);
+        if (copy.length() < DeltaSync.MIN_FILE_SIZE) return false;
+
+        String origin = stale.getOriginServer();
+        long startedAt = System.nanoTime();
+        try {
+            FileDownloader.Header header = downloader.syncDelta(fileName, origin, PeerDirectory.getFilePort(origin), copy);
+            if (header == null) return false;
+            metrics.counter("delta_bytes").add(header.getLength()); // Only the changed bytes crossed the network
+            metrics.counter("delta_reused_bytes").add(header.getTotalSize() - header.getLength());
+            recordCopy(fileName, header, "DELTA", startedAt, origin);
+            return true;
+        } catch (IOException e) {
+            Log.warn(nodeName + ": Delta sync of " + fileName + " failed, downloading it whole: " + e.getMessage());
+            return false;
         }
     }
 
+    // Distinct other holders of the newest version among the fresh hits
+    private List<String> swarmSources(List<QueryHit> hits) {
+        int version = newestVersion(hits);
+        Set<String> holders = new LinkedHashSet<>();
+        for (QueryHit hit : hits) {
+            if (!hit.isStale() && hit.getVersion() == version && !hit.getHolder().equals(nodeName)) holders.add(hit.getHolder());
+        }
+        return new ArrayList<>(holders);
+    }
+
+    private static int newestVersion(List<QueryHit> hits) {
+        int version = -1;
+        for (QueryHit hit : hits) {
+            if (!hit.isStale()) version = Math.max(version, hit.getVersion());
+        }
+        return version;
+    }
+
+    private boolean isOwned(String fileName) {
+        FileEntry existing = downloadedFiles.get(fileName);
+        return existing != null && existing.getOriginServer().equals(nodeName);
+    }
+
+    private void recordCopy(String fileName, FileDownloader.Header header, String type, long startedAt, String from)
+            throws IOException {
+        recordRequest(type, startedAt);
+
+        FileEntry entry = new FileEntry(fileName, header.getVersion(), header.getOrigin(), defaultTTR);
+        if (!downloadedFiles.put(entry, header.getTotalSize())) {
+            Log.warn(nodeName + ": " + fileName + " (" + header.getTotalSize() + " bytes) is larger than the whole cache");
+            return;
+        }
+        subscribe(entry);
+        offerCopy(entry);
+        schedulePoll(entry);
+        Log.debug(() -> nodeName + ": " + type + " of " + fileName + " (version " + header.getVersion() + ", " +
+                header.getTotalSize() + " bytes) from " + from);
+    }
+
+    // Asks the super-peer to push invalidations for this copy until the lease runs out
+    private void subscribe(FileEntry file) throws IOException {
+        String messageId = UUID.randomUUID().toString();
+        Message subscribeMessage = new Message(Message.SUBSCRIBE, messageId, nodeName, file.getFileName(),
+                Integer.toString(file.getVersion()));
+        long sentAt = System.nanoTime();
+        Message response = connections.request(superPeer, subscribeMessage, POLL_TIMEOUT_MS);
+        if (response == null) return; // No lease; pull covers this copy
+        recordRequest(Message.SUBSCRIBE, sentAt);
+
+        // Response format: LEASE:messageId:fileName:expiry (0 when push is disabled)
+        file.setLeaseExpiry(response.getLongField(1));
+    }
+
+    // Keeps retrying in the background until the super-peer is back, then reconciles this leaf's files with it
+    private void reconnectToSuperPeer() {
+        if (!registered || !reconnecting.compareAndSet(false, true)) return;
+        Thread reconnector = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                    try {
+                        registerFilesWithSuperPeer();
+                        return;
+                    } catch (IOException e) {
+                        // Still down
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                reconnecting.set(false);
+            }
+        }, nodeName + "-reconnect");
+        reconnector.setDaemon(true);
+        reconnector.start();
+    }
+
+    // Invalidations the super-peer pushes to caches holding a lease
+    private void handlePushedMessage(Message message) {
+        if (message.getType() != Message.INVALIDATION) return;
+
+        // Format: INVALIDATION:messageId:originServer:fileName:version
+        String fileName = message.getField(1);
+        int newVersion = message.getIntField(2);
+
+        FileEntry file = downloadedFiles.get(fileName);
+        if (file == null || file.getOriginServer().equals(nodeName) || file.getVersion() >= newVersion) return;
+        if (file.isValid()) copyInvalidated(file, newVersion, true);
+        file.markAsInvalid();
+        downloadedFiles.invalidated(fileName);
+        file.setLeaseExpiry(0);
+        pollScheduler.cancel(fileName); // Nothing left to poll until the file is downloaded again
+        Log.debug(() -> nodeName + ": Copy of " + fileName + " invalidated by push");
+    }
+
+    // Prefers an up-to-date replica held by some other leaf
+    public QueryHit pickDownloadSource(List<QueryHit> hits) {
+        QueryHit fallback = null;
+        for (QueryHit hit : hits) {
+            if (hit.getHolder().equals(nodeName)) continue;
+            if (!hit.isStale()) return hit;
+            if (fallback == null) fallback = hit;
+        }
+        return fallback;
+    }
+
+    private void recordRequest(String type, long startedAt) {
+        long nanos = System.nanoTime() - startedAt;
+        metrics.histogram("request_ns", type).record(nanos);
+        if (observer != null) observer.onRequestCompleted(type, nanos);
+    }
+
+    private void copyInvalidated(FileEntry file, int newVersion, boolean pushed) {
+        metrics.counter("copies_invalidated", pushed ? "push" : "poll").increment();
+        try {
+            sendFileBatches(Message.UNREGISTER, List.of(file.getFileName())); // No longer offered to downloaders
+        } catch (IOException e) {
+            Log.debug(() -> nodeName + ": Could not withdraw stale copy of " + file.getFileName() + ": " + e.getMessage());
+        }
+        if (observer != null) observer.onCopyInvalidated(file.getFileName(), file.getVersion(), newVersion, pushed);
+    }
+
+    // The copy is no longer on disk, so it is no longer offered or polled
+    private void copyEvicted(FileEntry file) {
+        pollScheduler.cancel(file.getFileName());
+        if (!file.isValid()) return; // Already withdrawn when it was invalidated
+        try {
+            sendFileBatches(Message.UNREGISTER, List.of(file.getFileName()));
+        } catch (IOException e) {
+            Log.debug(() -> nodeName + ": Could not withdraw evicted copy of " + file.getFileName() + ": " + e.getMessage());
+        }
+        Log.debug(() -> nodeName + ": Evicted copy of " + file.getFileName());
+    }
+
     public void printStatistics() {
-        double invalidPercentage = (totalQueries == 0) ? 0 : (invalidResults * 100.0 / totalQueries);
-        System.out.println(nodeName + ": Total Queries: " + totalQueries + ", Invalid Results: " + invalidResults +
+        long queries = totalQueries.sum();
+        long invalid = invalidResults.sum();
+        double invalidPercentage = (queries == 0) ? 0 : (invalid * 100.0 / queries);
+        Log.info(nodeName + ": Total Queries: " + queries + ", Invalid Results: " + invalid +
                 ", Invalid Percentage: " + invalidPercentage + "%");
-    }
 
-    private int getPort(String peerName) {
-        return 8000 + Integer.parseInt(peerName.replaceAll("\\D+", ""));
+        long hits = downloadedFiles.getHits();
+        long reads = hits + downloadedFiles.getMisses();
+        double hitPercentage = (reads == 0) ? 0 : (hits * 100.0 / reads);
+        Log.info(nodeName + ": Cache Hits: " + hits + ", Misses: " + (reads - hits) + ", Hit Rate: " + hitPercentage +
+                "%, Evictions: " + downloadedFiles.getEvictions() + ", Cached: " + downloadedFiles.getCopyCount() +
+                " copies, " + downloadedFiles.getCopyBytes() + " bytes");
     }
 
     public void setPullEnabled(boolean enabled) {
@@ -151,40 +593,168 @@ public class LeafNode {
         this.defaultTTR = ttr;
     }
 
+    public void setQueryTTL(int queryTTL) {
+        this.queryTTL = queryTTL;
+    }
+
+    public void setQueryTimeout(long queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    public void setBinaryProtocol(boolean binaryProtocol) {
+        connections.setBinaryPreferred(binaryProtocol);
+    }
+
+    public void setSwarmDownloads(boolean swarmDownloads) {
+        this.swarmDownloads = swarmDownloads;
+    }
+
+    public void setDeltaSync(boolean deltaSync) {
+        this.deltaSync = deltaSync;
+    }
+
+    public void setBaseDirectory(File baseDirectory) {
+        this.baseDirectory = baseDirectory;
+        downloadedFiles.setDirectory(nodeDirectory("downloads"));
+    }
+
+    // Budgets for downloaded copies; 0 lifts a limit. Owned files are never evicted.
+    public void setCacheLimits(long maxBytes, int maxFiles, ReplicaCache.Policy policy) {
+        downloadedFiles.setMaxBytes(maxBytes);
+        downloadedFiles.setMaxFiles(maxFiles);
+        downloadedFiles.setPolicy(policy);
+    }
+
+    public void setObserver(LeafObserver observer) {
+        this.observer = observer;
+    }
+
+    // Leaves may share one registry, e.g. under load testing; gauges then report the sum over all of them
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        this.swarmDownloader = new SwarmDownloader(nodeName, downloader, metrics);
+        metrics.gauge("queries", totalQueries::sum);
+        metrics.gauge("invalid_results", invalidResults::sum);
+        metrics.gauge("cached_files", downloadedFiles::size);
+        metrics.gauge("cached_copy_bytes", downloadedFiles::getCopyBytes);
+        metrics.gauge("cache_hits", downloadedFiles::getHits);
+        metrics.gauge("cache_misses", downloadedFiles::getMisses);
+        metrics.gauge("cache_evictions", downloadedFiles::getEvictions);
+        metrics.gauge("poll_queue_depth", pollScheduler::size);
+        metrics.gauge("peer_connections", connections::size);
+        metrics.gauge("invalidation_queue_depth", () -> (invalidationQueue == null) ? 0 : invalidationQueue.size());
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    // The copy or owned file this leaf holds, or null
+    public FileEntry getFileEntry(String fileName) {
+        return downloadedFiles.get(fileName);
+    }
+
+    // A read served locally: the owned file or a copy still believed valid. Null is a cache miss, and the
+    // caller searches for and downloads the file.
+    public FileEntry getValidCopy(String fileName) {
+        return downloadedFiles.lookup(fileName);
+    }
+
+    private File nodeDirectory(String name) {
+        return new File(baseDirectory, nodeName + "/" + name);
+    }
+
     public void startPolling() {
         if (!pullEnabled) return;
 
+        for (FileEntry file : downloadedFiles.files()) {
+            schedulePoll(file);
+        }
         new Thread(() -> {
             while (true) {
                 try {
-                    pollForUpdates(); // Poll for updates
-                    Thread.sleep(1000); // Polling interval: 1 second
+                    pollForUpdates(); // Sleeps until the next TTR expires
+                } catch (InterruptedException e) {
+                    return;
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    Log.error(nodeName + ": Polling failed", e);
                 }
             }
         }).start();
     }
 
-    private void pollForUpdates() throws IOException {
-        for (FileEntry file : downloadedFiles.values()) {
-            if (file.isExpired()) { // Check if TTR has expired
-                try (Socket socket = new Socket("localhost", getPort(file.getOriginServer()))) {
-                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                    out.println("POLL:" + nodeName + ":" + file.getFileName() + ":" + file.getVersion());
+    private void schedulePoll(FileEntry file) {
+        if (file.getOriginServer().equals(nodeName)) return; // Owners never poll themselves
+        // While a lease is live the super-peer pushes changes, so the first poll waits for the lease to lapse
+        pollScheduler.schedule(file.getFileName(), Math.max(file.getExpiryTime(), file.getLeaseExpiry()));
+    }
 
-                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    String response = in.readLine();
+    private void pollForUpdates() throws IOException, InterruptedException {
+        // Group every file whose TTR is due by the super-peer its origin is attached to, which holds the
+        // origin's catalog, so each of those super-peers gets one round trip per batch
+        Map<String, List<FileEntry>> bySuperPeer = new HashMap<>();
+        for (String fileName : pollScheduler.takeDue()) {
+            FileEntry file = downloadedFiles.get(fileName);
+            if (file == null) continue;
+            if (file.getLeaseExpiry() > System.currentTimeMillis() + POLL_COALESCE_MS) { // Lease was renewed
+                schedulePoll(file);
+                continue;
+            }
+            String originSuperPeer = PeerDirectory.getSuperPeer(file.getOriginServer());
+            if (originSuperPeer == null) {
+                Log.warn(nodeName + ": No super-peer known for " + file.getOriginServer() + ", not polling " + fileName);
+                continue;
+            }
+            bySuperPeer.computeIfAbsent(originSuperPeer, k -> new ArrayList<>()).add(file);
+        }
 
-                    if (response.startsWith("VALID")) {
-                        String[] parts = response.split(":");
-                        int newTTR = Integer.parseInt(parts[2]);
-                        file.refreshTTR(newTTR); // Update TTR
-                    } else if (response.startsWith("INVALID")) {
-                        file.markAsInvalid(); // Mark file as invalid
-                    }
-                }
+        for (Map.Entry<String, List<FileEntry>> superPeer : bySuperPeer.entrySet()) {
+            List<FileEntry> files = superPeer.getValue();
+            for (int i = 0; i < files.size(); i += POLL_BATCH_SIZE) {
+                pollBatch(superPeer.getKey(), files.subList(i, Math.min(files.size(), i + POLL_BATCH_SIZE)));
+            }
+        }
+    }
+
+    private void pollBatch(String originSuperPeer, List<FileEntry> files) throws IOException {
+        // Format: POLLBATCH:messageId:requester:fileName:version[:fileName:version...]
+        String[] fields = new String[1 + 2 * files.size()];
+        fields[0] = nodeName;
+        Map<String, FileEntry> byName = new HashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            FileEntry file = files.get(i);
+            fields[1 + 2 * i] = file.getFileName();
+            fields[2 + 2 * i] = Integer.toString(file.getVersion());
+            byName.put(file.getFileName(), file);
+        }
+        Message pollMessage = new Message(Message.POLLBATCH, UUID.randomUUID().toString(), fields);
+
+        Log.debug(() -> nodeName + ": Polling " + files.size() + " file(s) at " + originSuperPeer);
+        long sentAt = System.nanoTime();
+        Message response = connections.request(originSuperPeer, pollMessage, POLL_TIMEOUT_MS);
+        if (response == null) { // The origin's super-peer did not answer in time; try again later
+            metrics.counter("poll_timeouts").increment();
+            long retryAt = System.currentTimeMillis() + POLL_RETRY_MS;
+            for (FileEntry file : files) {
+                pollScheduler.schedule(file.getFileName(), retryAt);
+            }
+            return;
+        }
+        recordRequest(Message.POLLBATCH, sentAt);
+
+        // Response format: POLLRESULT:messageId:status:fileName:value[:status:fileName:value...]
+        for (int i = 0; i + 2 < response.getFieldCount(); i += 3) {
+            FileEntry file = byName.get(response.getField(i + 1));
+            if (file == null) continue;
+            if (response.getField(i).equals(Message.VALID)) {
+                file.refreshTTR(response.getIntField(i + 2)); // Update TTR
+                schedulePoll(file);
+            } else if (response.getField(i).equals(Message.INVALID)) {
+                if (file.isValid()) copyInvalidated(file, response.getIntField(i + 2), false);
+                file.markAsInvalid(); // Mark file as invalid; polling resumes once it is downloaded again
+                downloadedFiles.invalidated(file.getFileName()); // First to go when the cache needs room
             }
+            // MISSING: the origin no longer has the file, so stop polling it
         }
     }
 }
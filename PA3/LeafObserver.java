@@ -0,0 +1,8 @@
+// Hooks for measuring a leaf from outside, as LoadGenerator does. Called on the thread that did the work.
+public interface LeafObserver {
+    // QUERY (until the first hit), DOWNLOAD, SUBSCRIBE or POLLBATCH finished after this many nanoseconds
+    void onRequestCompleted(String type, long nanos);
+
+    // A cached copy was found stale, either by a pushed INVALIDATION or by a poll
+    void onCopyInvalidated(String fileName, int cachedVersion, int newVersion, boolean pushed);
+}
@@ -0,0 +1,40 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Subscribers holding leases on files, keyed by file name. Expired leases are ignored and pruned lazily.
+public class LeaseTable {
+    private Map<String, Map<String, Long>> leases = new ConcurrentHashMap<>(); // fileName -> subscriber -> expiry
+
+    // Grants or extends a lease; an earlier expiry never shortens an existing one
+    public void grant(String fileName, String subscriber, long expiry) {
+        leases.computeIfAbsent(fileName, k -> new ConcurrentHashMap<>()).merge(subscriber, expiry, Math::max);
+    }
+
+    public void revoke(String fileName, String subscriber) {
+        leases.computeIfPresent(fileName, (name, subscribers) -> {
+            subscribers.remove(subscriber);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+    }
+
+    public List<String> getLiveSubscribers(String fileName) {
+        Map<String, Long> subscribers = leases.get(fileName);
+        if (subscribers == null) return Collections.emptyList();
+
+        long now = System.currentTimeMillis();
+        List<String> live = new ArrayList<>();
+        for (Map.Entry<String, Long> lease : subscribers.entrySet()) {
+            if (lease.getValue() > now) {
+                live.add(lease.getKey());
+            } else {
+                subscribers.remove(lease.getKey(), lease.getValue());
+            }
+        }
+        if (subscribers.isEmpty()) leases.remove(fileName, subscribers);
+        return live;
+    }
+
+    public int getFileCount() {
+        return leases.size();
+    }
+}
@@ -0,0 +1,227 @@
+import java.io.*;
+
+// Settings for LoadGenerator, read from a KEY=VALUE file such as load_config.txt
+public class LoadConfig {
+    private long seed = 42;
+    private String mode = "both";        // push, pull or both (each in its own JVM)
+    private int superPeers = 20;
+    private int leaves = 200;
+    private String topology = "random";  // all, ring or random
+    private int degree = 4;              // Neighbors per super-peer in the random topology
+    private int files = 2000;
+    private int fileSize = 1024;
+    private double zipfExponent = 1.0;              // Query popularity skew
+    private double modificationZipfExponent = 0.0;  // 0 modifies files uniformly
+    private double queryRate = 100;                 // Per second, across all leaves
+    private double modificationRate = 10;
+    private int warmupSeconds = 5;
+    private int durationSeconds = 30;
+    private int ttr = 10000;
+    private int queryTTL = 3;
+    private long queryTimeout = 500;
+    private long leaseDuration = 60000;
+    private String serverMode = "nio";
+    private int ioThreads = 1;
+    private boolean binaryProtocol = true;
+    private int superPeerPortBase = 10000;
+    private int filePortBase = 20000;
+    private int workerThreads = 256;
+    private Log.Level logLevel = Log.Level.WARN;
+    private int metricsPort = 0;
+    private int queryCacheSize = 10000;
+    private int replicaCacheFiles = 0;   // Copies per leaf; 0 keeps every copy
+    private ReplicaCache.Policy replicaCachePolicy = ReplicaCache.Policy.LRU;
+
+    public void parse(String configPath) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(configPath));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.split("#")[0].trim(); // Remove comments
+            if (line.isEmpty()) continue;
+
+            String[] parts = line.split("=", 2);
+            String key = parts[0].trim();
+            String value = (parts.length > 1) ? parts[1].trim() : "";
+            if (key.equals("SEED")) {
+                seed = Long.parseLong(value);
+            } else if (key.equals("MODE")) {
+                mode = value.toLowerCase();
+            } else if (key.equals("SUPER_PEERS")) {
+                superPeers = Integer.parseInt(value);
+            } else if (key.equals("LEAVES")) {
+                leaves = Integer.parseInt(value);
+            } else if (key.equals("TOPOLOGY")) {
+                topology = value.toLowerCase();
+            } else if (key.equals("DEGREE")) {
+                degree = Integer.parseInt(value);
+            } else if (key.equals("FILES")) {
+                files = Integer.parseInt(value);
+            } else if (key.equals("FILE_SIZE")) {
+                fileSize = Integer.parseInt(value);
+            } else if (key.equals("ZIPF_EXPONENT")) {
+                zipfExponent = Double.parseDouble(value);
+            } else if (key.equals("MODIFICATION_ZIPF_EXPONENT")) {
+                modificationZipfExponent = Double.parseDouble(value);
+            } else if (key.equals("QUERY_RATE")) {
+                queryRate = Double.parseDouble(value);
+            } else if (key.equals("MODIFICATION_RATE")) {
+                modificationRate = Double.parseDouble(value);
+            } else if (key.equals("WARMUP")) {
+                warmupSeconds = Integer.parseInt(value);
+            } else if (key.equals("DURATION")) {
+                durationSeconds = Integer.parseInt(value);
+            } else if (key.equals("TTR")) {
+                ttr = Integer.parseInt(value);
+            } else if (key.equals("QUERY_TTL")) {
+                queryTTL = Integer.parseInt(value);
+            } else if (key.equals("QUERY_TIMEOUT")) {
+                queryTimeout = Long.parseLong(value);
+            } else if (key.equals("LEASE_DURATION")) {
+                leaseDuration = Long.parseLong(value);
+            } else if (key.equals("SERVER_MODE")) {
+                serverMode = value.toLowerCase();
+            } else if (key.equals("IO_THREADS")) {
+                ioThreads = Integer.parseInt(value);
+            } else if (key.equals("WIRE_PROTOCOL")) {
+                binaryProtocol = !value.equalsIgnoreCase("text");
+            } else if (key.equals("SUPER_PEER_PORT_BASE")) {
+                superPeerPortBase = Integer.parseInt(value);
+            } else if (key.equals("FILE_PORT_BASE")) {
+                filePortBase = Integer.parseInt(value);
+            } else if (key.equals("WORKER_THREADS")) {
+                workerThreads = Integer.parseInt(value);
+            } else if (key.equals("LOG_LEVEL")) {
+                logLevel = Log.parseLevel(value);
+            } else if (key.equals("METRICS_PORT")) {
+                metricsPort = Integer.parseInt(value);
+            } else if (key.equals("QUERY_CACHE_SIZE")) {
+                queryCacheSize = Integer.parseInt(value);
+            } else if (key.equals("REPLICA_CACHE_FILES")) {
+                replicaCacheFiles = Integer.parseInt(value);
+            } else if (key.equals("REPLICA_CACHE_POLICY")) {
+                replicaCachePolicy = ReplicaCache.Policy.valueOf(value.toUpperCase());
+            }
+        }
+        reader.close();
+    }
+
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public int getSuperPeers() {
+        return superPeers;
+    }
+
+    public int getLeaves() {
+        return leaves;
+    }
+
+    public String getTopology() {
+        return topology;
+    }
+
+    public int getDegree() {
+        return degree;
+    }
+
+    public int getFiles() {
+        return files;
+    }
+
+    public int getFileSize() {
+        return fileSize;
+    }
+
+    public double getZipfExponent() {
+        return zipfExponent;
+    }
+
+    public double getModificationZipfExponent() {
+        return modificationZipfExponent;
+    }
+
+    public double getQueryRate() {
+        return queryRate;
+    }
+
+    public double getModificationRate() {
+        return modificationRate;
+    }
+
+    public int getWarmupSeconds() {
+        return warmupSeconds;
+    }
+
+    public int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public int getTTR() {
+        return ttr;
+    }
+
+    public int getQueryTTL() {
+        return queryTTL;
+    }
+
+    public long getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    public long getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    public String getServerMode() {
+        return serverMode;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public boolean isBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    public int getSuperPeerPortBase() {
+        return superPeerPortBase;
+    }
+
+    public int getFilePortBase() {
+        return filePortBase;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public Log.Level getLogLevel() {
+        return logLevel;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public int getQueryCacheSize() {
+        return queryCacheSize;
+    }
+
+    public int getReplicaCacheFiles() {
+        return replicaCacheFiles;
+    }
+
+    public ReplicaCache.Policy getReplicaCachePolicy() {
+        return replicaCachePolicy;
+    }
+}
@@ -0,0 +1,396 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Runs a whole overlay in one JVM over loopback and drives it with a seeded, open-loop workload:
+// Zipf-distributed reads by random leaves and modifications by file origins, arriving at fixed
+// average rates whether or not the system keeps up. Reports latency percentiles per message type
+// and how often a read was served from a stale cached copy.
+// Usage: java LoadGenerator [load_config.txt] [push|pull|both]
+public class LoadGenerator implements LeafObserver {
+    private static final long LATE_START_NANOS = 10_000_000; // Work starting later than this behind schedule is counted
+    private static final String[] REPORTED_TYPES = {Message.QUERY, "DOWNLOAD", "DELTA", Message.SUBSCRIBE, Message.POLLBATCH,
+            "INVALIDATION (push)", "INVALIDATION (poll)"};
+
+    private LoadConfig config;
+    private boolean push;
+    private File baseDirectory;
+    private Map<String, LeafNode> leaves = new HashMap<>();
+    private List<SuperPeer> superPeers = new ArrayList<>();
+    private String[] leafNames;
+    private String[] fileNames;   // Indexed by popularity rank
+    private String[] fileOrigins;
+    private Set<String> fetchesInFlight = ConcurrentHashMap.newKeySet(); // leaf/file, so a leaf never downloads a file twice at once
+    private Map<String, Long> modificationTimes = new ConcurrentHashMap<>(); // fileName:version -> System.nanoTime()
+    private volatile Recorder recorder = new Recorder(); // Replaced when the warmup ends
+    private Metrics leafMetrics = new Metrics("LeafNode", "leaves"); // One registry for all leaves keeps memory flat
+
+    public LoadGenerator(LoadConfig config, boolean push) {
+        this.config = config;
+        this.push = push;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String configPath = (args.length > 0) ? args[0] : "load_config.txt";
+        LoadConfig config = new LoadConfig();
+        config.parse(configPath);
+        if (args.length > 1) config.setMode(args[1].toLowerCase());
+
+        if (config.getMode().equals("both")) {
+            // Fresh JVMs, so the second run sees neither the first one's ports nor its warmed-up JIT
+            String java = ProcessHandle.current().info().command().orElse("java");
+            for (String mode : new String[]{"push", "pull"}) {
+                new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "LoadGenerator", configPath, mode)
+                        .inheritIO().start().waitFor();
+            }
+            return;
+        }
+
+        new LoadGenerator(config, config.getMode().equals("push")).run();
+        System.exit(0); // Node threads never stop on their own
+    }
+
+    public void run() throws Exception {
+        Log.setLevel(config.getLogLevel());
+        if (config.getMetricsPort() > 0) MetricsServer.start(config.getMetricsPort());
+
+        baseDirectory = Files.createTempDirectory("loadgen").toFile();
+        try {
+            Map<String, List<String>> topology = buildTopology();
+            createFiles();
+            startSuperPeers(topology);
+            startLeaves(new ArrayList<>(topology.keySet()));
+            drive();
+            Log.flush();
+            report(System.out);
+        } finally {
+            deleteRecursively(baseDirectory);
+        }
+    }
+
+    // super-peerN -> neighbors. The random topology is a ring plus random links, so it is always connected.
+    private Map<String, List<String>> buildTopology() {
+        int count = config.getSuperPeers();
+        List<Set<Integer>> links = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            links.add(new TreeSet<>());
+        }
+        String topology = config.getTopology();
+        if (topology.equals("all")) {
+            for (int i = 0; i < count; i++) {
+                for (int j = 0; j < count; j++) {
+                    if (i != j) links.get(i).add(j);
+                }
+            }
+        } else {
+            for (int i = 0; i < count && count > 1; i++) {
+                links.get(i).add((i + 1) % count);
+                links.get((i + 1) % count).add(i);
+            }
+            if (topology.equals("random")) {
+                Random random = new Random(config.getSeed() ^ 0x5DEECE66DL);
+                int degree = Math.min(config.getDegree(), count - 1);
+                for (int i = 0; i < count; i++) {
+                    while (links.get(i).size() < degree) {
+                        int j = random.nextInt(count);
+                        if (j == i) continue;
+                        links.get(i).add(j);
+                        links.get(j).add(i);
+                    }
+                }
+            }
+        }
+
+        Map<String, List<String>> neighbors = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            List<String> names = new ArrayList<>();
+            for (int j : links.get(i)) {
+                names.add("super-peer" + (j + 1));
+            }
+            neighbors.put("super-peer" + (i + 1), names);
+            PeerDirectory.assignMessagePort("super-peer" + (i + 1), config.getSuperPeerPortBase() + i + 1);
+        }
+        return neighbors;
+    }
+
+    // Gives every file a random origin leaf and writes it into that leaf's shared/ directory
+    private void createFiles() throws IOException {
+        Random random = new Random(config.getSeed() + 1);
+        leafNames = new String[config.getLeaves()];
+        for (int i = 0; i < leafNames.length; i++) {
+            leafNames[i] = "leaf" + (i + 1);
+        }
+
+        byte[] contents = new byte[config.getFileSize()];
+        random.nextBytes(contents);
+        fileNames = new String[config.getFiles()];
+        fileOrigins = new String[config.getFiles()];
+        for (int rank = 0; rank < fileNames.length; rank++) {
+            fileNames[rank] = "file" + rank + ".dat";
+            fileOrigins[rank] = leafNames[random.nextInt(leafNames.length)];
+            File shared = new File(baseDirectory, fileOrigins[rank] + "/shared");
+            shared.mkdirs();
+            Files.write(new File(shared, fileNames[rank]).toPath(), contents);
+        }
+    }
+
+    private void startSuperPeers(Map<String, List<String>> topology) throws InterruptedException {
+        for (Map.Entry<String, List<String>> node : topology.entrySet()) {
+            SuperPeer superPeer = new SuperPeer(node.getKey(), node.getValue());
+            superPeer.setPushEnabled(push);
+            superPeer.setServerMode(config.getServerMode());
+            superPeer.setIoThreads(config.getIoThreads());
+            superPeer.setDefaultTTR(config.getTTR());
+            superPeer.setTtrPolicy(new StaticTtrPolicy(config.getTTR()));
+            superPeer.setLeaseDuration(config.getLeaseDuration());
+            superPeer.setBinaryProtocol(config.isBinaryProtocol());
+            superPeer.setQueryCacheSize(config.getQueryCacheSize());
+            superPeer.setQueryTimeout(config.getQueryTimeout());
+            superPeers.add(superPeer);
+            Thread server = new Thread(() -> {
+                try {
+                    superPeer.startServer();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, node.getKey());
+            server.setDaemon(true);
+            server.start();
+        }
+        for (String superPeer : topology.keySet()) {
+            awaitListening(PeerDirectory.getMessagePort(superPeer));
+        }
+    }
+
+    private void awaitListening(int port) throws InterruptedException {
+        while (true) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    // Leaves attach to super-peers round-robin; polls for a leaf's files go to its super-peer
+    private void startLeaves(List<String> superPeers) throws IOException, InterruptedException {
+        for (int i = 0; i < leafNames.length; i++) {
+            String superPeer = superPeers.get(i % superPeers.size());
+            PeerDirectory.assignSuperPeer(leafNames[i], superPeer);
+            PeerDirectory.assignFilePort(leafNames[i], config.getFilePortBase() + i + 1);
+
+            LeafNode leaf = new LeafNode(leafNames[i], superPeer, new ArrayList<>());
+            leaf.setBaseDirectory(baseDirectory);
+            leaf.setDefaultTTR(config.getTTR());
+            leaf.setQueryTTL(config.getQueryTTL());
+            leaf.setQueryTimeout(config.getQueryTimeout());
+            leaf.setBinaryProtocol(config.isBinaryProtocol());
+            leaf.setPullEnabled(!push);
+            leaf.setCacheLimits(0, config.getReplicaCacheFiles(), config.getReplicaCachePolicy());
+            leaf.setObserver(this);
+            leaf.setMetrics(leafMetrics);
+            leaf.initializeOwnedFiles();
+            leaf.startFileServer();
+            leaf.registerFilesWithSuperPeer();
+            leaf.startPolling();
+            leaves.put(leafNames[i], leaf);
+        }
+        Thread.sleep(1000); // Registrations are one-way; give the super-peers time to apply them
+    }
+
+    // Issues reads and modifications at exponentially distributed intervals until the run ends
+    private void drive() throws InterruptedException {
+        Random queryRandom = new Random(config.getSeed() + 2);
+        Random modificationRandom = new Random(config.getSeed() + 3);
+        ZipfSampler queryPopularity = new ZipfSampler(fileNames.length, config.getZipfExponent());
+        ZipfSampler modificationPopularity = new ZipfSampler(fileNames.length, config.getModificationZipfExponent());
+        ExecutorService workers = Executors.newFixedThreadPool(config.getWorkerThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "loadgen-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(config.getWarmupSeconds());
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(config.getDurationSeconds());
+        long nextQuery = start + interval(queryRandom, config.getQueryRate());
+        long nextModification = start + interval(modificationRandom, config.getModificationRate());
+        boolean measuring = false;
+
+        while (true) {
+            long due = Math.min(nextQuery, nextModification);
+            if (due >= end) break;
+            if (!measuring && due >= measureFrom) {
+                recorder = new Recorder();
+                measuring = true;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+
+            if (nextQuery <= nextModification) {
+                String leaf = leafNames[queryRandom.nextInt(leafNames.length)];
+                int rank = queryPopularity.next(queryRandom);
+                long scheduledAt = nextQuery;
+                workers.execute(() -> read(leaf, rank, scheduledAt));
+                nextQuery += interval(queryRandom, config.getQueryRate());
+            } else {
+                int rank = modificationPopularity.next(modificationRandom);
+                long scheduledAt = nextModification;
+                workers.execute(() -> modify(rank, scheduledAt));
+                nextModification += interval(modificationRandom, config.getModificationRate());
+            }
+        }
+
+        workers.shutdown();
+        workers.awaitTermination(config.getQueryTimeout() + 30000, TimeUnit.MILLISECONDS);
+    }
+
+    private static long interval(Random random, double perSecond) {
+        if (perSecond <= 0) return Long.MAX_VALUE / 2; // Never
+        return (long) (-Math.log(1 - random.nextDouble()) / perSecond * 1e9);
+    }
+
+    // Serves the read from the leaf's cached copy if it believes the copy is valid, otherwise searches and downloads
+    private void read(String leafName, int rank, long scheduledAt) {
+        Recorder current = recorder;
+        if (System.nanoTime() - scheduledAt > LATE_START_NANOS) current.lateStarts.increment();
+        String fileName = fileNames[rank];
+        if (fileOrigins[rank].equals(leafName)) {
+            current.localReads.increment();
+            return;
+        }
+
+        LeafNode leaf = leaves.get(leafName);
+        FileEntry copy = leaf.getValidCopy(fileName);
+        if (copy != null) {
+            current.cachedReads.increment();
+            if (copy.getVersion() < originVersion(rank)) current.staleReads.increment();
+            return;
+        }
+
+        String fetchKey = leafName + "/" + fileName;
+        if (!fetchesInFlight.add(fetchKey)) {
+            current.joinedFetches.increment();
+            return;
+        }
+        try {
+            List<QueryHit> hits = leaf.searchFile(fileName);
+            if (leaf.pickDownloadSource(hits) == null) {
+                current.notFound.increment();
+                return;
+            }
+            leaf.downloadFile(fileName, hits);
+            current.fetches.increment();
+        } catch (IOException e) {
+            current.failures.increment();
+        } finally {
+            fetchesInFlight.remove(fetchKey);
+        }
+    }
+
+    private void modify(int rank, long scheduledAt) {
+        Recorder current = recorder;
+        if (System.nanoTime() - scheduledAt > LATE_START_NANOS) current.lateStarts.increment();
+        FileEntry file = leaves.get(fileOrigins[rank]).getFileEntry(fileNames[rank]);
+        synchronized (file) { // Same lock as incrementVersion, so the recorded version is the one created
+            modificationTimes.put(fileNames[rank] + ":" + (file.getVersion() + 1), System.nanoTime());
+            leaves.get(fileOrigins[rank]).modifyFile(fileNames[rank]);
+        }
+        current.modifications.increment();
+    }
+
+    private int originVersion(int rank) {
+        return leaves.get(fileOrigins[rank]).getFileEntry(fileNames[rank]).getVersion();
+    }
+
+    @Override
+    public void onRequestCompleted(String type, long nanos) {
+        recorder.latency(type).record(nanos);
+    }
+
+    // Measures staleness from the modification that first made this copy out of date
+    @Override
+    public void onCopyInvalidated(String fileName, int cachedVersion, int newVersion, boolean pushed) {
+        Long modifiedAt = modificationTimes.get(fileName + ":" + (cachedVersion + 1));
+        if (modifiedAt != null) {
+            recorder.latency(pushed ? "INVALIDATION (push)" : "INVALIDATION (poll)").record(System.nanoTime() - modifiedAt);
+        }
+    }
+
+    private void report(PrintStream out) {
+        Recorder result = recorder;
+        double seconds = config.getDurationSeconds();
+        out.println();
+        out.println("=== Load test: " + (push ? "push" : "pull") + ", seed " + config.getSeed() + " ===");
+        out.println(config.getSuperPeers() + " super-peers (" + config.getTopology() +
+                (config.getTopology().equals("random") ? ", degree " + config.getDegree() : "") + "), " +
+                config.getLeaves() + " leaves, " + config.getFiles() + " files of " + config.getFileSize() +
+                " bytes, query Zipf exponent " + config.getZipfExponent());
+        out.println("Offered " + config.getQueryRate() + " reads/s and " + config.getModificationRate() +
+                " modifications/s for " + config.getDurationSeconds() + " s after " + config.getWarmupSeconds() + " s warmup");
+        out.println(String.format("%-20s %9s %9s %9s %9s %9s %9s", "Type", "Count", "Per sec", "p50 ms", "p99 ms",
+                "p999 ms", "max ms"));
+        for (String type : REPORTED_TYPES) {
+            LatencyHistogram histogram = result.latency(type);
+            out.println(String.format("%-20s %9d %9.1f %9.2f %9.2f %9.2f %9.2f", type, histogram.getCount(),
+                    histogram.getCount() / seconds, millis(histogram.getPercentile(0.5)),
+                    millis(histogram.getPercentile(0.99)), millis(histogram.getPercentile(0.999)),
+                    millis(histogram.getMax())));
+        }
+
+        long cached = result.cachedReads.sum();
+        long stale = result.staleReads.sum();
+        out.println(String.format("Reads: %d from cache, %d of them stale (%.2f%%); %d fetched, %d not found, %d local",
+                cached, stale, (cached == 0) ? 0.0 : stale * 100.0 / cached, result.fetches.sum(),
+                result.notFound.sum(), result.localReads.sum()));
+        out.println("Modifications: " + result.modifications.sum());
+        long cacheHits = 0;
+        long cacheMisses = 0;
+        for (SuperPeer superPeer : superPeers) {
+            QueryResultCache cache = superPeer.getQueryResults();
+            if (cache == null) continue;
+            cacheHits += cache.getHits();
+            cacheMisses += cache.getMisses();
+        }
+        out.println(String.format("Query cache: %d answered, %d flooded (%.1f%% hit ratio, warmup included)", cacheHits,
+                cacheMisses, (cacheHits + cacheMisses == 0) ? 0.0 : cacheHits * 100.0 / (cacheHits + cacheMisses)));
+        out.println("Harness: " + result.lateStarts.sum() + " late starts, " + result.joinedFetches.sum() +
+                " reads joined a fetch in flight, " + result.failures.sum() + " failed fetches");
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    // Everything measured in one phase of the run
+    private static class Recorder {
+        private Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+        private LongAdder cachedReads = new LongAdder();
+        private LongAdder staleReads = new LongAdder();
+        private LongAdder fetches = new LongAdder();
+        private LongAdder notFound = new LongAdder();
+        private LongAdder localReads = new LongAdder();
+        private LongAdder joinedFetches = new LongAdder();
+        private LongAdder failures = new LongAdder();
+        private LongAdder modifications = new LongAdder();
+        private LongAdder lateStarts = new LongAdder();
+
+        LatencyHistogram latency(String type) {
+            return latencies.computeIfAbsent(type, k -> new LatencyHistogram());
+        }
+    }
+}
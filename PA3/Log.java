@@ -0,0 +1,109 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Console logger shared by every node in the JVM. Callers only check the level and enqueue; one background
+// thread does the printing, so a slow console never stalls a message handler. Lines that do not fit in the
+// queue are dropped and counted rather than blocking the caller.
+public class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int QUEUE_SIZE = 65536;
+    private static final int MAX_BATCH = 1024;     // Lines per console write
+    private static final long FLUSH_TIMEOUT_MS = 1000;
+
+    private static volatile Level level = Level.INFO;
+    private static final BlockingQueue<String> pending = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final LongAdder enqueued = new LongAdder();
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile long written;
+
+    static {
+        Thread writer = new Thread(Log::drainLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    // Accepts debug, info, warn, error or off in any case
+    public static Level parseLevel(String name) {
+        return Level.valueOf(name.trim().toUpperCase());
+    }
+
+    public static boolean isEnabled(Level candidate) {
+        return candidate.compareTo(level) >= 0;
+    }
+
+    // Per-message logging; the line is only built when debug output is on
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) enqueue(message.get());
+    }
+
+    public static void info(String message) {
+        if (isEnabled(Level.INFO)) enqueue(message);
+    }
+
+    public static void warn(String message) {
+        if (isEnabled(Level.WARN)) enqueue(message);
+    }
+
+    public static void error(String message, Throwable cause) {
+        if (!isEnabled(Level.ERROR)) return;
+        StringWriter trace = new StringWriter();
+        cause.printStackTrace(new PrintWriter(trace));
+        enqueue(message + System.lineSeparator() + trace.toString().trim());
+    }
+
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    // Waits briefly for everything logged so far to reach the console
+    public static void flush() {
+        long target = enqueued.sum();
+        long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MS;
+        while (written < target && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void enqueue(String line) {
+        if (pending.offer(line)) {
+            enqueued.increment();
+        } else {
+            dropped.increment();
+        }
+    }
+
+    private static void drainLoop() {
+        List<String> batch = new ArrayList<>(MAX_BATCH);
+        StringBuilder text = new StringBuilder();
+        while (true) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(batch, MAX_BATCH - 1);
+            for (String line : batch) {
+                text.append(line).append(System.lineSeparator());
+            }
+            System.out.print(text); // One write per batch instead of one per line
+            System.out.flush();
+            written += batch.size();
+            batch.clear();
+            text.setLength(0);
+        }
+    }
+}
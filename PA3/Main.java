@@ -1,3 +1,4 @@
+import java.io.File;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -11,6 +12,9 @@ public class Main {
         // Parse network configuration
         parser.parseNetworkConfig("network_config.txt");
 
+        Log.setLevel(parser.getLogLevel());
+        if (parser.getMetricsPort() > 0) MetricsServer.start(parser.getMetricsPort());
+
         // Retrieve configuration values
         boolean pullEnabled = parser.isPullEnabled();
         List<Integer> ttrValues = Arrays.asList(30000, 60000, 120000); // 30 sec, 1 min, 2 min TTRs
@@ -19,35 +23,64 @@ public class Main {
         Map<String, List<String>> superPeers = parser.getSuperPeers();
         Map<String, List<String>> leafNodes = parser.getLeafNodes();
 
+        // Polls for a leaf's files go to the super-peer it is attached to
+        for (Map.Entry<String, List<String>> leaves : leafNodes.entrySet()) {
+            for (String leaf : leaves.getValue()) {
+                PeerDirectory.assignSuperPeer(leaf, leaves.getKey());
+            }
+        }
+
         // Start super-peers
-        startSuperPeers(superPeers);
+        startSuperPeers(superPeers, parser);
 
         Thread.sleep(3000); // Allow super-peers to initialize
 
         // Test for different TTR values
         for (int ttr : ttrValues) {
-            System.out.println("\n=== Testing with TTR: " + ttr / 1000 + " seconds ===");
-            startLeafNodes(leafNodes, pullEnabled, ttr);
+            Log.info("\n=== Testing with TTR: " + ttr / 1000 + " seconds ===");
+            startLeafNodes(leafNodes, pullEnabled, ttr, parser);
 
             Thread.sleep(60000); // Run each test for 1 minute
         }
     }
 
-    private static void startSuperPeers(Map<String, List<String>> superPeers) {
+    private static void startSuperPeers(Map<String, List<String>> superPeers, ConfigParser parser) {
         for (String superPeer : superPeers.keySet()) {
             List<String> neighbors = superPeers.get(superPeer);
             new Thread(() -> {
                 try {
                     SuperPeer sp = new SuperPeer(superPeer, neighbors);
+                    sp.setPushEnabled(parser.isPushEnabled());
+                    sp.setServerMode(parser.getServerMode());
+                    sp.setIoThreads(parser.getIoThreads());
+                    sp.setDefaultTTR(parser.getDefaultTTR());
+                    sp.setTtrPolicy(createTtrPolicy(parser));
+                    sp.setSeenCacheLimits(parser.getSeenCacheSize(), parser.getSeenCacheTTL());
+                    sp.setInvalidationQueueLimits(parser.getInvalidationQueueSize(), parser.isBlockWhenQueueFull());
+                    sp.setLeaseDuration(parser.getLeaseDuration());
+                    sp.setBinaryProtocol(parser.isBinaryProtocol());
+                    sp.setQueryCacheSize(parser.getQueryCacheSize());
+                    sp.setQueryTimeout(parser.getQueryTimeout());
+                    if (!parser.getDataDirectory().isEmpty()) {
+                        sp.setDataDirectory(new File(parser.getDataDirectory()), parser.getSnapshotInterval());
+                    }
                     sp.startServer();
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    Log.error(superPeer + ": Failed to start", e);
                 }
             }).start();
         }
     }
 
-    private static void startLeafNodes(Map<String, List<String>> leafNodes, boolean pullEnabled, int defaultTTR) {
+    private static TtrPolicy createTtrPolicy(ConfigParser parser) {
+        if (parser.getTtrPolicy().equals("adaptive")) {
+            return new AdaptiveTtrPolicy(parser.getMinTTR(), parser.getMaxTTR());
+        }
+        return new StaticTtrPolicy(parser.getDefaultTTR());
+    }
+
+    private static void startLeafNodes(Map<String, List<String>> leafNodes, boolean pullEnabled, int defaultTTR,
+                                       ConfigParser parser) {
         Random random = new Random();
         AtomicInteger queryingNodesCount = new AtomicInteger(0);
 
@@ -57,12 +90,21 @@ public class Main {
                 new Thread(() -> {
                     try {
                         LeafNode ln = new LeafNode(leaf, superPeer, new ArrayList<>());
+                        ln.setQueryTTL(parser.getQueryTTL());
+                        ln.setQueryTimeout(parser.getQueryTimeout());
+                        ln.setBinaryProtocol(parser.isBinaryProtocol());
+                        ln.setDefaultTTR(defaultTTR);
+                        ln.setSwarmDownloads(parser.isSwarmDownloads());
+                        ln.setDeltaSync(parser.isDeltaSync());
+                        ln.setCacheLimits(parser.getReplicaCacheBytes(), parser.getReplicaCacheFiles(),
+                                parser.getReplicaCachePolicy());
                         ln.initializeOwnedFiles();
+                        ln.startFileServer();
                         ln.registerFilesWithSuperPeer();
+                        if (parser.isWatchShared()) ln.startWatching();
 
                         if (queryingNodesCount.getAndIncrement() < 3) { // Limit to 2-3 querying nodes
                             ln.setPullEnabled(pullEnabled);
-                            ln.setDefaultTTR(defaultTTR);
                             ln.startPolling(); // Start polling for updates
                             ln.simulateQueriesAndDownloads(random, ln.getOwnedFiles());
 
@@ -76,7 +118,7 @@ public class Main {
                             ln.simulateFileModifications(random); // Remaining nodes modify files
                         }
                     } catch (Exception e) {
-                        e.printStackTrace();
+                        Log.error(leaf + ": Failed to start", e);
                     }
                 }).start();
             }
@@ -0,0 +1,155 @@
+import java.util.*;
+
+// One protocol message, independent of whether it travels as a text line or a binary frame (see BinaryCodec).
+// Text form: TYPE[:messageId]:field1:field2...[:ttl[:hops]]
+// Only QUERY (TTL and hops) and INTEREST (TTL) carry the trailing TTL fields.
+public class Message {
+    public static final String HELLO = "HELLO";
+    public static final String REGISTER = "REGISTER";
+    public static final String UNREGISTER = "UNREGISTER";
+    public static final String POLL = "POLL";
+    public static final String POLLBATCH = "POLLBATCH";
+    public static final String POLLRESULT = "POLLRESULT";
+    public static final String VALID = "VALID";
+    public static final String INVALID = "INVALID";
+    public static final String MISSING = "MISSING";
+    public static final String INVALIDATION = "INVALIDATION";
+    public static final String INVALIDATIONBATCH = "INVALIDATIONBATCH";
+    public static final String QUERY = "QUERY";
+    public static final String QUERYHIT = "QUERYHIT";
+    public static final String SUBSCRIBE = "SUBSCRIBE";
+    public static final String LEASE = "LEASE";
+    public static final String INTEREST = "INTEREST";
+    public static final String DIGEST = "DIGEST";
+    public static final String DIGESTRESULT = "DIGESTRESULT";
+    public static final String SYNC = "SYNC";
+    public static final String ROUTETABLE = "ROUTETABLE";
+    public static final String ROUTERESET = "ROUTERESET";
+    public static final String REPLICA = "REPLICA";
+
+    // Binary type codes are indexes into this table, so new types may only be appended
+    private static final String[] TYPES = {HELLO, REGISTER, UNREGISTER, POLL, POLLBATCH, POLLRESULT, VALID, INVALID,
+            MISSING, INVALIDATION, INVALIDATIONBATCH, QUERY, QUERYHIT, SUBSCRIBE, LEASE, INTEREST, DIGEST, DIGESTRESULT, SYNC,
+            ROUTETABLE, ROUTERESET, REPLICA};
+    private static final Map<String, Integer> TYPE_CODES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < TYPES.length; i++) {
+            TYPE_CODES.put(TYPES[i], i);
+        }
+    }
+
+    private String type;
+    private String messageId; // null for REGISTER and UNREGISTER
+    private int ttl = -1;     // -1 when the type carries no TTL
+    private int hops = -1;
+    private String[] fields;
+
+    public Message(String type, String messageId, String... fields) {
+        this(type, messageId, -1, -1, fields);
+    }
+
+    public Message(String type, String messageId, int ttl, int hops, String... fields) {
+        this.type = type;
+        this.messageId = messageId;
+        this.ttl = ttl;
+        this.hops = hops;
+        this.fields = fields;
+    }
+
+    public static Message parse(String line) {
+        String[] parts = line.split(":");
+        String type = canonicalType(parts[0]);
+
+        int start = 1;
+        String messageId = null;
+        if (hasMessageId(type) && parts.length > 1) {
+            messageId = parts[1];
+            start = 2;
+        }
+
+        int end = parts.length;
+        int ttl = -1;
+        int hops = -1;
+        if (type == QUERY && end - start >= 3) { // QUERY:id:file:ttl:hops; older peers send QUERY:id:file
+            hops = Integer.parseInt(parts[--end]);
+            ttl = Integer.parseInt(parts[--end]);
+        } else if (type == INTEREST && end - start >= 4) { // INTEREST:id:from:file:expiry:ttl
+            ttl = Integer.parseInt(parts[--end]);
+        }
+        return new Message(type, messageId, ttl, hops, Arrays.copyOfRange(parts, start, end));
+    }
+
+    public String toText() {
+        StringBuilder line = new StringBuilder(type);
+        if (messageId != null) line.append(':').append(messageId);
+        for (String field : fields) {
+            line.append(':').append(field);
+        }
+        if (ttl >= 0) line.append(':').append(ttl);
+        if (hops >= 0) line.append(':').append(hops);
+        return line.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toText();
+    }
+
+    static boolean hasMessageId(String type) {
+        return type != REGISTER && type != UNREGISTER && type != REPLICA;
+    }
+
+    // Returns the shared constant for known types so they can be compared by reference
+    static String canonicalType(String type) {
+        Integer code = TYPE_CODES.get(type);
+        return (code == null) ? type : TYPES[code];
+    }
+
+    static int typeCode(String type) {
+        Integer code = TYPE_CODES.get(type);
+        if (code == null) throw new IllegalArgumentException("No binary code for message type " + type);
+        return code;
+    }
+
+    static String typeForCode(int code) {
+        if (code < 0 || code >= TYPES.length) throw new IllegalArgumentException("Unknown message type code " + code);
+        return TYPES[code];
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+
+    public int getHops() {
+        return hops;
+    }
+
+    public int getFieldCount() {
+        return fields.length;
+    }
+
+    public String getField(int index) {
+        return fields[index];
+    }
+
+    public int getIntField(int index) {
+        return Integer.parseInt(fields[index]);
+    }
+
+    public long getLongField(int index) {
+        return Long.parseLong(fields[index]);
+    }
+
+    String[] getFields() {
+        return fields;
+    }
+}
@@ -0,0 +1,7 @@
+// Where replies to one connected peer go, whether it speaks text lines or binary frames.
+// Like PrintWriter, send never throws; a broken connection shows up in checkError().
+public interface MessageChannel {
+    void send(Message message);
+
+    boolean checkError();
+}
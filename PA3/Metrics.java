@@ -0,0 +1,200 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.*;
+
+// Counters, gauges and latency histograms for one node, or for a group of nodes sharing a registry.
+// Counters are striped LongAdders and histograms are lock-free, so recording never blocks a handler.
+// A metric may carry one type label, e.g. handle_ns{type="QUERY"}. Published registries can be read
+// over JMX (gnutella:type=<kind>,name=<node>) and as plain text from MetricsServer.
+public class Metrics implements DynamicMBean {
+    private static final List<Metrics> published = new CopyOnWriteArrayList<>();
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private static final String[] QUANTILE_NAMES = {"p50", "p99", "p999"};
+
+    private String kind;
+    private String name;
+    private Map<String, Map<String, LongAdder>> counters = new ConcurrentHashMap<>();
+    private Map<String, Map<String, LatencyHistogram>> histograms = new ConcurrentHashMap<>();
+    private Map<String, List<LongSupplier>> gauges = new ConcurrentHashMap<>(); // Suppliers for one name are summed
+    private boolean isPublished;
+
+    public Metrics(String kind, String name) {
+        this.kind = kind;
+        this.name = name;
+    }
+
+    public LongAdder counter(String metric) {
+        return counter(metric, "");
+    }
+
+    public LongAdder counter(String metric, String type) {
+        Map<String, LongAdder> byType = counters.get(metric); // get first; handlers ask for the same few metrics
+        if (byType == null) byType = counters.computeIfAbsent(metric, k -> new ConcurrentHashMap<>());
+        LongAdder counter = byType.get(type);
+        return (counter != null) ? counter : byType.computeIfAbsent(type, k -> new LongAdder());
+    }
+
+    public LatencyHistogram histogram(String metric) {
+        return histogram(metric, "");
+    }
+
+    public LatencyHistogram histogram(String metric, String type) {
+        Map<String, LatencyHistogram> byType = histograms.get(metric);
+        if (byType == null) byType = histograms.computeIfAbsent(metric, k -> new ConcurrentHashMap<>());
+        LatencyHistogram histogram = byType.get(type);
+        return (histogram != null) ? histogram : byType.computeIfAbsent(type, k -> new LatencyHistogram());
+    }
+
+    // Sampled at read time; nodes sharing a registry each add a supplier and see the total
+    public void gauge(String metric, LongSupplier value) {
+        gauges.computeIfAbsent(metric, k -> new CopyOnWriteArrayList<>()).add(value);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Makes this registry visible to JMX and MetricsServer; later calls do nothing
+    public synchronized void publish() {
+        if (isPublished) return;
+        isPublished = true;
+        published.add(this);
+        try {
+            ObjectName objectName = new ObjectName("gnutella", new Hashtable<>(Map.of("type", kind, "name", ObjectName.quote(name))));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            Log.warn(name + ": Metrics not registered with JMX: " + e.getMessage());
+        }
+    }
+
+    // Prometheus text format, for every published registry plus the logger
+    public static String scrapeAll() {
+        StringBuilder text = new StringBuilder();
+        for (Metrics metrics : published) {
+            metrics.scrape(text);
+        }
+        text.append("gnutella_log_dropped ").append(Log.getDropped()).append('\n');
+        return text.toString();
+    }
+
+    private void scrape(StringBuilder text) {
+        String node = "node=\"" + name + "\"";
+        for (Map.Entry<String, Map<String, LongAdder>> counter : sorted(counters).entrySet()) {
+            for (Map.Entry<String, LongAdder> byType : sorted(counter.getValue()).entrySet()) {
+                line(text, counter.getKey(), labels(node, byType.getKey(), null), byType.getValue().sum());
+            }
+        }
+        for (String gauge : sorted(gauges).keySet()) {
+            line(text, gauge, "{" + node + "}", gaugeValue(gauge));
+        }
+        for (Map.Entry<String, Map<String, LatencyHistogram>> histogram : sorted(histograms).entrySet()) {
+            for (Map.Entry<String, LatencyHistogram> byType : sorted(histogram.getValue()).entrySet()) {
+                LatencyHistogram values = byType.getValue();
+                String metric = histogram.getKey();
+                for (double quantile : QUANTILES) {
+                    line(text, metric, labels(node, byType.getKey(), quantile), values.getPercentile(quantile));
+                }
+                line(text, metric + "_count", labels(node, byType.getKey(), null), values.getCount());
+                line(text, metric + "_sum", labels(node, byType.getKey(), null), values.getSum());
+                line(text, metric + "_max", labels(node, byType.getKey(), null), values.getMax());
+            }
+        }
+    }
+
+    private static String labels(String node, String type, Double quantile) {
+        StringBuilder labels = new StringBuilder("{").append(node);
+        if (!type.isEmpty()) labels.append(",type=\"").append(type).append('"');
+        if (quantile != null) labels.append(",quantile=\"").append(quantile).append('"');
+        return labels.append('}').toString();
+    }
+
+    private static void line(StringBuilder text, String metric, String labels, long value) {
+        text.append("gnutella_").append(metric).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private long gaugeValue(String gauge) {
+        long total = 0;
+        for (LongSupplier supplier : gauges.get(gauge)) {
+            total += supplier.getAsLong();
+        }
+        return total;
+    }
+
+    // JMX view: one read-only Long attribute per value, e.g. handle_ns.QUERY.p99
+    private Map<String, Long> snapshot() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, Map<String, LongAdder>> counter : counters.entrySet()) {
+            for (Map.Entry<String, LongAdder> byType : counter.getValue().entrySet()) {
+                values.put(attributeName(counter.getKey(), byType.getKey()), byType.getValue().sum());
+            }
+        }
+        for (String gauge : gauges.keySet()) {
+            values.put(gauge, gaugeValue(gauge));
+        }
+        for (Map.Entry<String, Map<String, LatencyHistogram>> histogram : histograms.entrySet()) {
+            for (Map.Entry<String, LatencyHistogram> byType : histogram.getValue().entrySet()) {
+                String prefix = attributeName(histogram.getKey(), byType.getKey()) + ".";
+                LatencyHistogram latencies = byType.getValue();
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    values.put(prefix + QUANTILE_NAMES[i], latencies.getPercentile(QUANTILES[i]));
+                }
+                values.put(prefix + "count", latencies.getCount());
+                values.put(prefix + "max", latencies.getMax());
+            }
+        }
+        return values;
+    }
+
+    private static <V> Map<String, V> sorted(Map<String, V> map) {
+        return new TreeMap<>(map);
+    }
+
+    private static String attributeName(String metric, String type) {
+        return type.isEmpty() ? metric : metric + "." + type;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = snapshot().get(attribute);
+        if (value == null) throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> values = snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) list.add(new Attribute(attribute, values.get(attribute)));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList(); // Read-only
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String attribute : snapshot().keySet()) {
+            attributes.add(new MBeanAttributeInfo(attribute, Long.class.getName(), attribute, true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), kind + " metrics for " + name,
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
@@ -0,0 +1,315 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+// Non-blocking message server: one acceptor plus a small fixed pool of selector threads. Selector threads only
+// decode; handlers run on the executor, one connection's messages in arrival order, so a handler blocked on a
+// slow neighbor holds up its own connection rather than every connection sharing its selector.
+public class NioServer {
+    private static final int MAX_PENDING = 1024; // Decoded messages per connection before reading pauses
+
+    private String nodeName;
+    private int port;
+    private int ioThreads;
+    private boolean binaryEnabled; // Whether HELLO may switch a connection to binary frames
+    private BiConsumer<Message, MessageChannel> messageHandler;
+    private Executor handlers;
+    private Metrics metrics;
+    private LongAdder queuedWrites = new LongAdder();    // Buffers waiting for OP_WRITE, across all connections
+    private LongAdder pendingMessages = new LongAdder(); // Decoded messages waiting for a handler
+
+    public NioServer(String nodeName, int port, int ioThreads, boolean binaryEnabled, Metrics metrics,
+                     Executor handlers, BiConsumer<Message, MessageChannel> messageHandler) {
+        this.nodeName = nodeName;
+        this.port = port;
+        this.ioThreads = Math.max(1, ioThreads);
+        this.binaryEnabled = binaryEnabled;
+        this.metrics = metrics;
+        this.handlers = handlers;
+        this.messageHandler = messageHandler;
+        metrics.gauge("nio_write_queue_depth", queuedWrites::sum);
+        metrics.gauge("nio_pending_messages", pendingMessages::sum);
+    }
+
+    public void start() throws IOException {
+        IoLoop[] loops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new IoLoop();
+            Thread thread = new Thread(loops[i], nodeName + "-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+
+        int next = 0;
+        while (true) {
+            SocketChannel channel = serverChannel.accept(); // Blocking accept; all reads and writes are non-blocking
+            long acceptedAt = System.nanoTime();
+            metrics.counter("connections_accepted").increment();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            loops[next++ % ioThreads].register(new Connection(channel, acceptedAt));
+        }
+    }
+
+    // For the handler pool used when virtual threads are unavailable; daemons, like the selector threads
+    static Thread newHandlerThread(Runnable task) {
+        Thread thread = new Thread(task, "nio-handler");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private class IoLoop implements Runnable {
+        private Selector selector;
+        private Queue<Connection> newConnections = new ConcurrentLinkedQueue<>();
+
+        IoLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(Connection connection) {
+            newConnections.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Connection accepted;
+                    while ((accepted = newConnections.poll()) != null) {
+                        accepted.key = accepted.channel.register(selector, SelectionKey.OP_READ, accepted);
+                        metrics.histogram("accept_ns").record(System.nanoTime() - accepted.acceptedAt); // Hand-off to the selector
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) connection.onReadable();
+                            if (key.isValid() && key.isWritable()) connection.onWritable();
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.error(nodeName + ": Selector failed", e);
+                }
+            }
+        }
+    }
+
+    // One client connection; starts in text mode and switches to binary frames after an accepted HELLO
+    private class Connection implements MessageChannel {
+        private SocketChannel channel;
+        private SelectionKey key; // Set once the I/O thread registers the channel
+        private long acceptedAt;
+        private ByteBuffer inbound = ByteBuffer.allocate(8192); // Grows to fit the largest frame seen
+        private Deque<ByteBuffer> outbound = new ArrayDeque<>();
+        private Deque<Message> pending = new ArrayDeque<>(); // Guarded by this, like the two flags below
+        private boolean draining;    // A handler task owns this connection's pending messages
+        private boolean readPaused;  // Too many messages pending; OP_READ is off until handlers catch up
+        private BinaryCodec decoder = new BinaryCodec(); // I/O thread only
+        private BinaryCodec encoder = new BinaryCodec(); // Guarded by this
+        private volatile boolean binary;
+        private volatile boolean error;
+
+        Connection(SocketChannel channel, long acceptedAt) {
+            this.channel = channel;
+            this.acceptedAt = acceptedAt;
+        }
+
+        void onReadable() throws IOException {
+            if (!inbound.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(inbound.capacity() * 2);
+                inbound.flip();
+                inbound = larger.put(inbound);
+            }
+            int read = channel.read(inbound);
+            if (read < 0) {
+                close();
+                return;
+            }
+
+            inbound.flip();
+            Message message;
+            while ((message = nextMessage()) != null) {
+                if (message.getType() == Message.HELLO) {
+                    answerHello(message); // Here, as it decides how the following bytes are decoded
+                } else {
+                    dispatch(message);
+                }
+            }
+            inbound.compact();
+        }
+
+        private void dispatch(Message message) {
+            synchronized (this) {
+                pending.add(message);
+                pendingMessages.increment();
+                if (pending.size() >= MAX_PENDING && !readPaused) {
+                    readPaused = true;
+                    updateInterest();
+                }
+                if (draining) return;
+                draining = true;
+            }
+            handlers.execute(this::drain);
+        }
+
+        // Handles pending messages until none are left; only one task per connection, which keeps them in order
+        private void drain() {
+            while (true) {
+                Message message;
+                synchronized (this) {
+                    message = pending.poll();
+                    if (message == null) {
+                        draining = false;
+                        return;
+                    }
+                    pendingMessages.decrement();
+                    if (readPaused && pending.size() <= MAX_PENDING / 2) {
+                        readPaused = false;
+                        updateInterest();
+                    }
+                }
+                try {
+                    messageHandler.accept(message, this);
+                } catch (RuntimeException e) {
+                    metrics.counter("malformed_messages").increment();
+                    Log.warn(nodeName + ": Dropping malformed message " + message);
+                }
+            }
+        }
+
+        // Caller holds this. Any thread may change interest ops; the selector picks them up on its next wakeup.
+        private void updateInterest() {
+            try {
+                key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+                key.selector().wakeup();
+            } catch (CancelledKeyException e) {
+                // Closed; nothing left to read or write
+            }
+        }
+
+        // Cuts one complete line or frame off the inbound buffer, or returns null if more bytes are needed
+        private Message nextMessage() throws IOException {
+            while (true) {
+                int start = inbound.position();
+                if (binary) {
+                    if (inbound.remaining() < 4) return null;
+                    int length = inbound.getInt(start);
+                    if (length <= 0 || length > BinaryCodec.MAX_FRAME_SIZE) throw new IOException("Bad frame length " + length);
+                    if (inbound.remaining() < 4 + length) {
+                        if (inbound.capacity() < 4 + length) { // Make room for the whole frame
+                            ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                            inbound = larger.put(inbound);
+                            inbound.flip();
+                        }
+                        return null;
+                    }
+                    inbound.position(start + 4 + length);
+                    try {
+                        return decoder.decode(ByteBuffer.wrap(inbound.array(), start + 4, length));
+                    } catch (RuntimeException e) { // The length prefix is intact, so only this frame is lost
+                        metrics.counter("malformed_messages").increment();
+                        Log.warn(nodeName + ": Dropping malformed frame of " + length + " bytes");
+                        continue;
+                    }
+                }
+
+                int newline = start;
+                while (newline < inbound.limit() && inbound.get(newline) != '\n') newline++;
+                if (newline == inbound.limit()) return null;
+                int end = (newline > start && inbound.get(newline - 1) == '\r') ? newline - 1 : newline;
+                inbound.position(newline + 1);
+                String line = new String(inbound.array(), start, end - start, StandardCharsets.UTF_8);
+                try {
+                    return Message.parse(line);
+                } catch (RuntimeException e) {
+                    metrics.counter("malformed_messages").increment();
+                    Log.warn(nodeName + ": Dropping malformed message " + line);
+                }
+            }
+        }
+
+        // The reply goes out in text; everything after it is framed if binary was accepted
+        private void answerHello(Message hello) {
+            boolean accept = StreamChannel.acceptsBinary(hello, binaryEnabled);
+            synchronized (this) {
+                send(StreamChannel.helloReply(hello, accept));
+                binary = accept;
+            }
+        }
+
+        void onWritable() throws IOException {
+            synchronized (this) {
+                drainOutbound();
+                if (outbound.isEmpty()) updateInterest();
+            }
+        }
+
+        private void drainOutbound() throws IOException {
+            while (!outbound.isEmpty()) {
+                ByteBuffer buffer = outbound.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) return; // Socket buffer full; wait for OP_WRITE
+                outbound.poll();
+                queuedWrites.decrement();
+            }
+        }
+
+        // Handlers may run on any thread, so try to write straight away and queue only what the socket refuses
+        @Override
+        public synchronized void send(Message message) {
+            if (error) return;
+            try {
+                ByteBuffer encoded = binary ? encoder.encode(message)
+                        : ByteBuffer.wrap((message.toText() + "\n").getBytes(StandardCharsets.UTF_8));
+                if (outbound.isEmpty()) channel.write(encoded);
+                if (encoded.hasRemaining()) {
+                    ByteBuffer rest = ByteBuffer.allocate(encoded.remaining()); // The encoder reuses its buffer
+                    rest.put(encoded).flip();
+                    outbound.add(rest);
+                    queuedWrites.increment();
+                    updateInterest();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                error = true;
+            }
+        }
+
+        @Override
+        public boolean checkError() {
+            return error;
+        }
+
+        synchronized void close() {
+            if (!channel.isOpen()) return; // Already closed and counted
+            error = true;
+            queuedWrites.add(-outbound.size());
+            outbound.clear();
+            pendingMessages.add(-pending.size()); // Never handled; their replies could not be sent anyway
+            pending.clear();
+            metrics.counter("connections_closed").increment();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
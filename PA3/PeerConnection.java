@@ -0,0 +1,125 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+public class PeerConnection {
+    private String peerName;
+    private StreamChannel channel;
+    private Map<String, Consumer<Message>> listeners = new ConcurrentHashMap<>(); // Keyed by message ID
+    private Consumer<Message> unsolicitedHandler;
+    private volatile boolean closed;
+    private volatile Runnable dropListener; // Runs if the peer closes the connection or it fails
+
+    public PeerConnection(String peerName, int port, Consumer<Message> unsolicitedHandler, boolean binaryPreferred)
+            throws IOException {
+        this.peerName = peerName;
+        this.unsolicitedHandler = unsolicitedHandler;
+        Socket socket = new Socket("localhost", port);
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        this.channel = new StreamChannel(socket);
+        if (binaryPreferred) channel.requestBinary(UUID.randomUUID().toString()); // Falls back to text if refused
+
+        Thread reader = new Thread(this::readLoop, "conn-" + peerName);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public String getPeerName() {
+        return peerName;
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    public boolean isBinary() {
+        return channel.isBinary();
+    }
+
+    public void setDropListener(Runnable dropListener) {
+        this.dropListener = dropListener;
+    }
+
+    public void send(Message message) throws IOException {
+        if (closed) throw new IOException("Connection to " + peerName + " is closed");
+        channel.send(message); // Sends are serialized, so concurrent senders never interleave
+        if (channel.checkError()) {
+            drop();
+            throw new IOException("Connection to " + peerName + " lost");
+        }
+    }
+
+    // Routes every response carrying this message ID to the listener until it is removed
+    public void addListener(String messageId, Consumer<Message> listener) {
+        listeners.put(messageId, listener);
+    }
+
+    public void removeListener(String messageId) {
+        listeners.remove(messageId);
+    }
+
+    // Sends a message and waits for the first response with the same message ID, or null on timeout
+    public Message request(Message message, long timeoutMs) throws IOException {
+        String messageId = message.getMessageId();
+        CompletableFuture<Message> response = new CompletableFuture<>();
+        addListener(messageId, response::complete);
+        try {
+            send(message);
+            return response.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            removeListener(messageId);
+        }
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        channel.close();
+    }
+
+    private void readLoop() {
+        try {
+            Message message;
+            while ((message = channel.read()) != null) {
+                dispatch(message);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!closed) Log.warn("Connection to " + peerName + " dropped: " + e.getMessage());
+        } finally {
+            drop();
+        }
+    }
+
+    // Closes a connection that failed or that the peer closed, as opposed to one closed on purpose
+    private void drop() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        channel.close();
+        Runnable listener = dropListener;
+        if (listener != null) listener.run();
+    }
+
+    private void dispatch(Message message) {
+        String messageId = message.getMessageId();
+        Consumer<Message> listener = (messageId == null) ? null : listeners.get(messageId);
+        if (listener != null) {
+            listener.accept(message);
+        } else if (unsolicitedHandler != null) {
+            unsolicitedHandler.accept(message);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Loopback ports of every node in this JVM, and the super-peer each leaf is attached to. Unless assigned
+// otherwise, super-peerN listens for messages on 8000+N and leafN serves files on 9000+N. Leaves have no
+// message port: messages for a leaf go to its super-peer, looked up with getSuperPeer.
+public class PeerDirectory {
+    private static Map<String, Integer> messagePorts = new ConcurrentHashMap<>();
+    private static Map<String, Integer> filePorts = new ConcurrentHashMap<>();
+    private static Map<String, String> superPeers = new ConcurrentHashMap<>(); // Leaf -> its super-peer
+
+    private PeerDirectory() {
+    }
+
+    public static void assignMessagePort(String nodeName, int port) {
+        messagePorts.put(nodeName, port);
+    }
+
+    public static void assignFilePort(String leafName, int port) {
+        filePorts.put(leafName, port);
+    }
+
+    public static void assignSuperPeer(String leafName, String superPeer) {
+        superPeers.put(leafName, superPeer);
+    }
+
+    // The super-peer the leaf is attached to, or null if no configuration mentioned the leaf
+    public static String getSuperPeer(String leafName) {
+        return superPeers.get(leafName);
+    }
+
+    public static int getMessagePort(String nodeName) {
+        Integer port = messagePorts.get(nodeName);
+        if (port != null) return port;
+        if (!nodeName.startsWith("super-peer")) {
+            throw new IllegalArgumentException("No message port for " + nodeName + "; a leaf is reached through its super-peer");
+        }
+        return 8000 + nodeNumber(nodeName);
+    }
+
+    public static int getFilePort(String leafName) {
+        Integer port = filePorts.get(leafName);
+        return (port != null) ? port : 9000 + nodeNumber(leafName);
+    }
+
+    private static int nodeNumber(String nodeName) {
+        return Integer.parseInt(nodeName.replaceAll("\\D+", ""));
+    }
+}
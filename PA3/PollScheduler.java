@@ -0,0 +1,60 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Files waiting to be polled, ordered by TTR expiry. Each file has at most one live slot;
+// scheduling a file again supersedes its earlier slot.
+public class PollScheduler {
+    private DelayQueue<Slot> queue = new DelayQueue<>();
+    private Map<String, Long> scheduled = new ConcurrentHashMap<>(); // fileName -> due time of the live slot
+    private long coalesceWindow; // Files due within this many ms of each other are released together
+
+    public PollScheduler(long coalesceWindow) {
+        this.coalesceWindow = coalesceWindow;
+    }
+
+    public void schedule(String fileName, long dueTime) {
+        scheduled.put(fileName, dueTime);
+        queue.add(new Slot(fileName, dueTime));
+    }
+
+    public void cancel(String fileName) {
+        scheduled.remove(fileName);
+    }
+
+    // Blocks until the earliest file is due, then returns every file due by now plus the coalesce window
+    public List<String> takeDue() throws InterruptedException {
+        List<Slot> slots = new ArrayList<>();
+        slots.add(queue.take());
+        queue.drainTo(slots);
+
+        List<String> due = new ArrayList<>(slots.size());
+        for (Slot slot : slots) {
+            if (scheduled.remove(slot.fileName, slot.dueTime)) due.add(slot.fileName); // Skip superseded slots
+        }
+        return due;
+    }
+
+    public int size() {
+        return scheduled.size();
+    }
+
+    private class Slot implements Delayed {
+        private String fileName;
+        private Long dueTime;
+
+        Slot(String fileName, long dueTime) {
+            this.fileName = fileName;
+            this.dueTime = dueTime;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueTime - coalesceWindow - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueTime, ((Slot) other).dueTime);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+public class QueryHit {
+    private String messageId;
+    private String fileName;
+    private long originLastModified; // From origin server
+    private long resultLastModified; // From the replica that answered
+    private String holder;           // Leaf node holding the replica
+    private int version;
+    private int originVersion;       // The origin's current version, -1 when the answering super-peer does not know it
+    private int ttr;                 // ms the origin's super-peer vouches for originVersion, as for a poll; 0 if unknown
+
+    public QueryHit(String messageId, String fileName, long originLastModified, long resultLastModified,
+                    String holder, int version, int originVersion, int ttr) {
+        this.messageId = messageId;
+        this.fileName = fileName;
+        this.originLastModified = originLastModified;
+        this.resultLastModified = resultLastModified;
+        this.holder = holder;
+        this.version = version;
+        this.originVersion = originVersion;
+        this.ttr = ttr;
+    }
+
+    // Format: QUERYHIT:messageId:fileName:originLastModified:resultLastModified:holder:version[:originVersion:ttr]
+    public static QueryHit fromMessage(Message message) {
+        int originVersion = (message.getFieldCount() > 5) ? message.getIntField(5) : -1;
+        int ttr = (message.getFieldCount() > 6) ? message.getIntField(6) : 0;
+        return new QueryHit(message.getMessageId(), message.getField(0), message.getLongField(1), message.getLongField(2),
+                message.getField(3), message.getIntField(4), originVersion, ttr);
+    }
+
+    // The same result answering another query
+    public QueryHit withMessageId(String messageId) {
+        return new QueryHit(messageId, fileName, originLastModified, resultLastModified, holder, version, originVersion, ttr);
+    }
+
+    // The same result, judged against an origin version learned from another super-peer's answer
+    public QueryHit withOriginVersion(int originVersion) {
+        return new QueryHit(messageId, fileName, originLastModified, resultLastModified, holder, version, originVersion, ttr);
+    }
+
+    public Message toMessage() {
+        return new Message(Message.QUERYHIT, messageId, fileName, Long.toString(originLastModified),
+                Long.toString(resultLastModified), holder, Integer.toString(version), Integer.toString(originVersion),
+                Integer.toString(ttr));
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getOriginLastModified() {
+        return originLastModified;
+    }
+
+    public long getResultLastModified() {
+        return resultLastModified;
+    }
+
+    public String getHolder() {
+        return holder;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getOriginVersion() {
+        return originVersion;
+    }
+
+    public int getTtr() {
+        return ttr;
+    }
+
+    // Versions decide when the origin's is known; a copy's registration time says nothing about its contents
+    public boolean isStale() {
+        if (originVersion >= 0) return version < originVersion;
+        return resultLastModified < originLastModified;
+    }
+}
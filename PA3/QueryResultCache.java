@@ -0,0 +1,191 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded cache of remote QUERYHITs by file name, so a super-peer answers repeated queries for popular files
+// itself instead of flooding the overlay again. Hits are collected per flood and published together once the
+// flood's collection window closes, so a cached answer holds every holder the flood found, never the first few.
+// An answer is trusted for the shortest TTL of its hits, the same as a polled copy, and hits are dropped early
+// when an invalidation announces a newer version.
+// Striped like SeenMessageCache; each stripe evicts its least recently queried file.
+public class QueryResultCache {
+    private static final int STRIPES = 16;
+    private static final int MAX_HITS_PER_FILE = 32; // Holders kept per file; the first to arrive go first
+
+    private Stripe[] stripes = new Stripe[STRIPES];
+    private int stripeCapacity;
+
+    // Floods still collecting hits, by message ID, and the same in the order their windows close
+    private Map<String, Flood> collecting = new HashMap<>(); // Guarded by itself, as is due
+    private PriorityQueue<Flood> due = new PriorityQueue<>(Comparator.comparingLong(flood -> flood.publishAt));
+
+    private LongAdder hits = new LongAdder();          // Queries answered from the cache
+    private LongAdder misses = new LongAdder();        // Queries that had to be flooded
+    private LongAdder evictions = new LongAdder();     // Files dropped for space
+    private LongAdder invalidations = new LongAdder(); // Hits dropped because a newer version was announced
+
+    public QueryResultCache(int maxFiles) {
+        this.stripeCapacity = Math.max(1, maxFiles / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    // Adds a hit to the answer of the flood it belongs to, which is published at publishAt. ttlMillis bounds
+    // how long the answer is trusted; -1 leaves that to the flood's other hits, and an answer with no bound at
+    // all is not cached. A hit arriving after publishAt is late for its flood and is not kept.
+    public void add(String messageId, QueryHit hit, long ttlMillis, long publishAt) {
+        long now = System.currentTimeMillis();
+        publishDue(now);
+        if (now >= publishAt) return;
+        synchronized (collecting) {
+            Flood flood = collecting.get(messageId);
+            if (flood == null) {
+                flood = new Flood(messageId, hit.getFileName(), publishAt);
+                collecting.put(messageId, flood);
+                due.add(flood);
+            }
+            flood.add(hit, ttlMillis, now);
+        }
+    }
+
+    // The file's hits, or null when the query has to be flooded. Once the answer's TTL has passed it is
+    // dropped as a whole: the origin's hit is what shows the others stale, so it must not outlive them.
+    public List<QueryHit> get(String fileName) {
+        long now = System.currentTimeMillis();
+        publishDue(now);
+        Stripe stripe = stripe(fileName);
+        synchronized (stripe) {
+            Answer answer = stripe.files.get(fileName);
+            if (answer != null && now > answer.expiresAt) {
+                stripe.files.remove(fileName);
+            } else if (answer != null) {
+                hits.increment();
+                return new ArrayList<>(answer.holders.values());
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    // Drops every hit for an older version than the one just announced by the file's origin, published or not
+    public void invalidate(String fileName, int newVersion) {
+        synchronized (collecting) {
+            for (Flood flood : collecting.values()) {
+                if (flood.fileName.equals(fileName)) {
+                    invalidations.add(removeOlder(flood.holders, newVersion));
+                }
+            }
+        }
+        Stripe stripe = stripe(fileName);
+        synchronized (stripe) {
+            Answer answer = stripe.files.get(fileName);
+            if (answer == null) return;
+            invalidations.add(removeOlder(answer.holders, newVersion));
+            if (answer.holders.isEmpty()) stripe.files.remove(fileName);
+        }
+    }
+
+    private static int removeOlder(Map<String, QueryHit> holders, int newVersion) {
+        int before = holders.size();
+        holders.values().removeIf(hit -> hit.getVersion() < newVersion);
+        return before - holders.size();
+    }
+
+    // Moves every flood whose window has closed into the cache, replacing the file's previous answer. Done under
+    // the collecting lock so an invalidation finds each hit either still collecting or already published.
+    private void publishDue(long now) {
+        synchronized (collecting) {
+            while (!due.isEmpty() && due.peek().publishAt <= now) {
+                Flood flood = due.poll();
+                collecting.remove(flood.messageId);
+                if (flood.expiresAt == Long.MAX_VALUE || flood.holders.isEmpty()) continue; // Nothing bounds it
+                Stripe stripe = stripe(flood.fileName);
+                synchronized (stripe) { // Always taken after collecting, never before
+                    stripe.files.put(flood.fileName, new Answer(flood.holders, flood.expiresAt));
+                    stripe.evict();
+                }
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.files.size();
+            }
+        }
+        return size;
+    }
+
+    private Stripe stripe(String fileName) {
+        int hash = fileName.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    // One flood's hits so far
+    private static class Flood {
+        private final String messageId;
+        private final String fileName;
+        private final long publishAt;
+        private LinkedHashMap<String, QueryHit> holders = new LinkedHashMap<>(); // Arrival order
+        private long expiresAt = Long.MAX_VALUE; // Earliest arrival + TTL of the bounded hits
+
+        Flood(String messageId, String fileName, long publishAt) {
+            this.messageId = messageId;
+            this.fileName = fileName;
+            this.publishAt = publishAt;
+        }
+
+        void add(QueryHit hit, long ttlMillis, long now) {
+            holders.remove(hit.getHolder()); // Re-inserted so insertion order stays arrival order
+            holders.put(hit.getHolder(), hit);
+            if (holders.size() > MAX_HITS_PER_FILE) {
+                Iterator<QueryHit> oldest = holders.values().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+            if (ttlMillis >= 0) expiresAt = Math.min(expiresAt, now + ttlMillis);
+        }
+    }
+
+    private static class Answer {
+        private final Map<String, QueryHit> holders;
+        private final long expiresAt;
+
+        Answer(Map<String, QueryHit> holders, long expiresAt) {
+            this.holders = holders;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private class Stripe {
+        // Access order, so the eldest entry is the least recently queried file
+        private LinkedHashMap<String, Answer> files = new LinkedHashMap<>(16, 0.75f, true);
+
+        void evict() {
+            Iterator<Answer> it = files.values().iterator();
+            while (files.size() > stripeCapacity && it.hasNext()) {
+                it.next();
+                it.remove();
+                evictions.increment();
+            }
+        }
+    }
+}
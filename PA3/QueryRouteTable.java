@@ -0,0 +1,72 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Reverse-path routes for QUERYHITs: the connection each query arrived on, keyed by message ID
+public class QueryRouteTable {
+    private static final int PURGE_INTERVAL = 1024; // Sweep expired routes every this many inserts
+
+    private Map<String, Route> routes = new ConcurrentHashMap<>();
+    private long ttlMillis;
+    private AtomicInteger insertsSincePurge = new AtomicInteger();
+
+    public QueryRouteTable(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public void put(String messageId, MessageChannel upstream) {
+        put(messageId, upstream, true);
+    }
+
+    // Hits for a search are partial answers, so they are routed back without being cached
+    public void put(String messageId, MessageChannel upstream, boolean cacheable) {
+        routes.put(messageId, new Route(upstream, System.currentTimeMillis(), cacheable));
+        if (insertsSincePurge.incrementAndGet() >= PURGE_INTERVAL) {
+            insertsSincePurge.set(0);
+            purgeExpired();
+        }
+    }
+
+    // Returns where hits for this query should go, or null once the route has expired
+    public MessageChannel get(String messageId) {
+        Route route = routes.get(messageId);
+        if (route == null) return null;
+        if (System.currentTimeMillis() - route.createdAt > ttlMillis) {
+            routes.remove(messageId);
+            return null;
+        }
+        return route.upstream;
+    }
+
+    public boolean isCacheable(String messageId) {
+        Route route = routes.get(messageId);
+        return route != null && route.cacheable;
+    }
+
+    // When the query was routed through here, or -1 once the route is gone
+    public long getCreatedAt(String messageId) {
+        Route route = routes.get(messageId);
+        return (route == null) ? -1 : route.createdAt;
+    }
+
+    public int size() {
+        return routes.size();
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        routes.values().removeIf(route -> now - route.createdAt > ttlMillis);
+    }
+
+    private static class Route {
+        private MessageChannel upstream;
+        private long createdAt;
+        private boolean cacheable;
+
+        Route(MessageChannel upstream, long createdAt, boolean cacheable) {
+            this.upstream = upstream;
+            this.createdAt = createdAt;
+            this.cacheable = cacheable;
+        }
+    }
+}
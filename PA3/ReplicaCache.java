@@ -0,0 +1,297 @@
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// A leaf's owned files and downloaded copies by name. Copies share a byte and a file budget; when a new copy
+// pushes them over either, invalid copies are evicted first, then the least recently (LRU) or least often (LFU)
+// used, and their files are deleted from downloads/. Owned files are pinned, count against neither budget and
+// are kept apart from the copies, so eviction never looks at them.
+// Copies are kept in eviction order: an access-ordered map for LRU, buckets by use count for LFU, and invalid
+// copies in the order they were invalidated. Picking a victim takes the head of that order. Lookups by name
+// are lock-free; uses, adds and removals take the cache's lock for O(1) (LFU: O(log n)) work, and evicted files
+// are deleted after the lock is released.
+public class ReplicaCache {
+    public enum Policy { LRU, LFU }
+
+    private String owner;      // Files whose origin is this leaf are pinned
+    private File directory;    // Where copies live, for deleting evicted ones; null leaves them on disk
+    private long maxBytes;     // 0 = no byte budget
+    private int maxFiles;      // 0 = no file budget
+    private Policy policy = Policy.LRU;
+    private Consumer<FileEntry> evictionListener;
+
+    private Map<String, FileEntry> owned = new ConcurrentHashMap<>();
+    private Map<String, Slot> copies = new ConcurrentHashMap<>();
+
+    // Eviction order of the copies, guarded by this; each copy is in exactly one of them
+    private LinkedHashMap<String, Slot> invalid = new LinkedHashMap<>();                 // Evicted first
+    private LinkedHashMap<String, Slot> recency = new LinkedHashMap<>(16, 0.75f, true); // LRU: eldest first
+    private TreeMap<Long, LinkedHashMap<String, Slot>> byUses = new TreeMap<>();        // LFU: fewest uses first
+    private long copyBytes;
+    private int copyCount;
+
+    private LongAdder hits = new LongAdder();      // Reads served by a valid copy
+    private LongAdder misses = new LongAdder();    // Reads that had to fetch the file
+    private LongAdder evictions = new LongAdder(); // Copies dropped for space
+
+    public ReplicaCache(String owner) {
+        this.owner = owner;
+    }
+
+    // No side effects; for bookkeeping rather than reads
+    public FileEntry get(String fileName) {
+        FileEntry file = owned.get(fileName);
+        if (file != null) return file;
+        Slot slot = copies.get(fileName);
+        return (slot == null) ? null : slot.file;
+    }
+
+    // Like get, but counts as a use of the copy, e.g. when serving it to another leaf
+    public FileEntry touch(String fileName) {
+        FileEntry file = owned.get(fileName);
+        if (file != null) return file;
+        Slot slot = copies.get(fileName);
+        if (slot == null) return null;
+        use(slot);
+        return slot.file;
+    }
+
+    // A read: the entry while it is owned or a valid copy, otherwise null and the caller fetches the file.
+    // Only reads of copies count toward the hit rate.
+    public FileEntry lookup(String fileName) {
+        FileEntry file = owned.get(fileName);
+        if (file != null) return file;
+        Slot slot = copies.get(fileName);
+        if (slot == null || !slot.file.isValid()) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        use(slot);
+        return slot.file;
+    }
+
+    // Adds an owned file, which is never evicted
+    public void put(FileEntry file) {
+        put(file, 0);
+    }
+
+    // Adds or replaces a file and evicts copies until the budgets hold again. False when the copy alone is
+    // larger than the byte budget, in which case it is evicted itself.
+    public boolean put(FileEntry file, long bytes) {
+        String fileName = file.getFileName();
+        long diskModified = isPinned(file) ? 0 : diskModified(fileName); // Read before taking the lock
+        List<Slot> evicted = new ArrayList<>();
+        boolean kept = true;
+        synchronized (this) {
+            owned.remove(fileName);
+            Slot old = copies.remove(fileName);
+            if (old != null) untrack(old);
+            if (isPinned(file)) {
+                owned.put(fileName, file);
+            } else {
+                Slot slot = new Slot(file, bytes, diskModified);
+                slot.invalid = !file.isValid();
+                copies.put(fileName, slot);
+                track(slot);
+                if (maxBytes > 0 && bytes > maxBytes) {
+                    evict(slot, evicted);
+                    kept = false;
+                }
+                Slot victim;
+                while (isOverBudget() && (victim = pickVictim(fileName)) != null) {
+                    evict(victim, evicted);
+                }
+            }
+        }
+        deleteEvicted(evicted);
+        return kept;
+    }
+
+    // Moves a copy to the front of the eviction order; called when it is marked invalid
+    public synchronized void invalidated(String fileName) {
+        Slot slot = copies.get(fileName);
+        if (slot == null || slot.invalid) return;
+        untrack(slot);
+        slot.invalid = true;
+        track(slot);
+    }
+
+    // Forgets the file without deleting it, e.g. after it was deleted from shared/
+    public synchronized FileEntry remove(String fileName) {
+        FileEntry file = owned.remove(fileName);
+        if (file != null) return file;
+        Slot slot = copies.remove(fileName);
+        if (slot == null) return null;
+        untrack(slot);
+        return slot.file;
+    }
+
+    public List<FileEntry> files() {
+        List<FileEntry> files = new ArrayList<>(owned.size() + copies.size());
+        files.addAll(owned.values());
+        for (Slot slot : copies.values()) {
+            files.add(slot.file);
+        }
+        return files;
+    }
+
+    private boolean isPinned(FileEntry file) {
+        return file.getOriginServer().equals(owner);
+    }
+
+    private boolean isOverBudget() {
+        return (maxBytes > 0 && copyBytes > maxBytes) || (maxFiles > 0 && copyCount > maxFiles);
+    }
+
+    private synchronized void use(Slot slot) {
+        if (slot.invalid || copies.get(slot.file.getFileName()) != slot) return; // Evicted or replaced meanwhile
+        if (policy == Policy.LFU) {
+            untrack(slot);
+            slot.uses++;
+            track(slot);
+        } else {
+            recency.get(slot.file.getFileName()); // Moves it to the young end
+        }
+    }
+
+    // Invalid copies first, as they must be fetched again before their next read anyway; then by policy.
+    // Only the copy being added is skipped, so this looks at no more than two entries.
+    private Slot pickVictim(String keep) {
+        Slot victim = first(invalid, keep);
+        if (victim != null) return victim;
+        if (policy == Policy.LRU) return first(recency, keep);
+        for (LinkedHashMap<String, Slot> bucket : byUses.values()) {
+            victim = first(bucket, keep);
+            if (victim != null) return victim;
+        }
+        return null;
+    }
+
+    private static Slot first(LinkedHashMap<String, Slot> slots, String keep) {
+        for (Map.Entry<String, Slot> entry : slots.entrySet()) {
+            if (!entry.getKey().equals(keep)) return entry.getValue();
+        }
+        return null;
+    }
+
+    private void track(Slot slot) {
+        String fileName = slot.file.getFileName();
+        if (slot.invalid) {
+            invalid.put(fileName, slot);
+        } else if (policy == Policy.LFU) {
+            byUses.computeIfAbsent(slot.uses, uses -> new LinkedHashMap<>()).put(fileName, slot);
+        } else {
+            recency.put(fileName, slot);
+        }
+        copyBytes += slot.bytes;
+        copyCount++;
+    }
+
+    private void untrack(Slot slot) {
+        String fileName = slot.file.getFileName();
+        if (slot.invalid) {
+            invalid.remove(fileName);
+        } else if (policy == Policy.LFU) {
+            LinkedHashMap<String, Slot> bucket = byUses.get(slot.uses);
+            bucket.remove(fileName);
+            if (bucket.isEmpty()) byUses.remove(slot.uses);
+        } else {
+            recency.remove(fileName);
+        }
+        copyBytes -= slot.bytes;
+        copyCount--;
+    }
+
+    private void evict(Slot slot, List<Slot> evicted) {
+        copies.remove(slot.file.getFileName(), slot);
+        untrack(slot);
+        evictions.increment();
+        evicted.add(slot);
+    }
+
+    private long diskModified(String fileName) {
+        return (directory == null) ? 0 : new File(directory, fileName).lastModified();
+    }
+
+    // Outside the lock: disk I/O and the listener must not hold up readers
+    private void deleteEvicted(List<Slot> evicted) {
+        for (Slot slot : evicted) {
+            if (directory != null && slot.diskModified != 0) {
+                File copy = new File(directory, slot.file.getFileName());
+                if (copy.lastModified() == slot.diskModified && !copy.delete()) { // Else a newer download replaced it
+                    Log.warn(owner + ": Could not delete evicted copy " + copy);
+                }
+            }
+            if (evictionListener != null) evictionListener.accept(slot.file);
+        }
+    }
+
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized void setMaxFiles(int maxFiles) {
+        this.maxFiles = maxFiles;
+    }
+
+    // Rebuilds the eviction order of the copies already cached
+    public synchronized void setPolicy(Policy policy) {
+        for (Slot slot : copies.values()) {
+            untrack(slot);
+        }
+        this.policy = policy;
+        for (Slot slot : copies.values()) {
+            track(slot);
+        }
+    }
+
+    // Called after a copy has been evicted and its file deleted, outside the cache's lock
+    public void setEvictionListener(Consumer<FileEntry> evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized long getCopyBytes() {
+        return copyBytes;
+    }
+
+    public synchronized int getCopyCount() {
+        return copyCount;
+    }
+
+    public int size() {
+        return owned.size() + copies.size();
+    }
+
+    private static class Slot {
+        private final FileEntry file;
+        private final long bytes;
+        private final long diskModified; // Of the copy on disk when it was added
+        private long uses = 1;           // Guarded by the cache's lock, as is invalid
+        private boolean invalid;
+
+        Slot(FileEntry file, long bytes, long diskModified) {
+            this.file = file;
+            this.bytes = bytes;
+            this.diskModified = diskModified;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// Compact summary of the file names a super-peer can answer for, in the spirit of Gnutella's query routing
+// tables. Neighbors hold a copy and skip this super-peer on a query's last hop unless the name may be here.
+// It is a Bloom filter kept as per-slot counts so names can be removed again; neighbors only see which slots
+// are non-zero, and after the first exchange only XOR patches of the slots that flipped.
+public class RouteSummary {
+    public static final int SLOTS = 1 << 19; // Fixed, so every super-peer hashes names to the same slots
+    private static final int HASHES = 4;     // About 1% false positives at 50,000 names
+    private static final int WORDS = SLOTS / 64;
+    private static final int LIST_LIMIT = SLOTS / 20; // Patches flipping more slots than this are sent as bitmaps
+    private static final int CHUNK_SIZE = 32768;      // Characters per message field
+
+    private AtomicIntegerArray counts = new AtomicIntegerArray(SLOTS);
+    private volatile boolean changed;
+    private long[] advertised = new long[WORDS]; // The table neighbors were last sent
+    private long version;                        // 0 is the empty table
+
+    // Called once per name as it enters or leaves the catalog
+    public void add(String fileName) {
+        long hash = nameHash(fileName);
+        for (int i = 0; i < HASHES; i++) {
+            counts.incrementAndGet(slot(hash, i));
+        }
+        changed = true;
+    }
+
+    public void remove(String fileName) {
+        long hash = nameHash(fileName);
+        for (int i = 0; i < HASHES; i++) {
+            counts.decrementAndGet(slot(hash, i));
+        }
+        changed = true;
+    }
+
+    // The slots that flipped since the last call, as a patch from the previous version; null if none did
+    public synchronized Patch takeChanges() {
+        if (!changed) return null;
+        changed = false; // Cleared before the scan, so updates racing with it are picked up next time
+        long[] current = new long[WORDS];
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (counts.get(slot) > 0) current[slot >>> 6] |= 1L << slot;
+        }
+        long[] mask = new long[WORDS];
+        boolean flipped = false;
+        for (int i = 0; i < WORDS; i++) {
+            mask[i] = current[i] ^ advertised[i];
+            flipped |= mask[i] != 0;
+        }
+        if (!flipped) return null;
+        advertised = current;
+        version++;
+        return new Patch(version - 1, version, mask);
+    }
+
+    // The whole advertised table, as a patch from the empty one, for neighbors that hold no usable copy
+    public synchronized Patch fullTable() {
+        return new Patch(0, version, advertised.clone());
+    }
+
+    public synchronized int getSlotsSet() {
+        int set = 0;
+        for (long word : advertised) {
+            set += Long.bitCount(word);
+        }
+        return set;
+    }
+
+    // 64-bit FNV-1a; String.hashCode alone would give every name only 32 bits to pick its slots from
+    private static long nameHash(String fileName) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < fileName.length(); i++) {
+            hash = (hash ^ fileName.charAt(i)) * 0x100000001b3L;
+        }
+        return hash ^ (hash >>> 29);
+    }
+
+    // Double hashing: the i-th slot is h1 + i * h2
+    private static int slot(long hash, int i) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return (h1 + i * h2) & (SLOTS - 1);
+    }
+
+    // A neighbor's table as last patched; replaced, never changed, so queries read it without locking
+    public static class Table {
+        private final long version;
+        private final long[] bits;
+
+        Table(long version, long[] bits) {
+            this.version = version;
+            this.bits = bits;
+        }
+
+        public boolean mightContain(String fileName) {
+            long hash = nameHash(fileName);
+            for (int i = 0; i < HASHES; i++) {
+                int slot = slot(hash, i);
+                if ((bits[slot >>> 6] & (1L << slot)) == 0) return false;
+            }
+            return true;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    // Slots to flip to go from one version of a table to another; from version 0 it is the whole table
+    public static class Patch {
+        private long fromVersion;
+        private long toVersion;
+        private long[] mask;
+
+        Patch(long fromVersion, long toVersion, long[] mask) {
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+            this.mask = mask;
+        }
+
+        // The table after this patch, or null if it does not follow the table held
+        public Table applyTo(Table table) {
+            if (fromVersion != 0 && (table == null || table.version != fromVersion)) return null;
+            long[] bits = (fromVersion == 0) ? new long[WORDS] : table.bits.clone();
+            for (int i = 0; i < WORDS; i++) {
+                bits[i] ^= mask[i];
+            }
+            return new Table(toVersion, bits);
+        }
+
+        // Format: sender:slots:fromVersion:toVersion:encoding:chunk1[:chunk2...]
+        // Encoding l lists the flipped slots as base-36 gaps separated by commas; b is the Base64 bitmap.
+        public String[] toFields(String sender) {
+            int flipped = 0;
+            for (long word : mask) {
+                flipped += Long.bitCount(word);
+            }
+            String data;
+            String encoding;
+            if (flipped <= LIST_LIMIT) {
+                StringBuilder list = new StringBuilder(flipped * 3);
+                int previous = 0;
+                for (int i = 0; i < WORDS; i++) {
+                    for (long word = mask[i]; word != 0; word &= word - 1) {
+                        int slot = i * 64 + Long.numberOfTrailingZeros(word);
+                        if (list.length() > 0) list.append(',');
+                        list.append(Integer.toString(slot - previous, 36));
+                        previous = slot;
+                    }
+                }
+                data = list.toString();
+                encoding = "l";
+            } else {
+                ByteBuffer bytes = ByteBuffer.allocate(WORDS * 8);
+                bytes.asLongBuffer().put(mask);
+                data = Base64.getEncoder().encodeToString(bytes.array());
+                encoding = "b";
+            }
+
+            List<String> fields = new ArrayList<>(Arrays.asList(sender, Integer.toString(SLOTS),
+                    Long.toString(fromVersion), Long.toString(toVersion), encoding));
+            for (int i = 0; i < data.length(); i += CHUNK_SIZE) {
+                fields.add(data.substring(i, Math.min(data.length(), i + CHUNK_SIZE)));
+            }
+            return fields.toArray(new String[0]);
+        }
+
+        public static Patch fromFields(Message message) {
+            int slots = message.getIntField(1);
+            if (slots != SLOTS) throw new IllegalArgumentException("Route table of " + slots + " slots, expected " + SLOTS);
+            StringBuilder data = new StringBuilder();
+            for (int i = 5; i < message.getFieldCount(); i++) {
+                data.append(message.getField(i));
+            }
+
+            long[] mask = new long[WORDS];
+            String encoding = message.getField(4);
+            if (encoding.equals("b")) {
+                ByteBuffer.wrap(Base64.getDecoder().decode(data.toString())).asLongBuffer().get(mask);
+            } else if (encoding.equals("l")) {
+                int slot = 0;
+                if (data.length() > 0) {
+                    for (String gap : data.toString().split(",")) {
+                        slot += Integer.parseInt(gap, 36);
+                        mask[slot >>> 6] |= 1L << slot;
+                    }
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown route table encoding " + encoding);
+            }
+            return new Patch(message.getLongField(2), message.getLongField(3), mask);
+        }
+    }
+}
@@ -0,0 +1,514 @@
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.regex.Pattern;
+
+// Keyword, prefix and wildcard search over the file names in a super-peer's catalog. Names are split into
+// lower-case tokens at every character that is not a letter or digit, so "Q3-report.pdf" is found by "report"
+// and by "*.pdf". Each name gets an int id; each token maps to the ids of the names containing it. Tokens are
+// kept sorted, so the tokens starting with a prefix are one range, as in a trie.
+// Updated by FileCatalog as names enter and leave it; queries share a read lock.
+public class SearchIndex {
+    private String[] names = new String[1024]; // By id; null for free ids
+    private int nameCount;
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private int nextId;
+    // Token -> Integer id while one name has it, Postings once several do; most tokens belong to a single name
+    private TreeMap<String, Object> postings = new TreeMap<>();
+    private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Called once per name as it enters or leaves the catalog
+    public void add(String fileName) {
+        lock.writeLock().lock();
+        try {
+            Set<String> tokens = tokens(fileName);
+            if (find(fileName, tokens) >= 0) return;
+            int id = (freeCount > 0) ? freeIds[--freeCount] : nextId++;
+            if (id == names.length) names = Arrays.copyOf(names, names.length * 2);
+            names[id] = fileName;
+            nameCount++;
+            for (String token : tokens) {
+                Object held = postings.get(token);
+                if (held == null) {
+                    postings.put(token, id);
+                } else if (held instanceof Integer) {
+                    Postings several = new Postings();
+                    several.add((Integer) held);
+                    several.add(id);
+                    postings.put(token, several);
+                } else {
+                    ((Postings) held).add(id);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String fileName) {
+        lock.writeLock().lock();
+        try {
+            Set<String> tokens = tokens(fileName);
+            int id = find(fileName, tokens);
+            if (id < 0) return;
+            names[id] = null;
+            nameCount--;
+            if (freeCount == freeIds.length) freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+            freeIds[freeCount++] = id;
+            for (String token : tokens) {
+                Object held = postings.get(token);
+                if (held instanceof Integer) {
+                    postings.remove(token);
+                } else if (held instanceof Postings) {
+                    Postings several = (Postings) held;
+                    several.remove(id);
+                    if (several.size() == 1) postings.put(token, several.first());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // A name's id is found through its rarest token rather than kept in a map of its own, which would cost as
+    // much memory as the postings. Names without tokens are found by scanning, but are rare.
+    private int find(String fileName, Set<String> tokens) {
+        Object rarest = null;
+        for (String token : tokens) {
+            Object held = postings.get(token);
+            if (held == null) return -1;
+            if (rarest == null || count(held) < count(rarest)) rarest = held;
+        }
+        int[] found = {-1};
+        if (rarest == null) {
+            for (int id = 0; id < nextId && found[0] < 0; id++) {
+                if (fileName.equals(names[id])) found[0] = id;
+            }
+        } else {
+            forEachId(Collections.singletonList(rarest), id -> {
+                if (found[0] < 0 && fileName.equals(names[id])) found[0] = id;
+            });
+        }
+        return found[0];
+    }
+
+    // The best matching names, best first. A query with * or ? is a wildcard pattern over the whole name;
+    // anything else is a set of keywords that must all appear as tokens of the name.
+    public List<String> search(String query, int limit) {
+        Query parsed = new Query(query);
+        TopNames top = new TopNames(query, limit);
+        lock.readLock().lock();
+        try {
+            List<List<Object>> required = new ArrayList<>(); // Each a union of postings; a name must be in every one
+            for (String token : parsed.wholeTokens) {
+                Object held = postings.get(token);
+                if (held == null) return Collections.emptyList();
+                required.add(Collections.singletonList(held));
+            }
+            for (String prefix : parsed.prefixTokens) {
+                Collection<Object> held = postings.subMap(prefix, prefix + Character.MAX_VALUE).values();
+                if (held.isEmpty()) return Collections.emptyList();
+                required.add(new ArrayList<>(held));
+            }
+
+            IntConsumer candidate = id -> {
+                String name = names[id];
+                if (parsed.matches(name)) top.offer(name);
+            };
+            if (required.isEmpty()) {
+                if (parsed.pattern == null) return Collections.emptyList(); // Keywords with no letters or digits
+                for (int id = 0; id < nextId; id++) { // No usable token, e.g. *port*: every name is checked
+                    if (names[id] != null) candidate.accept(id);
+                }
+            } else {
+                // Walk the smallest requirement and check the others by membership
+                required.sort(Comparator.comparingLong(SearchIndex::count));
+                List<IntPredicate> others = new ArrayList<>();
+                for (List<Object> other : required.subList(1, required.size())) {
+                    others.add(membership(other));
+                }
+                BitSet seen = (required.get(0).size() > 1) ? new BitSet(nextId) : null; // A name may have two of the tokens
+                forEachId(required.get(0), id -> {
+                    if (seen != null) {
+                        if (seen.get(id)) return;
+                        seen.set(id);
+                    }
+                    for (IntPredicate other : others) {
+                        if (!other.test(id)) return;
+                    }
+                    candidate.accept(id);
+                });
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return top.ranked();
+    }
+
+    // Shared by super-peers and leaves, so a leaf merging several super-peers' answers ranks them the same way.
+    // The name's exact match ranks first; otherwise the more of the name the query spells out, the better.
+    public static double score(String query, String fileName) {
+        return score(query, literalLength(query), fileName);
+    }
+
+    private static double score(String query, int literalLength, String fileName) {
+        if (fileName.length() == query.length() && fileName.equalsIgnoreCase(query)) return 2;
+        return Math.min(1, (double) literalLength / fileName.length());
+    }
+
+    private static int literalLength(String query) {
+        int literal = 0;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c != '*' && c != '?' && c != ' ') literal++;
+        }
+        return literal;
+    }
+
+    public static boolean isPattern(String query) {
+        return query.indexOf('*') >= 0 || query.indexOf('?') >= 0;
+    }
+
+    public int getNameCount() {
+        lock.readLock().lock();
+        try {
+            return nameCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getTokenCount() {
+        lock.readLock().lock();
+        try {
+            return postings.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    static Set<String> tokens(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean tokenChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (tokenChar && start < 0) {
+                start = i;
+            } else if (!tokenChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static long count(List<Object> union) {
+        long count = 0;
+        for (Object held : union) {
+            count += count(held);
+        }
+        return count;
+    }
+
+    private static int count(Object held) {
+        return (held instanceof Integer) ? 1 : ((Postings) held).size();
+    }
+
+    private static void forEachId(List<Object> union, IntConsumer action) {
+        for (Object held : union) {
+            if (held instanceof Integer) {
+                action.accept((Integer) held);
+            } else {
+                ((Postings) held).forEach(action);
+            }
+        }
+    }
+
+    // Membership in a union of postings; a union of many, as from a short prefix, is flattened into a bitmap first
+    private IntPredicate membership(List<Object> union) {
+        if (union.size() > 8) {
+            BitSet members = new BitSet(nextId);
+            forEachId(union, members::set);
+            return members::get;
+        }
+        return id -> {
+            for (Object held : union) {
+                if ((held instanceof Integer) ? (Integer) held == id : ((Postings) held).contains(id)) return true;
+            }
+            return false;
+        };
+    }
+
+    // What a query needs from the index: tokens a name must have, prefixes one of its tokens must start with,
+    // and for patterns the regular expression that decides
+    private static class Query {
+        private Set<String> wholeTokens = new LinkedHashSet<>();
+        private Set<String> prefixTokens = new LinkedHashSet<>();
+        private Pattern pattern; // null for keyword queries
+        private String head;     // With a single * and no ?, the name only has to start with head and end with tail
+        private String tail;
+
+        Query(String query) {
+            if (!isPattern(query)) {
+                wholeTokens.addAll(tokens(query));
+                return;
+            }
+            int star = query.indexOf('*');
+            if (query.indexOf('?') < 0 && query.indexOf('*', star + 1) < 0) {
+                head = query.substring(0, star);
+                tail = query.substring(star + 1);
+            }
+            // A token of a literal run only pins down a token of the name where it meets a separator or the
+            // pattern's ends; one cut short by a wildcard on its right is still a prefix, one on its left is unusable
+            String lower = query.toLowerCase(Locale.ROOT);
+            StringBuilder regex = new StringBuilder();
+            int i = 0;
+            while (i < lower.length()) {
+                char c = lower.charAt(i);
+                if (c == '*' || c == '?') {
+                    regex.append(c == '*' ? ".*" : ".");
+                    i++;
+                    continue;
+                }
+                int end = i;
+                while (end < lower.length() && lower.charAt(end) != '*' && lower.charAt(end) != '?') {
+                    end++;
+                }
+                String run = lower.substring(i, end);
+                regex.append(Pattern.quote(run));
+                boolean openLeft = i > 0;
+                boolean openRight = end < lower.length();
+                int start = -1;
+                for (int j = 0; j <= run.length(); j++) {
+                    boolean tokenChar = j < run.length() && Character.isLetterOrDigit(run.charAt(j));
+                    if (tokenChar && start < 0) {
+                        start = j;
+                    } else if (!tokenChar && start >= 0) {
+                        boolean cutLeft = start == 0 && openLeft;
+                        boolean cutRight = j == run.length() && openRight;
+                        if (!cutLeft && !cutRight) {
+                            wholeTokens.add(run.substring(start, j));
+                        } else if (!cutLeft) {
+                            prefixTokens.add(run.substring(start, j));
+                        }
+                        start = -1;
+                    }
+                }
+                i = end;
+            }
+            pattern = Pattern.compile(regex.toString(), Pattern.DOTALL | Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+        }
+
+        boolean matches(String name) {
+            if (head != null) {
+                return name.length() >= head.length() + tail.length() && name.regionMatches(true, 0, head, 0, head.length()) &&
+                        name.regionMatches(true, name.length() - tail.length(), tail, 0, tail.length());
+            }
+            return pattern == null || pattern.matcher(name).matches();
+        }
+    }
+
+    // The best names seen so far, kept in a heap with the worst on top
+    private static class TopNames {
+        private String query;
+        private int literalLength;
+        private int limit;
+        private PriorityQueue<Ranked> heap;
+
+        TopNames(String query, int limit) {
+            this.query = query;
+            this.literalLength = literalLength(query);
+            this.limit = limit;
+            this.heap = new PriorityQueue<>(Math.max(1, Math.min(limit, 1024)), Ranked::compareTo);
+        }
+
+        void offer(String name) {
+            if (limit <= 0) return;
+            double score = score(query, literalLength, name);
+            if (heap.size() < limit) {
+                heap.add(new Ranked(name, score));
+            } else if (heap.peek().isBelow(name, score)) {
+                heap.poll();
+                heap.add(new Ranked(name, score));
+            }
+        }
+
+        List<String> ranked() {
+            List<Ranked> sorted = new ArrayList<>(heap);
+            sorted.sort(Collections.reverseOrder());
+            List<String> result = new ArrayList<>(sorted.size());
+            for (Ranked ranked : sorted) {
+                result.add(ranked.name);
+            }
+            return result;
+        }
+    }
+
+    private static class Ranked implements Comparable<Ranked> {
+        private final String name;
+        private final double score;
+
+        Ranked(String name, double score) {
+            this.name = name;
+            this.score = score;
+        }
+
+        // Higher score is better; among equals, the name first in alphabetical order
+        @Override
+        public int compareTo(Ranked other) {
+            int byScore = Double.compare(score, other.score);
+            return (byScore != 0) ? byScore : other.name.compareTo(name);
+        }
+
+        boolean isBelow(String otherName, double otherScore) {
+            int byScore = Double.compare(score, otherScore);
+            return (byScore != 0) ? byScore < 0 : otherName.compareTo(name) < 0;
+        }
+    }
+
+    // Sorted set of name ids in the style of a roaring bitmap: ids are grouped by their high 16 bits, and each
+    // group is a sorted array of the low 16 bits while sparse and a 65536-bit bitmap once dense
+    static class Postings {
+        private static final int ARRAY_MAX = 4096; // Beyond this a bitmap (8 KB) is smaller than the array
+
+        private char[] keys = new char[1];
+        private Object[] groups = new Object[1]; // char[] or long[1024]
+        private int[] counts = new int[1];
+        private int groupCount;
+        private int size;
+
+        void add(int id) {
+            char key = (char) (id >>> 16);
+            char low = (char) id;
+            int g = Arrays.binarySearch(keys, 0, groupCount, key);
+            if (g < 0) {
+                g = -g - 1;
+                insertGroup(g, key);
+            }
+            if (groups[g] instanceof long[]) {
+                long[] bits = (long[]) groups[g];
+                if ((bits[low >>> 6] & (1L << low)) != 0) return;
+                bits[low >>> 6] |= 1L << low;
+            } else {
+                char[] lows = (char[]) groups[g];
+                int at = Arrays.binarySearch(lows, 0, counts[g], low);
+                if (at >= 0) return;
+                at = -at - 1;
+                if (counts[g] == lows.length) groups[g] = lows = Arrays.copyOf(lows, lows.length * 2);
+                System.arraycopy(lows, at, lows, at + 1, counts[g] - at);
+                lows[at] = low;
+                if (counts[g] + 1 > ARRAY_MAX) groups[g] = toBitmap(lows, counts[g] + 1);
+            }
+            counts[g]++;
+            size++;
+        }
+
+        void remove(int id) {
+            int g = Arrays.binarySearch(keys, 0, groupCount, (char) (id >>> 16));
+            if (g < 0) return;
+            char low = (char) id;
+            if (groups[g] instanceof long[]) {
+                long[] bits = (long[]) groups[g];
+                if ((bits[low >>> 6] & (1L << low)) == 0) return;
+                bits[low >>> 6] &= ~(1L << low);
+                if (counts[g] - 1 <= ARRAY_MAX / 2) groups[g] = toArray(bits, counts[g] - 1);
+            } else {
+                char[] lows = (char[]) groups[g];
+                int at = Arrays.binarySearch(lows, 0, counts[g], low);
+                if (at < 0) return;
+                System.arraycopy(lows, at + 1, lows, at, counts[g] - at - 1);
+            }
+            counts[g]--;
+            size--;
+            if (counts[g] == 0) removeGroup(g);
+        }
+
+        boolean contains(int id) {
+            int g = Arrays.binarySearch(keys, 0, groupCount, (char) (id >>> 16));
+            if (g < 0) return false;
+            char low = (char) id;
+            if (groups[g] instanceof long[]) return (((long[]) groups[g])[low >>> 6] & (1L << low)) != 0;
+            return Arrays.binarySearch((char[]) groups[g], 0, counts[g], low) >= 0;
+        }
+
+        // In increasing order
+        void forEach(IntConsumer action) {
+            for (int g = 0; g < groupCount; g++) {
+                int high = keys[g] << 16;
+                if (groups[g] instanceof long[]) {
+                    long[] bits = (long[]) groups[g];
+                    for (int w = 0; w < bits.length; w++) {
+                        for (long word = bits[w]; word != 0; word &= word - 1) {
+                            action.accept(high | (w << 6) | Long.numberOfTrailingZeros(word));
+                        }
+                    }
+                } else {
+                    char[] lows = (char[]) groups[g];
+                    for (int i = 0; i < counts[g]; i++) {
+                        action.accept(high | lows[i]);
+                    }
+                }
+            }
+        }
+
+        int first() {
+            int high = keys[0] << 16;
+            if (groups[0] instanceof char[]) return high | ((char[]) groups[0])[0];
+            long[] bits = (long[]) groups[0];
+            int w = 0;
+            while (bits[w] == 0) {
+                w++;
+            }
+            return high | (w << 6) | Long.numberOfTrailingZeros(bits[w]);
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void insertGroup(int g, char key) {
+            if (groupCount == keys.length) {
+                keys = Arrays.copyOf(keys, groupCount * 2);
+                groups = Arrays.copyOf(groups, groupCount * 2);
+                counts = Arrays.copyOf(counts, groupCount * 2);
+            }
+            System.arraycopy(keys, g, keys, g + 1, groupCount - g);
+            System.arraycopy(groups, g, groups, g + 1, groupCount - g);
+            System.arraycopy(counts, g, counts, g + 1, groupCount - g);
+            keys[g] = key;
+            groups[g] = new char[2];
+            counts[g] = 0;
+            groupCount++;
+        }
+
+        private void removeGroup(int g) {
+            System.arraycopy(keys, g + 1, keys, g, groupCount - g - 1);
+            System.arraycopy(groups, g + 1, groups, g, groupCount - g - 1);
+            System.arraycopy(counts, g + 1, counts, g, groupCount - g - 1);
+            groupCount--;
+            groups[groupCount] = null;
+        }
+
+        private static long[] toBitmap(char[] lows, int count) {
+            long[] bits = new long[1024];
+            for (int i = 0; i < count; i++) {
+                bits[lows[i] >>> 6] |= 1L << lows[i];
+            }
+            return bits;
+        }
+
+        private static char[] toArray(long[] bits, int count) {
+            char[] lows = new char[Math.max(2, count)];
+            int i = 0;
+            for (int w = 0; w < bits.length; w++) {
+                for (long word = bits[w]; word != 0; word &= word - 1) {
+                    lows[i++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                }
+            }
+            return lows;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded, time-expiring record of message IDs already handled, used to drop duplicate floods.
+// Each stripe keeps its IDs as two longs in primitive arrays: a ring in the order they were seen, so the
+// oldest entry is always at the head, and an open-addressing index over the ring. No object is kept per entry.
+public class SeenMessageCache {
+    private static final int STRIPES = 16; // Must match the 4 hash bits used to pick a stripe
+    private static final int INITIAL_SLOTS = 64; // Stripes grow by doubling up to their capacity
+
+    private Stripe[] stripes = new Stripe[STRIPES];
+    private int stripeCapacity;
+    private long ttlMillis;
+
+    private LongAdder hits = new LongAdder();      // Duplicates suppressed
+    private LongAdder misses = new LongAdder();    // First sightings
+    private LongAdder evictions = new LongAdder(); // Entries dropped for size or age
+
+    public SeenMessageCache(int maxEntries, long ttlMillis) {
+        this.stripeCapacity = Math.max(1, maxEntries / STRIPES);
+        this.ttlMillis = ttlMillis;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(Math.min(stripeCapacity, INITIAL_SLOTS));
+        }
+    }
+
+    // Records the ID and returns true the first time it is seen, false for a duplicate
+    public boolean markSeen(String messageId) {
+        long high;
+        long low;
+        if (isUuid(messageId)) { // Parsed in place, as UUID.fromString would, without allocating
+            high = hex(messageId, 0, 8) << 32 | hex(messageId, 9, 13) << 16 | hex(messageId, 14, 18);
+            low = hex(messageId, 19, 23) << 48 | hex(messageId, 24, 36);
+        } else { // Non-UUID IDs are hashed down to 128 bits
+            UUID id = UUID.nameUUIDFromBytes(messageId.getBytes());
+            high = id.getMostSignificantBits();
+            low = id.getLeastSignificantBits();
+        }
+        int hash = hash(high, low);
+        Stripe stripe = stripes[hash >>> 28]; // Top bits pick the stripe, low bits index within it
+        long now = System.currentTimeMillis();
+
+        synchronized (stripe) {
+            stripe.expire(now); // An expired ID is dropped here and counts as a first sighting below
+            if (stripe.find(high, low, hash) >= 0) {
+                hits.increment();
+                return false;
+            }
+            if (stripe.count == stripeCapacity) {
+                stripe.removeOldest();
+                evictions.increment();
+            }
+            stripe.add(high, low, hash, now);
+        }
+        misses.increment();
+        return true;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.count;
+            }
+        }
+        return size;
+    }
+
+    // Canonical 8-4-4-4-12 form, as produced by UUID.toString
+    private static boolean isUuid(String id) {
+        if (id.length() != 36) return false;
+        for (int i = 0; i < 36; i++) {
+            char c = id.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') return false;
+            } else if (Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hex(String id, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = (value << 4) | Character.digit(id.charAt(i), 16);
+        }
+        return value;
+    }
+
+    private static int hash(long high, long low) {
+        long mixed = high ^ (low * 0x9E3779B97F4A7C15L);
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+
+    private class Stripe {
+        // Ring of entries, oldest at head; slot i holds ID (highs[i], lows[i]) first seen at seenAt[i]
+        private long[] highs;
+        private long[] lows;
+        private long[] seenAt;
+        private int head;
+        private int count;
+        private int[] index; // Linear probing over the ring: slot + 1, 0 = empty; at most half full
+
+        Stripe(int slots) {
+            allocate(slots);
+        }
+
+        // Drops the oldest entries while they have outlived the TTL
+        void expire(long now) {
+            while (count > 0 && now - seenAt[head] > ttlMillis) {
+                removeOldest();
+                evictions.increment();
+            }
+        }
+
+        // Position of the ID in index, or -1
+        int find(long high, long low, int hash) {
+            int mask = index.length - 1;
+            for (int i = hash & mask; index[i] != 0; i = (i + 1) & mask) {
+                int slot = index[i] - 1;
+                if (highs[slot] == high && lows[slot] == low) return i;
+            }
+            return -1;
+        }
+
+        void add(long high, long low, int hash, long now) {
+            if (count == highs.length) grow();
+            int slot = (head + count) % highs.length;
+            highs[slot] = high;
+            lows[slot] = low;
+            seenAt[slot] = now;
+            count++;
+            insert(slot, hash);
+        }
+
+        void removeOldest() {
+            delete(find(highs[head], lows[head], hash(highs[head], lows[head])));
+            head = (head + 1) % highs.length;
+            count--;
+        }
+
+        private void insert(int slot, int hash) {
+            int mask = index.length - 1;
+            int i = hash & mask;
+            while (index[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            index[i] = slot + 1;
+        }
+
+        // Backward-shift deletion: later entries of the probe run move up so lookups never stop at a hole
+        private void delete(int position) {
+            int mask = index.length - 1;
+            int hole = position;
+            for (int i = (position + 1) & mask; index[i] != 0; i = (i + 1) & mask) {
+                int slot = index[i] - 1;
+                int home = hash(highs[slot], lows[slot]) & mask;
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    index[hole] = index[i];
+                    hole = i;
+                }
+            }
+            index[hole] = 0;
+        }
+
+        private void grow() {
+            long[] oldHighs = highs;
+            long[] oldLows = lows;
+            long[] oldSeenAt = seenAt;
+            int oldHead = head;
+            allocate(Math.min(stripeCapacity, oldHighs.length * 2));
+            for (int i = 0; i < count; i++) {
+                int from = (oldHead + i) % oldHighs.length;
+                highs[i] = oldHighs[from];
+                lows[i] = oldLows[from];
+                seenAt[i] = oldSeenAt[from];
+                insert(i, hash(highs[i], lows[i]));
+            }
+        }
+
+        private void allocate(int slots) {
+            highs = new long[slots];
+            lows = new long[slots];
+            seenAt = new long[slots];
+            head = 0;
+            index = new int[Integer.highestOneBit(slots * 2 - 1) << 1];
+        }
+    }
+}
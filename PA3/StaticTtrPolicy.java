@@ -0,0 +1,13 @@
+// Same TTR for every file, as configured
+public class StaticTtrPolicy implements TtrPolicy {
+    private int ttr;
+
+    public StaticTtrPolicy(int ttr) {
+        this.ttr = ttr;
+    }
+
+    @Override
+    public int computeTTR(FileEntry file) {
+        return ttr;
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Message I/O over a blocking socket. Every connection starts in text mode; a HELLO exchange
+// (see requestBinary and answerHello) switches both directions to BinaryCodec frames.
+public class StreamChannel implements MessageChannel {
+    private static final int HELLO_TIMEOUT_MS = 500; // Peers that predate HELLO never answer it
+
+    private Socket socket;
+    private DataInputStream in;
+    private OutputStream out;
+    private BinaryCodec encoder = new BinaryCodec(); // Guarded by this
+    private BinaryCodec decoder = new BinaryCodec(); // Reader thread only
+    private byte[] frame = new byte[8192];
+    private ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private volatile boolean binary;
+    private volatile boolean error;
+
+    public StreamChannel(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    // Returns the next message, or null once the peer closes the connection. Malformed messages are skipped.
+    public Message read() throws IOException {
+        while (true) {
+            if (binary) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return null;
+                }
+                if (length <= 0 || length > BinaryCodec.MAX_FRAME_SIZE) throw new IOException("Bad frame length " + length);
+                if (length > frame.length) frame = new byte[Math.max(length, frame.length * 2)];
+                in.readFully(frame, 0, length);
+                try {
+                    return decoder.decode(ByteBuffer.wrap(frame, 0, length));
+                } catch (RuntimeException e) { // The length prefix is intact, so only this frame is lost
+                    Log.warn("Dropping malformed frame of " + length + " bytes");
+                    continue;
+                }
+            }
+
+            line.reset();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    if (line.size() == 0) return null;
+                    break;
+                }
+                if (b != '\r') line.write(b);
+            }
+            String text = line.toString(StandardCharsets.UTF_8);
+            try {
+                return Message.parse(text);
+            } catch (RuntimeException e) {
+                Log.warn("Dropping malformed message " + text);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void send(Message message) {
+        if (error) return;
+        try {
+            if (binary) {
+                ByteBuffer encoded = encoder.encode(message);
+                out.write(encoded.array(), 0, encoded.limit());
+            } else {
+                out.write(message.toText().getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+            }
+            out.flush();
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    @Override
+    public boolean checkError() {
+        return error;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    // Client side: offers binary framing and switches if the peer agrees. Must run before any other traffic.
+    public boolean requestBinary(String messageId) throws IOException {
+        send(new Message(Message.HELLO, messageId, "BINARY", Integer.toString(BinaryCodec.VERSION)));
+        int previousTimeout = socket.getSoTimeout();
+        socket.setSoTimeout(HELLO_TIMEOUT_MS);
+        try {
+            Message reply = read();
+            if (reply != null && reply.getType() == Message.HELLO && messageId.equals(reply.getMessageId())
+                    && reply.getFieldCount() > 0 && reply.getField(0).equals("BINARY")) {
+                binary = true;
+            }
+        } catch (SocketTimeoutException e) {
+            // Peer speaks text only
+        } finally {
+            socket.setSoTimeout(previousTimeout);
+        }
+        return binary;
+    }
+
+    // Server side: answers a HELLO in text, then switches to frames if binary is allowed here
+    public void answerHello(Message hello, boolean binaryEnabled) {
+        boolean accept = acceptsBinary(hello, binaryEnabled);
+        synchronized (this) {
+            send(helloReply(hello, accept));
+            binary = accept;
+        }
+    }
+
+    static Message helloReply(Message hello, boolean accept) {
+        return accept ? new Message(Message.HELLO, hello.getMessageId(), "BINARY", Integer.toString(BinaryCodec.VERSION))
+                : new Message(Message.HELLO, hello.getMessageId(), "TEXT", "0");
+    }
+
+    static boolean acceptsBinary(Message hello, boolean binaryEnabled) {
+        return binaryEnabled && hello.getFieldCount() > 1 && hello.getField(0).equals("BINARY")
+                && hello.getField(1).equals(Integer.toString(BinaryCodec.VERSION));
+    }
+
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
@@ -1,164 +1,746 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.ToLongFunction;
 
 public class SuperPeer {
     private String nodeName;
     private List<String> neighbors;
-    private Map<String, List<FileEntry>> leafNodeFiles = new HashMap<>();
-    private Map<String, String> messageIdBuffer = new HashMap<>();
+    private FileCatalog catalog = new FileCatalog();
+    private SeenMessageCache seenMessages = new SeenMessageCache(100000, 60000); // Duplicate QUERY/INVALIDATION IDs
     private boolean pushEnabled;
+    private int defaultTTR = 30000;
+    private TtrPolicy ttrPolicy = new StaticTtrPolicy(30000);
+    private ConnectionManager connections;
+    private Map<String, InvalidationQueue> invalidationQueues = new ConcurrentHashMap<>(); // Per-neighbor push queues
+    private int invalidationQueueSize = 10000;
+    private boolean blockWhenQueueFull = false;
+    private LeaseTable leafLeases = new LeaseTable();     // Attached leaves caching each file
+    private LeaseTable neighborLeases = new LeaseTable(); // Neighbors with interested caches behind them
+    private Map<String, MessageChannel> leafChannels = new ConcurrentHashMap<>(); // Where to push to each leaf
+    private Map<String, Long> announcedInterest = new ConcurrentHashMap<>();   // fileName -> interest expiry already flooded
+    private long leaseDuration = 60000;
+    private long queryTimeout = 1000; // ms leaves collect QUERYHITs; a flood's hits are cached once it has passed
+    private QueryRouteTable queryRoutes = new QueryRouteTable(60000); // Reverse paths for QUERYHITs
+    private String serverMode = "thread"; // thread, virtual or nio
+    private int ioThreads = 2;            // Selector threads in nio mode
+    private boolean binaryProtocol = true; // Accept and offer binary framing via HELLO
+    private Metrics metrics;
+    private CatalogStore catalogStore;    // null unless a data directory is set
+    private long snapshotInterval = 60000; // ms between catalog snapshots
+    private RouteSummary routeSummary = new RouteSummary(); // The names this super-peer answers for
+    private Map<String, RouteSummary.Table> neighborRoutes = new ConcurrentHashMap<>(); // None = always forward
+    private Set<String> staleRoutes = ConcurrentHashMap.newKeySet(); // Neighbors to send the full table next
+    private QueryResultCache queryResults = new QueryResultCache(10000); // Remote hits by file name, null if disabled
+    private SearchIndex searchIndex = new SearchIndex(); // Tokens of registered names, for keyword and wildcard queries
+
+    private static final int DEFAULT_QUERY_TTL = 2; // For QUERY messages that carry no TTL
+    private static final int INTEREST_TTL = 2;      // Super-peer hops an INTEREST announcement travels
+    private static final long ROUTE_UPDATE_MS = 1000; // Catalog changes reach neighbors' route tables this often
+    private static final int MAX_SEARCH_RESULTS = 100; // Names one super-peer answers a search with
 
     public SuperPeer(String name, List<String> neighbors) {
         this.nodeName = name;
         this.neighbors = neighbors;
+        this.connections = new ConnectionManager(name, this::handleNeighborMessage);
+        catalog.setSummary(routeSummary);
+        catalog.setSearchIndex(searchIndex);
+        staleRoutes.addAll(neighbors);
+        this.metrics = new Metrics("SuperPeer", name);
+        registerGauges();
+    }
+
+    // Values read from the components that already keep them, sampled only when metrics are read
+    private void registerGauges() {
+        metrics.gauge("dedupe_hits", () -> seenMessages.getHits());
+        metrics.gauge("dedupe_misses", () -> seenMessages.getMisses());
+        metrics.gauge("dedupe_evictions", () -> seenMessages.getEvictions());
+        metrics.gauge("dedupe_cache_size", () -> seenMessages.size());
+        metrics.gauge("peer_connections", connections::size);
+        metrics.gauge("connections_open", () ->
+                metrics.counter("connections_accepted").sum() - metrics.counter("connections_closed").sum());
+        metrics.gauge("invalidation_queue_depth", () -> sumQueues(InvalidationQueue::size));
+        metrics.gauge("invalidations_sent", () -> sumQueues(InvalidationQueue::getSent));
+        metrics.gauge("invalidations_coalesced", () -> sumQueues(InvalidationQueue::getCoalesced));
+        metrics.gauge("invalidations_dropped", () -> sumQueues(InvalidationQueue::getDropped));
+        metrics.gauge("catalog_files", catalog::getFileCount);
+        metrics.gauge("catalog_log_records", () -> (catalogStore == null) ? 0 : catalogStore.getRecordsSinceSnapshot());
+        metrics.gauge("route_slots_set", routeSummary::getSlotsSet);
+        metrics.gauge("route_tables_held", neighborRoutes::size);
+        metrics.gauge("query_cache_hits", () -> (queryResults == null) ? 0 : queryResults.getHits());
+        metrics.gauge("query_cache_misses", () -> (queryResults == null) ? 0 : queryResults.getMisses());
+        metrics.gauge("query_cache_evictions", () -> (queryResults == null) ? 0 : queryResults.getEvictions());
+        metrics.gauge("query_cache_invalidations", () -> (queryResults == null) ? 0 : queryResults.getInvalidations());
+        metrics.gauge("query_cache_size", () -> (queryResults == null) ? 0 : queryResults.size());
+        metrics.gauge("search_index_names", searchIndex::getNameCount);
+        metrics.gauge("search_index_tokens", searchIndex::getTokenCount);
+    }
+
+    private long sumQueues(ToLongFunction<InvalidationQueue> value) {
+        long total = 0;
+        for (InvalidationQueue queue : invalidationQueues.values()) {
+            total += value.applyAsLong(queue);
+        }
+        return total;
     }
 
     public void setPushEnabled(boolean enabled) {
         this.pushEnabled = enabled;
     }
 
+    public void setDefaultTTR(int ttr) {
+        this.defaultTTR = ttr;
+    }
+
+    public void setTtrPolicy(TtrPolicy ttrPolicy) {
+        this.ttrPolicy = ttrPolicy;
+    }
+
+    public void setInvalidationQueueLimits(int queueSize, boolean blockWhenFull) {
+        this.invalidationQueueSize = queueSize;
+        this.blockWhenQueueFull = blockWhenFull;
+    }
+
+    public void setLeaseDuration(long leaseDuration) {
+        this.leaseDuration = leaseDuration;
+    }
+
+    public void setQueryTimeout(long queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    public void setSeenCacheLimits(int maxEntries, long ttlMillis) {
+        this.seenMessages = new SeenMessageCache(maxEntries, ttlMillis);
+    }
+
+    // Files whose remote QUERYHITs are kept; 0 floods every query
+    public void setQueryCacheSize(int maxFiles) {
+        this.queryResults = (maxFiles > 0) ? new QueryResultCache(maxFiles) : null;
+    }
+
+    public QueryResultCache getQueryResults() {
+        return queryResults;
+    }
+
+    public SeenMessageCache getSeenMessages() {
+        return seenMessages;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    // Keeps the catalog in <directory>/<node name> so a restart reloads it instead of waiting for every leaf
+    public void setDataDirectory(File directory, long snapshotInterval) {
+        this.catalogStore = new CatalogStore(nodeName, new File(directory, nodeName));
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    public void setServerMode(String serverMode) {
+        this.serverMode = serverMode;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    public void setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+        connections.setBinaryPreferred(binaryProtocol);
+    }
+
     public void startServer() throws IOException {
-        ServerSocket serverSocket = new ServerSocket(getPort(nodeName));
-        System.out.println(nodeName + " is running...");
+        metrics.publish();
+        if (catalogStore != null) {
+            long startedAt = System.nanoTime();
+            int restored = catalogStore.load(catalog, defaultTTR);
+            Log.info(nodeName + ": Restored " + restored + " catalog entries in " + (System.nanoTime() - startedAt) / 1000000 + " ms");
+            catalogStore.startCompaction(catalog, snapshotInterval);
+        }
+        startRouteUpdates();
+        if (serverMode.equals("nio")) {
+            // Handlers may block on neighbors, so they run off the selector threads
+            ExecutorService handlers = newVirtualThreadExecutor();
+            if (handlers == null) handlers = Executors.newCachedThreadPool(NioServer::newHandlerThread);
+            Log.info(nodeName + " is running (nio, " + ioThreads + " I/O threads)...");
+            new NioServer(nodeName, PeerDirectory.getMessagePort(nodeName), ioThreads, binaryProtocol, metrics,
+                    handlers, this::handleMessage).start();
+            return;
+        }
+
+        ServerSocket serverSocket = new ServerSocket(PeerDirectory.getMessagePort(nodeName));
+        ExecutorService executor = serverMode.equals("virtual") ? newVirtualThreadExecutor() : null;
+        if (serverMode.equals("virtual") && executor == null) {
+            Log.warn(nodeName + ": Virtual threads unavailable on this JVM, using a thread per connection");
+        }
+        Log.info(nodeName + " is running (" + (executor != null ? "virtual" : "thread") + ")...");
 
         while (true) {
             Socket clientSocket = serverSocket.accept();
-            new Thread(() -> handleClient(clientSocket)).start();
-        }
-    }
-
-    private void handleClient(Socket socket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            String message = in.readLine();
-            if (message.startsWith("REGISTER")) {
-                handleRegisterRequest(message);
-            } else if (message.startsWith("POLL")) {
-                handlePollRequest(message, out);
-            } else if (message.startsWith("INVALIDATION") && pushEnabled) {
-                handleInvalidation(message);
-            } else if (message.startsWith("QUERY")) {
-                handleQuery(message, socket);
+            long acceptedAt = System.nanoTime();
+            metrics.counter("connections_accepted").increment();
+            if (executor != null) {
+                executor.execute(() -> handleClient(clientSocket, acceptedAt));
+            } else {
+                new Thread(() -> handleClient(clientSocket, acceptedAt)).start();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 
-    private void handleRegisterRequest(String message) {
-        String[] parts = message.split(":");
-        String leafNode = parts[1];
-        String fileName = parts[2];
+    // Virtual threads need Java 21; looked up reflectively so the code still builds and runs on older JDKs.
+    // Null when unavailable.
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
 
-        leafNodeFiles.computeIfAbsent(leafNode, k -> new ArrayList<>())
-                .add(new FileEntry(fileName, 1, leafNode, 30000)); // Default version = 1
-        System.out.println(nodeName + ": Registered file " + fileName + " from leaf node " + leafNode);
+    private void handleClient(Socket socket, long acceptedAt) {
+        metrics.histogram("accept_ns").record(System.nanoTime() - acceptedAt); // Hand-off delay to the serving thread
+        StreamChannel channel = null;
+        try {
+            channel = new StreamChannel(socket);
+            Message message;
+            while ((message = channel.read()) != null) { // Connections are persistent; serve until the peer closes
+                try {
+                    if (message.getType() == Message.HELLO) {
+                        channel.answerHello(message, binaryProtocol);
+                    } else {
+                        handleMessage(message, channel);
+                    }
+                } catch (RuntimeException e) {
+                    metrics.counter("malformed_messages").increment();
+                    Log.warn(nodeName + ": Dropping malformed message " + message);
+                }
+            }
+        } catch (IOException e) {
+            Log.error(nodeName + ": Connection failed", e);
+        } finally {
+            if (channel != null) channel.close();
+            metrics.counter("connections_closed").increment();
+        }
     }
 
-    private void handlePollRequest(String message, PrintWriter out) {
-        String[] parts = message.split(":");
-        String requester = parts[1];
-        String fileName = parts[2];
-        int clientVersion = Integer.parseInt(parts[3]);
+    private void handleMessage(Message message, MessageChannel out) {
+        long startedAt = System.nanoTime();
+        String type = message.getType(); // Known types are shared constants, see Message.canonicalType
+        if (type == Message.REGISTER) {
+            handleRegisterRequest(message);
+        } else if (type == Message.UNREGISTER) {
+            handleUnregisterRequest(message);
+        } else if (type == Message.REPLICA) {
+            handleReplica(message);
+        } else if (type == Message.POLLBATCH) {
+            handlePollBatch(message, out);
+        } else if (type == Message.POLL) {
+            handlePollRequest(message, out);
+        } else if (type == Message.INVALIDATIONBATCH) {
+            handleInvalidationBatch(message);
+        } else if (type == Message.INVALIDATION) {
+            handleInvalidation(message);
+        } else if (type == Message.SUBSCRIBE) {
+            handleSubscribe(message, out);
+        } else if (type == Message.INTEREST) {
+            handleInterest(message);
+        } else if (type == Message.QUERYHIT) {
+            handleQueryHit(message);
+        } else if (type == Message.QUERY) {
+            handleQuery(message, out);
+        } else if (type == Message.DIGEST) {
+            handleDigest(message, out);
+        } else if (type == Message.SYNC) {
+            handleSync(message);
+        } else if (type == Message.ROUTETABLE) {
+            handleRouteTable(message, out);
+        } else {
+            metrics.counter("unknown_messages").increment(); // Not labelled by type, which comes off the wire
+            return;
+        }
+        metrics.histogram("handle_ns", type).record(System.nanoTime() - startedAt);
+    }
 
-        System.out.println(nodeName + ": Received POLL for file: " + fileName + " from " + requester);
+    // Replies arriving on connections this super-peer opened to its neighbors
+    private void handleNeighborMessage(Message message) {
+        if (message.getType() == Message.QUERYHIT) {
+            handleQueryHit(message);
+        } else if (message.getType() == Message.ROUTERESET) { // Format: ROUTERESET:messageId:neighbor
+            staleRoutes.add(message.getField(0));
+        }
+    }
 
-        for (List<FileEntry> files : leafNodeFiles.values()) {
-            for (FileEntry file : files) {
-                if (file.getFileName().equals(fileName)) {
-                    if (file.getVersion() == clientVersion) {
-                        out.println("VALID:" + file.getFileName() + ":30000");
-                    } else {
-                        out.println("INVALID:" + file.getFileName() + ":" + file.getVersion());
+    // Sends neighbors the slots of the route summary that changed in the last interval, so a burst of
+    // registrations costs each neighbor one small patch. Neighbors that are new, were unreachable or lost
+    // track get the whole table instead.
+    private void startRouteUpdates() {
+        Thread updater = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(ROUTE_UPDATE_MS);
+                    RouteSummary.Patch patch = routeSummary.takeChanges();
+                    for (String neighbor : neighbors) {
+                        if (staleRoutes.remove(neighbor)) {
+                            sendRoutes(neighbor, routeSummary.fullTable());
+                        } else if (patch != null) {
+                            sendRoutes(neighbor, patch);
+                        }
                     }
+                } catch (InterruptedException e) {
                     return;
                 }
             }
+        }, nodeName + "-routes");
+        updater.setDaemon(true);
+        updater.start();
+    }
+
+    private void sendRoutes(String neighbor, RouteSummary.Patch patch) {
+        try {
+            connections.send(neighbor, new Message(Message.ROUTETABLE, UUID.randomUUID().toString(), patch.toFields(nodeName)));
+            metrics.counter("route_updates_sent").increment();
+        } catch (IOException e) {
+            staleRoutes.add(neighbor); // It may have missed patches; start it over once it is reachable
+            Log.debug(() -> nodeName + ": Could not send route table to " + neighbor + ": " + e.getMessage());
         }
-        out.println("MISSING:" + fileName);
     }
 
-    private void handleInvalidation(String message) {
-        String[] parts = message.split(":");
-        String msgId = parts[1];
-        String originServer = parts[2];
-        String fileName = parts[3];
-        int newVersion = Integer.parseInt(parts[4]);
+    private void handleRouteTable(Message message, MessageChannel out) {
+        // Format: ROUTETABLE:messageId:neighbor:slots:fromVersion:toVersion:encoding:chunk1[:chunk2...]
+        String neighbor = message.getField(0);
+        RouteSummary.Table table = RouteSummary.Patch.fromFields(message).applyTo(neighborRoutes.get(neighbor));
+        if (table == null) { // A patch was missed; forward everything to the neighbor until its full table arrives
+            neighborRoutes.remove(neighbor);
+            out.send(new Message(Message.ROUTERESET, UUID.randomUUID().toString(), nodeName));
+            Log.debug(() -> nodeName + ": Route table from " + neighbor + " out of step, asked for a full one");
+            return;
+        }
+        neighborRoutes.put(neighbor, table);
+        Log.debug(() -> nodeName + ": Route table from " + neighbor + " now at version " + table.getVersion());
+    }
 
-        if (messageIdBuffer.containsKey(msgId)) return;
+    // Only a query's last hop is filtered: a neighbor that may forward it further answers for more than its own table
+    private boolean mayAnswer(String neighbor, String fileName, int forwardedTtl) {
+        if (forwardedTtl > 1) return true;
+        RouteSummary.Table table = neighborRoutes.get(neighbor);
+        return table == null || table.mightContain(fileName);
+    }
 
-        messageIdBuffer.put(msgId, originServer);
+    private void handleRegisterRequest(Message message) {
+        String leafNode = message.getField(0);
 
-        for (Map.Entry<String, List<FileEntry>> entry : leafNodeFiles.entrySet()) {
-            for (FileEntry file : entry.getValue()) {
-                if (file.getFileName().equals(fileName) && file.getVersion() < newVersion) {
-                    file.markAsInvalid();
-                    System.out.println(nodeName + ": Invalidated " + fileName + " for leaf node " + entry.getKey());
-                }
+        // REGISTER:leaf:file1[:file2...] registers a whole batch of files in one message
+        List<FileEntry> entries = new ArrayList<>(message.getFieldCount() - 1);
+        for (int i = 1; i < message.getFieldCount(); i++) {
+            entries.add(new FileEntry(message.getField(i), 1, leafNode, defaultTTR)); // Default version = 1
+        }
+        catalog.registerAll(leafNode, entries);
+        if (catalogStore != null) catalogStore.logRegister(leafNode, entries);
+        Log.info(nodeName + ": Registered " + entries.size() + " file(s) from leaf node " + leafNode);
+    }
+
+    // A leaf offering its downloaded copy to other downloaders. Copies are not persisted: a leaf withdraws its
+    // copy with UNREGISTER once it goes stale, and offers its copies again when it reconnects.
+    private void handleReplica(Message message) {
+        // Format: REPLICA:leaf:origin:fileName:version
+        String leafNode = message.getField(0);
+        FileEntry entry = new FileEntry(message.getField(2), message.getIntField(3), message.getField(1), defaultTTR);
+        catalog.register(leafNode, entry);
+        Log.debug(() -> nodeName + ": " + leafNode + " holds a copy of " + entry.getFileName() + " (version " +
+                entry.getVersion() + ")");
+    }
+
+    private void handleUnregisterRequest(Message message) {
+        String leafNode = message.getField(0);
+
+        if (message.getFieldCount() == 1) { // UNREGISTER:leaf drops everything the leaf registered
+            int removed = catalog.unregisterLeaf(leafNode);
+            if (catalogStore != null) catalogStore.logUnregister(leafNode, Collections.emptyList());
+            Log.info(nodeName + ": Unregistered " + removed + " file(s) from leaf node " + leafNode);
+            return;
+        }
+        List<String> fileNames = new ArrayList<>(message.getFieldCount() - 1);
+        for (int i = 1; i < message.getFieldCount(); i++) {
+            catalog.unregister(leafNode, message.getField(i));
+            fileNames.add(message.getField(i));
+        }
+        if (catalogStore != null) catalogStore.logUnregister(leafNode, fileNames);
+        Log.info(nodeName + ": Unregistered " + (message.getFieldCount() - 1) + " file(s) from leaf node " + leafNode);
+    }
+
+    // Compares a leaf's bucket digests with what the catalog holds for it and answers with the buckets that differ
+    private void handleDigest(Message message, MessageChannel out) {
+        // Format: DIGEST:messageId:leaf:bucketCount:hash0[:hash1...]
+        String leafNode = message.getField(0);
+        int bucketCount = message.getIntField(1);
+        if (Integer.bitCount(bucketCount) != 1 || message.getFieldCount() != 2 + bucketCount) {
+            throw new IllegalArgumentException("Bad digest of " + bucketCount + " bucket(s)");
+        }
+
+        long[] ours = CatalogDigest.compute(registeredVersions(leafNode), bucketCount);
+        List<String> differing = new ArrayList<>();
+        for (int i = 0; i < bucketCount; i++) {
+            if (ours[i] != Long.parseUnsignedLong(message.getField(2 + i), 16)) differing.add(Integer.toString(i));
+        }
+        // Response format: DIGESTRESULT:messageId[:bucket...], empty when the catalog is up to date
+        out.send(new Message(Message.DIGESTRESULT, message.getMessageId(), differing.toArray(new String[0])));
+        Log.debug(() -> nodeName + ": " + differing.size() + " of " + bucketCount + " bucket(s) differ for " + leafNode);
+    }
+
+    // Replaces what the catalog holds for one bucket of a leaf's files with the leaf's own list
+    private void handleSync(Message message) {
+        // Format: SYNC:messageId:leaf:bucketCount:bucket[:fileName:version...]
+        String leafNode = message.getField(0);
+        int bucketCount = message.getIntField(1);
+        int bucket = message.getIntField(2);
+        if (Integer.bitCount(bucketCount) != 1 || bucket < 0 || bucket >= bucketCount) {
+            throw new IllegalArgumentException("Bad bucket " + bucket + " of " + bucketCount);
+        }
+
+        Map<String, Integer> listed = new HashMap<>();
+        for (int i = 3; i + 1 < message.getFieldCount(); i += 2) {
+            listed.put(message.getField(i), message.getIntField(i + 1));
+        }
+        List<String> removed = new ArrayList<>();
+        for (String fileName : new ArrayList<>(catalog.getFiles(leafNode))) {
+            if (CatalogDigest.bucketOf(fileName, bucketCount) == bucket && !listed.containsKey(fileName) &&
+                    isOwnedBy(fileName, leafNode)) {
+                catalog.unregister(leafNode, fileName);
+                removed.add(fileName);
+            }
+        }
+        List<FileEntry> registered = new ArrayList<>();
+        for (Map.Entry<String, Integer> file : listed.entrySet()) {
+            FileEntry existing = catalog.getReplica(file.getKey(), leafNode);
+            if (existing != null && existing.getVersion() == file.getValue()) continue;
+            FileEntry entry = new FileEntry(file.getKey(), file.getValue(), leafNode, defaultTTR); // The leaf is the origin
+            catalog.register(leafNode, entry);
+            registered.add(entry);
+        }
+        if (catalogStore != null) {
+            if (!removed.isEmpty()) catalogStore.logUnregister(leafNode, removed);
+            if (!registered.isEmpty()) catalogStore.logRegister(leafNode, registered);
+        }
+        Log.debug(() -> nodeName + ": Synced bucket " + bucket + " of " + leafNode + ": " + registered.size() +
+                " registered, " + removed.size() + " removed");
+    }
+
+    private Map<String, Integer> registeredVersions(String leafNode) {
+        Map<String, Integer> versions = new HashMap<>();
+        for (String fileName : catalog.getFiles(leafNode)) {
+            FileEntry entry = catalog.getReplica(fileName, leafNode);
+            if (entry != null && entry.getOriginServer().equals(leafNode)) versions.put(fileName, entry.getVersion());
+        }
+        return versions;
+    }
+
+    // Leaves reconcile only the files they own; the copies they offer come and go with REPLICA and UNREGISTER
+    private boolean isOwnedBy(String fileName, String leafNode) {
+        FileEntry entry = catalog.getReplica(fileName, leafNode);
+        return entry != null && entry.getOriginServer().equals(leafNode);
+    }
+
+    private void handlePollRequest(Message message, MessageChannel out) {
+        // Format: POLL:messageId:requester:fileName:version
+        String messageId = message.getMessageId();
+        String requester = message.getField(0);
+        String fileName = message.getField(1);
+        int clientVersion = message.getIntField(2);
+
+        Log.debug(() -> nodeName + ": Received POLL for file: " + fileName + " from " + requester);
+
+        FileEntry file = catalog.getOrigin(fileName);
+        if (file == null) {
+            out.send(new Message(Message.MISSING, messageId, fileName));
+        } else if (file.getVersion() == clientVersion) {
+            out.send(new Message(Message.VALID, messageId, file.getFileName(), Integer.toString(ttrPolicy.computeTTR(file))));
+        } else {
+            out.send(new Message(Message.INVALID, messageId, file.getFileName(), Integer.toString(file.getVersion())));
+        }
+    }
+
+    // Checks many files for one requester in a single round trip
+    private void handlePollBatch(Message message, MessageChannel out) {
+        // Format: POLLBATCH:messageId:requester:fileName:version[:fileName:version...]
+        String requester = message.getField(0);
+        int fileCount = (message.getFieldCount() - 1) / 2;
+
+        // Response format: POLLRESULT:messageId:status:fileName:value[:status:fileName:value...]
+        String[] results = new String[fileCount * 3];
+        for (int i = 0; i < fileCount; i++) {
+            String fileName = message.getField(1 + 2 * i);
+            int clientVersion = message.getIntField(2 + 2 * i);
+
+            FileEntry file = catalog.getOrigin(fileName);
+            results[3 * i + 1] = fileName;
+            if (file == null) {
+                results[3 * i] = Message.MISSING;
+                results[3 * i + 2] = "0";
+            } else if (file.getVersion() == clientVersion) {
+                results[3 * i] = Message.VALID;
+                results[3 * i + 2] = Integer.toString(ttrPolicy.computeTTR(file));
+            } else {
+                results[3 * i] = Message.INVALID;
+                results[3 * i + 2] = Integer.toString(file.getVersion());
+            }
+        }
+        out.send(new Message(Message.POLLRESULT, message.getMessageId(), results));
+        Log.debug(() -> nodeName + ": Received POLL for " + fileCount + " file(s) from " + requester);
+    }
+
+    private void handleInvalidation(Message message) {
+        // Format: INVALIDATION:messageId:originServer:fileName:version
+        applyInvalidation(new InvalidationQueue.Invalidation(message.getMessageId(), message.getField(0),
+                message.getField(1), message.getIntField(2)));
+    }
+
+    private void handleInvalidationBatch(Message message) {
+        // Format: INVALIDATIONBATCH:batchId:messageId:originServer:fileName:version[:messageId:originServer:fileName:version...]
+        for (int i = 0; i + 3 < message.getFieldCount(); i += 4) {
+            applyInvalidation(new InvalidationQueue.Invalidation(message.getField(i), message.getField(i + 1),
+                    message.getField(i + 2), message.getIntField(i + 3)));
+        }
+    }
+
+    private void applyInvalidation(InvalidationQueue.Invalidation invalidation) {
+        String originServer = invalidation.getOriginServer();
+        String fileName = invalidation.getFileName();
+        int newVersion = invalidation.getVersion();
+
+        if (!seenMessages.markSeen(invalidation.getMessageId())) return;
+
+        // The origin's own entry takes the new version, which also feeds the adaptive TTR history
+        FileEntry origin = catalog.getReplica(fileName, originServer);
+        if (origin != null && newVersion > origin.getVersion()) {
+            origin.advanceVersion(newVersion);
+            if (catalogStore != null) catalogStore.logVersion(originServer, fileName, newVersion);
+        }
+        if (queryResults != null) queryResults.invalidate(fileName, newVersion);
+
+        if (!pushEnabled) return; // Pull mode: replicas learn about the change when they poll
+
+        for (Map.Entry<String, FileEntry> replica : catalog.getReplicas(fileName).entrySet()) {
+            if (replica.getValue().getVersion() < newVersion) {
+                replica.getValue().markAsInvalid();
+                Log.debug(() -> nodeName + ": Invalidated " + fileName + " for leaf node " + replica.getKey());
+            }
+        }
+
+        // Push only to caches holding live leases; everyone else falls back to pull
+        int fanout = 0;
+        for (String leaf : leafLeases.getLiveSubscribers(fileName)) {
+            MessageChannel channel = leafChannels.get(leaf);
+            if (channel != null) {
+                channel.send(new Message(Message.INVALIDATION, invalidation.getMessageId(), originServer, fileName,
+                        Integer.toString(newVersion)));
+                fanout++;
             }
+            leafLeases.revoke(fileName, leaf); // The copy is stale; the leaf subscribes again after re-downloading
+        }
+
+        // Queue for each interested neighbor instead of sending inline, so a slow neighbor never stalls this thread
+        for (String neighbor : neighborLeases.getLiveSubscribers(fileName)) {
+            invalidationQueue(neighbor).offer(invalidation);
+            fanout++;
         }
+        metrics.histogram("fanout", Message.INVALIDATION).record(fanout);
+    }
+
+    private void handleSubscribe(Message message, MessageChannel out) {
+        // Format: SUBSCRIBE:messageId:leaf:fileName:version
+        String messageId = message.getMessageId();
+        String leafNode = message.getField(0);
+        String fileName = message.getField(1);
 
+        if (!pushEnabled) { // No push, so no lease; the leaf relies on pull
+            out.send(new Message(Message.LEASE, messageId, fileName, "0"));
+            return;
+        }
+
+        long expiry = System.currentTimeMillis() + leaseDuration;
+        leafLeases.grant(fileName, leafNode, expiry);
+        leafChannels.put(leafNode, out);
+        out.send(new Message(Message.LEASE, messageId, fileName, Long.toString(expiry)));
+        Log.debug(() -> nodeName + ": Granted lease on " + fileName + " to " + leafNode);
+
+        announceInterest(fileName, expiry);
+    }
+
+    // Tells nearby super-peers to route invalidations of this file here until the expiry
+    private void announceInterest(String fileName, long expiry) {
+        Long announced = announcedInterest.get(fileName);
+        if (announced != null && announced >= expiry - leaseDuration / 2) return; // Still covers most of this lease
+        announcedInterest.put(fileName, expiry);
+
+        String messageId = UUID.randomUUID().toString();
+        seenMessages.markSeen(messageId);
+        Message interest = new Message(Message.INTEREST, messageId, INTEREST_TTL, -1, nodeName, fileName, Long.toString(expiry));
         for (String neighbor : neighbors) {
-            propagateMessage(message, neighbor);
+            propagateMessage(interest, neighbor);
+        }
+        metrics.histogram("fanout", Message.INTEREST).record(neighbors.size());
+    }
+
+    private void handleInterest(Message message) {
+        // Format: INTEREST:messageId:fromSuperPeer:fileName:expiry:ttl
+        String messageId = message.getMessageId();
+        String from = message.getField(0);
+        String fileName = message.getField(1);
+        long expiry = message.getLongField(2);
+        int ttl = message.getTtl();
+
+        if (!seenMessages.markSeen(messageId)) return;
+        neighborLeases.grant(fileName, from, expiry); // Invalidations for this file now flow back toward the sender
+
+        if (ttl > 1) {
+            Message forwarded = new Message(Message.INTEREST, messageId, ttl - 1, -1, nodeName, fileName, Long.toString(expiry));
+            int fanout = 0;
+            for (String neighbor : neighbors) {
+                if (neighbor.equals(from)) continue;
+                propagateMessage(forwarded, neighbor);
+                fanout++;
+            }
+            metrics.histogram("fanout", Message.INTEREST).record(fanout);
         }
     }
 
-    private void handleQuery(String message, Socket socket) {
+    private InvalidationQueue invalidationQueue(String neighbor) {
+        return invalidationQueues.computeIfAbsent(neighbor, k ->
+                new InvalidationQueue(nodeName, neighbor, connections, invalidationQueueSize, blockWhenQueueFull));
+    }
+
+    private void handleQuery(Message message, MessageChannel out) {
         try {
-            String[] parts = message.split(":");
-            String messageId = parts[1];
-            String fileName = parts[2];
+            // Format: QUERY:messageId:fileName[:ttl:hops], or QUERY:messageId:expression:limit[:ttl:hops] to search
+            String messageId = message.getMessageId();
+            String fileName = message.getField(0);
+            int ttl = (message.getTtl() >= 0) ? message.getTtl() : DEFAULT_QUERY_TTL;
+            int hops = Math.max(0, message.getHops());
 
             // Avoid duplicate queries
-            if (messageIdBuffer.containsKey(messageId)) return;
-            messageIdBuffer.put(messageId, socket.getInetAddress().getHostAddress());
-
-            // Search for the file in connected leaf nodes
-            boolean found = false;
-            for (Map.Entry<String, List<FileEntry>> entry : leafNodeFiles.entrySet()) {
-                for (FileEntry file : entry.getValue()) {
-                    if (file.getFileName().equals(fileName)) {
-                        sendQueryHit(socket, file, file.getLastModifiedTime());
-                        found = true;
-                        break;
-                    }
+            if (!seenMessages.markSeen(messageId)) return;
+            boolean search = message.getFieldCount() > 1;
+            queryRoutes.put(messageId, out, !search); // Hits from neighbors travel back along this connection
+
+            if (search) {
+                handleSearch(message, out, ttl, hops);
+                return;
+            }
+
+            // Answer with every replica held by connected leaf nodes
+            Map<String, FileEntry> replicas = catalog.getReplicas(fileName);
+            if (!replicas.isEmpty()) {
+                FileEntry origin = catalog.getOrigin(fileName); // Null when only copies are registered here
+                for (Map.Entry<String, FileEntry> replica : replicas.entrySet()) {
+                    sendQueryHit(out, messageId, replica.getKey(), replica.getValue(), origin);
                 }
-                if (found) break;
             }
 
-            // If not found, propagate the query to neighbors
-            if (!found) {
-                for (String neighbor : neighbors) {
-                    propagateMessage(message, neighbor);
+            // A leaf's query for a file other super-peers answered recently is served from those answers
+            if (ttl > 1 && hops == 0 && queryResults != null) {
+                List<QueryHit> cached = queryResults.get(fileName);
+                if (cached != null) {
+                    for (QueryHit hit : cached) {
+                        out.send(hit.withMessageId(messageId).toMessage());
+                    }
+                    metrics.counter("queryhits_cached").add(cached.size());
+                    return;
                 }
             }
+
+            // Keep flooding while the TTL allows
+            if (ttl > 1) forwardQuery(new Message(Message.QUERY, messageId, ttl - 1, hops + 1, fileName), fileName);
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error(nodeName + ": Query failed", e);
         }
     }
 
-    private void sendQueryHit(Socket socket, FileEntry file, long originLastModifiedTime) {
-        try (PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            String queryHitMessage = "QUERYHIT:" + file.getFileName() + ":" +
-                    originLastModifiedTime + ":" + file.getLastModifiedTime();
-            out.println(queryHitMessage);
-            System.out.println(nodeName + ": Sent QUERYHIT for file " + file.getFileName());
-        } catch (IOException e) {
-            e.printStackTrace();
+    // Answers with every replica of the best matching names here. Route tables and the result cache only know
+    // exact names, so searches are always flooded while the TTL allows.
+    private void handleSearch(Message message, MessageChannel out, int ttl, int hops) {
+        String expression = message.getField(0);
+        int limit = Math.min(MAX_SEARCH_RESULTS, message.getIntField(1));
+        List<String> matches = searchIndex.search(expression, limit);
+        for (String fileName : matches) {
+            FileEntry origin = catalog.getOrigin(fileName);
+            for (Map.Entry<String, FileEntry> replica : catalog.getReplicas(fileName).entrySet()) {
+                sendQueryHit(out, message.getMessageId(), replica.getKey(), replica.getValue(), origin);
+            }
+        }
+        metrics.histogram("search_matches").record(matches.size());
+        if (ttl > 1) {
+            forwardQuery(new Message(Message.QUERY, message.getMessageId(), ttl - 1, hops + 1, expression,
+                    Integer.toString(limit)), null);
         }
     }
 
-    private void propagateMessage(String message, String neighbor) {
-        try (Socket socket = new Socket("localhost", getPort(neighbor));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            out.println(message);
-        } catch (IOException e) {
-            e.printStackTrace();
+    // fileName is null for searches, which no route table can rule out
+    private void forwardQuery(Message forwarded, String fileName) {
+        int fanout = 0;
+        for (String neighbor : neighbors) {
+            if (fileName != null && !mayAnswer(neighbor, fileName, forwarded.getTtl())) {
+                metrics.counter("queries_filtered").increment();
+                continue;
+            }
+            propagateMessage(forwarded, neighbor);
+            fanout++;
         }
+        metrics.histogram("fanout", Message.QUERY).record(fanout);
     }
 
-    private int getPort(String peerName) {
-        return 8000 + Integer.parseInt(peerName.replaceAll("\\D+", ""));
+    // origin is null when the file's origin is not registered here; the hit then leaves staleness to the leaf,
+    // which learns the origin's version from the super-peer that has it
+    private void sendQueryHit(MessageChannel out, String messageId, String holder, FileEntry file, FileEntry origin) {
+        long originLastModified = (origin == null) ? 0 : origin.getLastModifiedTime();
+        int originVersion = (origin == null) ? -1 : origin.getVersion();
+        int ttr = (origin == null) ? 0 : ttrPolicy.computeTTR(origin);
+        QueryHit hit = new QueryHit(messageId, file.getFileName(), originLastModified, file.getLastModifiedTime(),
+                holder, file.getVersion(), originVersion, ttr);
+        out.send(hit.toMessage());
+        metrics.counter("queryhits_sent").increment();
+        Log.debug(() -> nodeName + ": Sent QUERYHIT for file " + file.getFileName());
+    }
+
+    private void handleQueryHit(Message message) {
+        MessageChannel upstream = queryRoutes.get(message.getMessageId());
+        if (upstream == null) { // Route expired or query unknown; drop the hit
+            metrics.counter("queryhits_unroutable").increment();
+            return;
+        }
+        upstream.send(message);
+        if (queryResults != null && queryRoutes.isCacheable(message.getMessageId())) {
+            cacheQueryHit(message.getMessageId(), QueryHit.fromMessage(message));
+        }
+    }
+
+    // Stale hits are not kept, so answering from the cache never adds stale results. With push, interest is
+    // announced as for a leased copy, so the origin's invalidations reach the cache before the TTR runs out.
+    // Without push nothing reaches the cache, so an answer is kept no longer than the TTR the origin's
+    // super-peer gave its hit, as long as a polled copy would be trusted. Hits from copies carry no TTR, and an
+    // answer made only of them is not cached at all.
+    private void cacheQueryHit(String messageId, QueryHit hit) {
+        if (hit.isStale()) return;
+        long ttl;
+        if (pushEnabled) {
+            ttl = defaultTTR;
+        } else {
+            ttl = (hit.getTtr() > 0) ? Math.min(defaultTTR, hit.getTtr()) : -1;
+        }
+        long routedAt = queryRoutes.getCreatedAt(messageId);
+        if (routedAt < 0) return;
+        queryResults.add(messageId, hit, ttl, routedAt + queryTimeout); // Published once the leaf stops collecting
+        if (pushEnabled) announceInterest(hit.getFileName(), System.currentTimeMillis() + leaseDuration);
+    }
+
+    private void propagateMessage(Message message, String neighbor) {
+        long startedAt = System.nanoTime();
+        try {
+            connections.send(neighbor, message);
+            metrics.histogram("forward_ns", message.getType()).record(System.nanoTime() - startedAt);
+        } catch (IOException e) {
+            metrics.counter("forward_errors", message.getType()).increment();
+            Log.error(nodeName + ": Could not forward " + message.getType() + " to " + neighbor, e);
+        }
     }
 }
@@ -0,0 +1,236 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+// Downloads one version of a file from several holders at once. The file is split into fixed-size chunks
+// that every holder's worker takes from a shared queue, so fast holders end up serving more of it. Each chunk
+// is checked against the origin's hashes before it is written into a preallocated file. When the
+// queue runs dry, idle workers fetch chunks still in flight at slower holders again; the first copy to
+// arrive wins.
+public class SwarmDownloader {
+    public static final int CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_SOURCES = 8;
+
+    private String nodeName;
+    private FileDownloader downloader;
+    private Metrics metrics;
+
+    public SwarmDownloader(String nodeName, FileDownloader downloader, Metrics metrics) {
+        this.nodeName = nodeName;
+        this.downloader = downloader;
+        this.metrics = metrics;
+    }
+
+    // Returns the header of the finished file, or null if no holder had the version
+    public FileDownloader.Header download(String fileName, List<String> holders, int version, File directory) throws IOException {
+        directory.mkdirs();
+        List<String> sources = new ArrayList<>(holders.subList(0, Math.min(MAX_SOURCES, holders.size())));
+
+        // The first chunk gives the size, and is checked against the hashes like every other chunk
+        ByteBuffer first = ByteBuffer.allocate(CHUNK_SIZE);
+        FileDownloader.Header header = null;
+        while (header == null && !sources.isEmpty()) {
+            String holder = sources.get(0);
+            try {
+                header = downloader.fetchChunk(fileName, holder, PeerDirectory.getFilePort(holder), 0, CHUNK_SIZE, first);
+            } catch (IOException e) {
+                Log.debug(() -> nodeName + ": " + holder + " failed to send " + fileName + ": " + e.getMessage());
+            }
+            if (header == null || header.getVersion() != version) {
+                header = null;
+                sources.remove(0);
+            }
+        }
+        if (header == null) return null;
+
+        File part = new File(directory, fileName + ".v" + version + ".swarm");
+        try (RandomAccessFile file = new RandomAccessFile(part, "rw")) {
+            file.setLength(header.getTotalSize()); // Chunks land anywhere, in any order
+            FileChannel target = file.getChannel();
+            if (header.getTotalSize() > 0) swarm(fileName, sources, header, first, target); // Else nothing to verify
+        } catch (IOException e) {
+            part.delete();
+            throw e;
+        }
+        Files.move(part.toPath(), new File(directory, fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return header;
+    }
+
+    private void swarm(String fileName, List<String> sources, FileDownloader.Header header, ByteBuffer first,
+                       FileChannel target) throws IOException {
+        int version = header.getVersion();
+        long totalSize = header.getTotalSize();
+        ChunkHashes hashes = fetchHashes(fileName, header.getOrigin(), sources, version, totalSize);
+        Swarm swarm = new Swarm(hashes.getChunkCount());
+        if (first.remaining() == Math.min(CHUNK_SIZE, totalSize) && hashes.matches(0, first)) {
+            swarm.claim(0);
+            write(target, first, 0);
+        } else { // The first holder's copy is short or corrupt; leave it out and fetch chunk 0 again
+            metrics.counter("chunk_hash_failures").increment();
+            sources = sources.subList(1, sources.size());
+        }
+
+        List<Thread> workers = new ArrayList<>();
+        for (String holder : sources) {
+            Thread worker = new Thread(() -> fetchChunks(fileName, holder, version, totalSize, hashes, swarm, target),
+                    nodeName + "-swarm-" + holder);
+            worker.start();
+            workers.add(worker);
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download of " + fileName + " interrupted");
+        }
+        if (swarm.getError() != null) throw swarm.getError();
+        if (!swarm.isComplete()) throw new IOException("No holder could supply the rest of " + fileName);
+        metrics.histogram("swarm_sources").record(sources.size());
+    }
+
+    // A copy's hashes only prove it matches itself, so the origin is asked first. Holders are trusted only
+    // when the origin is unreachable or has moved on to a newer version.
+    private ChunkHashes fetchHashes(String fileName, String origin, List<String> sources, int version, long totalSize)
+            throws IOException {
+        Set<String> candidates = new LinkedHashSet<>();
+        candidates.add(origin);
+        candidates.addAll(sources);
+        for (String candidate : candidates) {
+            try {
+                ChunkHashes hashes = downloader.fetchChunkHashes(fileName, candidate, PeerDirectory.getFilePort(candidate), CHUNK_SIZE);
+                if (hashes != null && hashes.getVersion() == version && hashes.getTotalSize() == totalSize) return hashes;
+            } catch (IOException e) {
+                Log.debug(() -> nodeName + ": No hashes of " + fileName + " from " + candidate + ": " + e.getMessage());
+            }
+        }
+        throw new IOException("No holder has hashes for version " + version + " of " + fileName);
+    }
+
+    // One holder's share of the work; the holder is dropped at its first failure and its chunk goes back in the queue
+    private void fetchChunks(String fileName, String holder, int version, long totalSize, ChunkHashes hashes, Swarm swarm,
+                             FileChannel target) {
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        int chunk;
+        while ((chunk = swarm.next()) >= 0) {
+            long offset = (long) chunk * CHUNK_SIZE;
+            int length = (int) Math.min(CHUNK_SIZE, totalSize - offset);
+            try {
+                FileDownloader.Header header = downloader.fetchChunk(fileName, holder, PeerDirectory.getFilePort(holder),
+                        offset, length, buffer);
+                if (header == null || header.getVersion() != version || buffer.remaining() != length) {
+                    throw new IOException(holder + " no longer has version " + version);
+                }
+                if (!hashes.matches(chunk, buffer)) {
+                    metrics.counter("chunk_hash_failures").increment();
+                    throw new IOException("Chunk " + chunk + " from " + holder + " failed verification");
+                }
+            } catch (IOException e) {
+                swarm.failed(chunk);
+                String reason = e.getMessage();
+                Log.debug(() -> nodeName + ": Dropped " + holder + " from download of " + fileName + ": " + reason);
+                break;
+            }
+
+            if (!swarm.claim(chunk)) {
+                metrics.counter("chunks_duplicated").increment(); // Lost the race in the endgame
+                continue;
+            }
+            try {
+                write(target, buffer, offset);
+                metrics.counter("chunks_downloaded").increment();
+            } catch (IOException e) { // Local, so no other holder can help
+                swarm.abort(e);
+                break;
+            }
+        }
+    }
+
+    private static void write(FileChannel target, ByteBuffer chunk, long offset) throws IOException {
+        while (chunk.hasRemaining()) {
+            target.write(chunk, offset + chunk.position());
+        }
+    }
+
+    // Which chunks are done, queued or being fetched, shared by one download's workers
+    private static class Swarm {
+        private BitSet done = new BitSet();
+        private Deque<Integer> queued = new ArrayDeque<>();
+        private int[] fetching;    // Workers currently fetching each chunk
+        private long[] startedAt;  // When each chunk was last handed out
+        private int chunkCount;
+        private IOException error; // Set when writing the output failed
+
+        Swarm(int chunkCount) {
+            this.chunkCount = chunkCount;
+            this.fetching = new int[chunkCount];
+            this.startedAt = new long[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                queued.add(i);
+            }
+        }
+
+        // The next chunk to fetch, or -1 when every chunk is done. With nothing queued, the chunk in flight the
+        // longest is handed out a second time; with nothing to duplicate either, waits for a chunk to come back.
+        synchronized int next() {
+            while (true) {
+                if (error != null || done.cardinality() == chunkCount) return -1;
+                Integer chunk = queued.poll();
+                while (chunk != null && done.get(chunk)) {
+                    chunk = queued.poll(); // Chunk 0, when it came along with the file's size
+                }
+                if (chunk == null) chunk = slowest();
+                if (chunk != null) {
+                    fetching[chunk]++;
+                    startedAt[chunk] = System.nanoTime();
+                    return chunk;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
+        }
+
+        private Integer slowest() {
+            Integer slowest = null;
+            for (int i = done.nextClearBit(0); i < chunkCount; i = done.nextClearBit(i + 1)) {
+                if (fetching[i] == 1 && (slowest == null || startedAt[i] < startedAt[slowest])) slowest = i;
+            }
+            return slowest;
+        }
+
+        // True for the first verified copy of a chunk, which the caller then writes
+        synchronized boolean claim(int chunk) {
+            fetching[chunk] = Math.max(0, fetching[chunk] - 1);
+            if (done.get(chunk)) return false;
+            done.set(chunk);
+            notifyAll();
+            return true;
+        }
+
+        synchronized void failed(int chunk) {
+            fetching[chunk]--;
+            if (!done.get(chunk) && fetching[chunk] == 0) queued.addFirst(chunk);
+            notifyAll();
+        }
+
+        synchronized void abort(IOException e) {
+            error = e;
+            notifyAll();
+        }
+
+        synchronized IOException getError() {
+            return error;
+        }
+
+        synchronized boolean isComplete() {
+            return done.cardinality() == chunkCount;
+        }
+    }
+}
@@ -0,0 +1,4 @@
+// Decides the time-to-refresh an origin hands out when a cached copy is confirmed valid
+public interface TtrPolicy {
+    int computeTTR(FileEntry file);
+}
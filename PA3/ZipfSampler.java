@@ -0,0 +1,23 @@
+import java.util.*;
+
+// Draws ranks 0..n-1 with probability proportional to 1 / (rank + 1)^exponent, so rank 0 is the most popular
+public class ZipfSampler {
+    private double[] cumulative;
+
+    public ZipfSampler(int n, double exponent) {
+        cumulative = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, exponent);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cumulative[i] /= sum;
+        }
+    }
+
+    public int next(Random random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min((index >= 0) ? index : -index - 1, cumulative.length - 1);
+    }
+}
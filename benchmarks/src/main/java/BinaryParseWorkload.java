@@ -0,0 +1,26 @@
+import bench.Workload;
+
+import java.nio.ByteBuffer;
+
+// BinaryCodec.decode on a frame whose length prefix has been read, as StreamChannel and NioServer call it
+public class BinaryParseWorkload implements Workload {
+    private BinaryCodec codec = new BinaryCodec();
+    private byte[][] frames;
+
+    @Override
+    public void setUp(int size) {
+        Message[] messages = SampleMessages.create(size);
+        frames = new byte[size][];
+        for (int i = 0; i < size; i++) {
+            ByteBuffer encoded = codec.encode(messages[i]);
+            encoded.getInt(); // Skip the length prefix
+            frames[i] = new byte[encoded.remaining()];
+            encoded.get(frames[i]);
+        }
+    }
+
+    @Override
+    public Object run(int i) {
+        return codec.decode(ByteBuffer.wrap(frames[i & (frames.length - 1)]));
+    }
+}
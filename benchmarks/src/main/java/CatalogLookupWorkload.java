@@ -0,0 +1,28 @@
+import bench.Workload;
+
+import java.util.*;
+
+// FileCatalog.getReplicas over `size` registered files spread across 100 leaves; one lookup in eight misses
+public class CatalogLookupWorkload implements Workload {
+    private static final int KEYS = 1 << 16;
+
+    private FileCatalog catalog = new FileCatalog();
+    private String[] keys = new String[KEYS];
+
+    @Override
+    public void setUp(int size) {
+        for (int i = 0; i < size; i++) {
+            String leaf = "leaf" + (i % 100);
+            catalog.register(leaf, new FileEntry("file" + i + ".txt", 1, leaf, 30000));
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = (i % 8 == 0) ? "missing" + i + ".txt" : "file" + random.nextInt(size) + ".txt";
+        }
+    }
+
+    @Override
+    public Object run(int i) {
+        return catalog.getReplicas(keys[i & (KEYS - 1)]);
+    }
+}
@@ -0,0 +1,27 @@
+import bench.Workload;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The poll cycle before PollScheduler: walk every downloaded file and collect the expired ones.
+// One file in a thousand is expired.
+public class ExpiryScanWorkload implements Workload {
+    private Map<String, FileEntry> downloadedFiles = new ConcurrentHashMap<>();
+
+    @Override
+    public void setUp(int size) {
+        for (int i = 0; i < size; i++) {
+            FileEntry file = new FileEntry("file" + i + ".txt", 1, "leaf1", (i % 1000 == 0) ? -1 : 3600000);
+            downloadedFiles.put(file.getFileName(), file);
+        }
+    }
+
+    @Override
+    public Object run(int i) {
+        List<FileEntry> due = new ArrayList<>();
+        for (FileEntry file : downloadedFiles.values()) {
+            if (file.isExpired()) due.add(file);
+        }
+        return due;
+    }
+}
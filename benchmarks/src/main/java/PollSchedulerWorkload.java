@@ -0,0 +1,24 @@
+import bench.Workload;
+
+// The poll cycle with PollScheduler: with `size` files scheduled an hour out, one file comes due
+// and takeDue hands over just that file.
+public class PollSchedulerWorkload implements Workload {
+    private PollScheduler scheduler = new PollScheduler(1000);
+    private String[] fileNames;
+
+    @Override
+    public void setUp(int size) {
+        fileNames = new String[size];
+        long later = System.currentTimeMillis() + 3600000;
+        for (int i = 0; i < size; i++) {
+            fileNames[i] = "file" + i + ".txt";
+            scheduler.schedule(fileNames[i], later);
+        }
+    }
+
+    @Override
+    public Object run(int i) throws InterruptedException {
+        scheduler.schedule(fileNames[Math.floorMod(i, fileNames.length)], 0); // Already due, so takeDue never blocks
+        return scheduler.takeDue();
+    }
+}
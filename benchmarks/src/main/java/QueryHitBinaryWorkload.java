@@ -0,0 +1,25 @@
+import bench.Workload;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Formatting a QUERYHIT as a binary frame; the result is the codec's reused buffer
+public class QueryHitBinaryWorkload implements Workload {
+    private BinaryCodec codec = new BinaryCodec();
+    private QueryHit[] hits;
+
+    @Override
+    public void setUp(int size) {
+        Random random = new Random(42);
+        hits = new QueryHit[size];
+        for (int i = 0; i < size; i++) {
+            hits[i] = SampleMessages.queryHit(UUID.randomUUID().toString(), "file" + i + ".txt", random);
+        }
+    }
+
+    @Override
+    public Object run(int i) {
+        ByteBuffer frame = codec.encode(hits[i & (hits.length - 1)].toMessage());
+        return frame.limit();
+    }
+}
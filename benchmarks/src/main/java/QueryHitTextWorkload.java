@@ -0,0 +1,22 @@
+import bench.Workload;
+
+import java.util.*;
+
+// Formatting a QUERYHIT as the text line a text-mode connection sends
+public class QueryHitTextWorkload implements Workload {
+    private QueryHit[] hits;
+
+    @Override
+    public void setUp(int size) {
+        Random random = new Random(42);
+        hits = new QueryHit[size];
+        for (int i = 0; i < size; i++) {
+            hits[i] = SampleMessages.queryHit(UUID.randomUUID().toString(), "file" + i + ".txt", random);
+        }
+    }
+
+    @Override
+    public Object run(int i) {
+        return hits[i & (hits.length - 1)].toMessage().toText();
+    }
+}
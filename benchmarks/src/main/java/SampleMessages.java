@@ -0,0 +1,39 @@
+import java.util.*;
+
+// The mix a super-peer reads most: queries, hits, polls and invalidations with random UUIDs
+class SampleMessages {
+    private SampleMessages() {
+    }
+
+    static Message[] create(int count) {
+        Random random = new Random(42);
+        Message[] messages = new Message[count];
+        for (int i = 0; i < count; i++) {
+            String id = new UUID(random.nextLong(), random.nextLong()).toString();
+            String fileName = "file" + random.nextInt(10000) + ".txt";
+            switch (i % 4) {
+                case 0:
+                    messages[i] = new Message(Message.QUERY, id, 2, 0, fileName);
+                    break;
+                case 1:
+                    messages[i] = queryHit(id, fileName, random).toMessage();
+                    break;
+                case 2:
+                    messages[i] = new Message(Message.POLL, id, "leaf" + random.nextInt(10), fileName,
+                            Integer.toString(1 + random.nextInt(20)));
+                    break;
+                default:
+                    messages[i] = new Message(Message.INVALIDATION, id, "leaf" + random.nextInt(10), fileName,
+                            Integer.toString(1 + random.nextInt(20)));
+            }
+        }
+        return messages;
+    }
+
+    static QueryHit queryHit(String id, String fileName, Random random) {
+        long now = System.currentTimeMillis();
+        int version = 1 + random.nextInt(20);
+        return new QueryHit(id, fileName, now - random.nextInt(100000), now - random.nextInt(100000),
+                "leaf" + random.nextInt(10), version, version + random.nextInt(2), 30000);
+    }
+}
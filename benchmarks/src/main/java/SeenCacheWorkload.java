@@ -0,0 +1,26 @@
+import bench.Workload;
+
+import java.util.*;
+
+// SeenMessageCache.markSeen with a super-peer's default limits. The ID pool is ten times the
+// capacity, so most calls insert and evict, and IDs seen again within the window are duplicates.
+public class SeenCacheWorkload implements Workload {
+    private static final int IDS = 1 << 20;
+
+    private SeenMessageCache cache;
+    private String[] ids = new String[IDS];
+
+    @Override
+    public void setUp(int size) {
+        cache = new SeenMessageCache(size, 60000);
+        Random random = new Random(42);
+        for (int i = 0; i < IDS; i++) {
+            ids[i] = new UUID(random.nextLong(), random.nextLong()).toString();
+        }
+    }
+
+    @Override
+    public Object run(int i) {
+        return cache.markSeen(ids[i & (IDS - 1)]);
+    }
+}
@@ -0,0 +1,20 @@
+import bench.Workload;
+
+// Message.parse on a line as the thread-per-connection server reads it
+public class TextParseWorkload implements Workload {
+    private String[] lines;
+
+    @Override
+    public void setUp(int size) {
+        Message[] messages = SampleMessages.create(size);
+        lines = new String[size];
+        for (int i = 0; i < size; i++) {
+            lines[i] = messages[i].toText();
+        }
+    }
+
+    @Override
+    public Object run(int i) {
+        return Message.parse(lines[i & (lines.length - 1)]);
+    }
+}
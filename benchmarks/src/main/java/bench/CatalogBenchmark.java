@@ -0,0 +1,43 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// File lookups against the super-peer catalog, shared by all benchmark threads (-t N)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CatalogBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Catalog {
+        @Param({"1000", "100000", "1000000"})
+        int size;
+
+        Workload workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            workload = Workloads.create("CatalogLookupWorkload", size);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int i;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            i = ThreadLocalRandom.current().nextInt(); // Threads start at different keys
+        }
+    }
+
+    @Benchmark
+    public Object lookup(Catalog catalog, Cursor cursor) throws Exception {
+        return catalog.workload.run(cursor.i++);
+    }
+}
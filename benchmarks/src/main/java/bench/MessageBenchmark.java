@@ -0,0 +1,31 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Per-message wire costs: parsing what handleClient reads and formatting QUERYHITs, in both encodings.
+// Codecs are not thread-safe, so every benchmark thread gets its own workload.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBenchmark {
+    @Param({"TextParseWorkload", "BinaryParseWorkload", "QueryHitTextWorkload", "QueryHitBinaryWorkload"})
+    String workloadClass;
+
+    Workload workload;
+    int i;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workloads.create(workloadClass, 1024);
+    }
+
+    @Benchmark
+    public Object message() throws Exception {
+        return workload.run(i++);
+    }
+}
@@ -0,0 +1,34 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of one poll cycle on a leaf holding `size` replicas: the isExpired scan pollForUpdates used to do
+// over every file, against the PollScheduler that now hands over only the files that are due.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PollScanBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    int size;
+
+    @Param({"ExpiryScanWorkload", "PollSchedulerWorkload"})
+    String workloadClass;
+
+    Workload workload;
+    int i;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workloads.create(workloadClass, size);
+    }
+
+    @Benchmark
+    public Object pollCycle() throws Exception {
+        return workload.run(i++);
+    }
+}
@@ -0,0 +1,43 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Duplicate detection in one super-peer's seen-message cache, shared by all benchmark threads (-t N)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SeenCacheBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Cache {
+        @Param({"100000"})
+        int size;
+
+        Workload workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            workload = Workloads.create("SeenCacheWorkload", size);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int i;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            i = ThreadLocalRandom.current().nextInt();
+        }
+    }
+
+    @Benchmark
+    public Object markSeen(Cache cache, Cursor cursor) throws Exception {
+        return cache.workload.run(cursor.i++);
+    }
+}
@@ -0,0 +1,10 @@
+package bench;
+
+// One benchmarked operation. The node classes live in the unnamed package, which JMH benchmarks
+// cannot import, so each operation is written as an unnamed-package class implementing this.
+public interface Workload {
+    void setUp(int size) throws Exception;
+
+    // Performs the operation once; i is a per-thread counter for picking inputs
+    Object run(int i) throws Exception;
+}
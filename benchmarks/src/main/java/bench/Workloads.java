@@ -0,0 +1,13 @@
+package bench;
+
+public class Workloads {
+    private Workloads() {
+    }
+
+    // Loads an unnamed-package Workload by class name; called once per trial, never on the measured path
+    public static Workload create(String className, int size) throws Exception {
+        Workload workload = (Workload) Class.forName(className).getDeclaredConstructor().newInstance();
+        workload.setUp(size);
+        return workload;
+    }
+}
@@ -0,0 +1,92 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryCodecTest {
+    private BinaryCodec codec = new BinaryCodec();
+
+    @Test
+    void roundTripsEveryKindOfMessage() {
+        String id = UUID.randomUUID().toString();
+        List<Message> messages = Arrays.asList(
+                new Message(Message.QUERY, id, 7, 2, "report.pdf"),
+                new Message(Message.QUERYHIT, id, "leaf3", "report.pdf", "4", "leaf1", "9001"),
+                new Message(Message.REGISTER, null, "leaf1", "a.txt", "b.txt"),
+                new Message(Message.INVALIDATION, id, 0, 0, "leaf1", "a.txt", "2"),
+                new Message(Message.POLLBATCH, id),
+                new Message(Message.INVALIDATIONBATCH, id, "m1", "leaf1", "a.txt", "3", "m2", "leaf2", "b.txt", "1"));
+        for (Message message : messages) {
+            assertSameMessage(message, roundTrip(message));
+        }
+    }
+
+    @Test
+    void keepsFieldsTheTextFormCannotCarry() {
+        Message message = new Message(Message.QUERYHIT, UUID.randomUUID().toString(),
+                "C:\\notes: draft.txt", "", "résumé 履歴書 \uD83D\uDCC4", ":::");
+        assertSameMessage(message, roundTrip(message));
+        assertNotEquals(message.getFieldCount(), Message.parse(message.toText()).getFieldCount()); // Why binary exists
+    }
+
+    @Test
+    void matchesTheTextFormWhereBothWork() {
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            String[] fields = new String[random.nextInt(6)];
+            for (int j = 0; j < fields.length; j++) {
+                fields[j] = "file" + random.nextInt(100000) + ".txt";
+            }
+            Message message = new Message(Message.QUERYHIT, new UUID(random.nextLong(), random.nextLong()).toString(), fields);
+            Message viaText = Message.parse(message.toText());
+            Message viaBinary = roundTrip(message);
+            assertSameMessage(viaText, viaBinary);
+        }
+    }
+
+    @Test
+    void normalizesMessageIds() {
+        String id = UUID.randomUUID().toString();
+        assertEquals(id, roundTrip(new Message(Message.QUERY, id.toUpperCase(), 3, 0, "a.txt")).getMessageId());
+        // Only UUIDs fit the frame's 128 bits; other IDs arrive as the name-based UUID of their bytes
+        String hashed = UUID.nameUUIDFromBytes("query-1".getBytes(StandardCharsets.UTF_8)).toString();
+        assertEquals(hashed, roundTrip(new Message(Message.QUERY, "query-1", 3, 0, "a.txt")).getMessageId());
+    }
+
+    @Test
+    void growsForLargeFrames() {
+        String[] fields = new String[200];
+        Arrays.fill(fields, "x".repeat(1000));
+        Message message = new Message(Message.REGISTER, null, fields);
+        assertSameMessage(message, roundTrip(message));
+        Message small = new Message(Message.POLL, UUID.randomUUID().toString(), "a.txt");
+        assertSameMessage(small, roundTrip(small)); // The grown buffer is reused; no bytes of the last frame leak in
+    }
+
+    @Test
+    void rejectsFieldsTooLongForTheirLengthPrefix() {
+        Message message = new Message(Message.QUERYHIT, UUID.randomUUID().toString(), "x".repeat(70000));
+        assertThrows(IllegalArgumentException.class, () -> codec.encode(message));
+    }
+
+    // Encodes, then decodes from the middle of a larger array after the length prefix, as NioServer does
+    private Message roundTrip(Message message) {
+        ByteBuffer frame = codec.encode(message);
+        int length = frame.getInt(0);
+        assertEquals(frame.remaining() - 4, length);
+        byte[] inbound = new byte[frame.remaining() + 10];
+        frame.get(inbound, 10, frame.remaining());
+        return new BinaryCodec().decode(ByteBuffer.wrap(inbound, 14, length));
+    }
+
+    private static void assertSameMessage(Message expected, Message actual) {
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getMessageId() == null ? null : expected.getMessageId().toLowerCase(), actual.getMessageId());
+        assertEquals(expected.getTtl(), actual.getTtl());
+        assertEquals(expected.getHops(), actual.getHops());
+        assertArrayEquals(expected.getFields(), actual.getFields());
+    }
+}
@@ -0,0 +1,160 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeltaSyncTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void patchedCopyMatchesAWholeFileCopy() throws IOException {
+        Random random = new Random(42);
+        byte[] version = new byte[1 << 20];
+        random.nextBytes(version);
+        for (int round = 0; round < 10; round++) {
+            byte[] next = edit(version, random);
+            long literal = sync(version, next);
+            assertTrue(literal < next.length / 10, "round " + round + " resent " + literal + " bytes");
+            version = next;
+        }
+    }
+
+    @Test
+    void handlesEditsAtTheEdges() throws IOException {
+        Random random = new Random(7);
+        byte[] old = new byte[100000];
+        random.nextBytes(old);
+        byte[] prefixed = concat(new byte[] {1, 2, 3}, old);
+        byte[] appended = concat(old, new byte[] {1, 2, 3});
+        byte[] truncated = Arrays.copyOf(old, old.length - 5000);
+        byte[] shifted = Arrays.copyOfRange(old, 1, old.length);
+        byte[] unrelated = new byte[50000];
+        random.nextBytes(unrelated);
+
+        for (byte[] next : Arrays.asList(old, prefixed, appended, truncated, shifted, unrelated, new byte[0])) {
+            sync(old, next);
+        }
+        // An unchanged copy costs only its short last block, which has no signature
+        assertEquals(old.length % DeltaSync.blockSize(old.length), sync(old, old));
+    }
+
+    @Test
+    void copiesShorterThanABlockSendEverything() throws IOException {
+        byte[] old = "short".getBytes();
+        byte[] next = "short and longer".getBytes();
+        assertEquals(next.length, sync(old, next));
+    }
+
+    @Test
+    void rejectsAPatchThatDoesNotHashToTheNewVersion() throws IOException {
+        byte[] old = new byte[200000];
+        new Random(1).nextBytes(old);
+        byte[] next = old.clone();
+        next[150000] ^= 1;
+        Path oldPath = write("old", old);
+        int blockSize = DeltaSync.blockSize(old.length);
+        DeltaSync.Delta delta;
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        try (FileChannel oldCopy = FileChannel.open(oldPath)) {
+            delta = DeltaSync.diff(ByteBuffer.wrap(next), DeltaSync.Signatures.compute(oldCopy, blockSize));
+            delta.writeTo(new DataOutputStream(patch), ByteBuffer.wrap(next));
+        }
+        byte[] bytes = patch.toByteArray();
+        bytes[bytes.length - 2] ^= 1; // Inside the last literal
+
+        try (FileChannel oldCopy = FileChannel.open(oldPath);
+             FileChannel target = FileChannel.open(directory.resolve("new"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            assertThrows(IOException.class, () -> DeltaSync.apply(new DataInputStream(new ByteArrayInputStream(bytes)),
+                    oldCopy, blockSize, target, delta.getFileHash()));
+        }
+    }
+
+    @Test
+    void rejectsAPatchReachingPastTheOldCopy() throws IOException {
+        Path oldPath = write("old", new byte[4096]);
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(patch);
+        out.writeByte('C');
+        out.writeInt(3);
+        out.writeInt(2); // Blocks 3 and 4 of a four-block copy
+        out.writeByte('E');
+        try (FileChannel oldCopy = FileChannel.open(oldPath);
+             FileChannel target = FileChannel.open(directory.resolve("new"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            IOException e = assertThrows(IOException.class, () -> DeltaSync.apply(
+                    new DataInputStream(new ByteArrayInputStream(patch.toByteArray())), oldCopy, 1024, target, ""));
+            assertTrue(e.getMessage().contains("past the end"));
+        }
+    }
+
+    // The leaf's side and the origin's side of one sync, with signatures and the patch serialized as on the
+    // wire. Checks the result against the new version byte for byte and returns the literal bytes sent.
+    private long sync(byte[] old, byte[] next) throws IOException {
+        Path oldPath = write("old", old);
+        Path newPath = write("next", next);
+        Path patched = directory.resolve("patched");
+        Files.deleteIfExists(patched);
+
+        int blockSize = DeltaSync.blockSize(old.length);
+        ByteArrayOutputStream signatureBytes = new ByteArrayOutputStream();
+        int blocks;
+        try (FileChannel oldCopy = FileChannel.open(oldPath)) {
+            DeltaSync.Signatures signatures = DeltaSync.Signatures.compute(oldCopy, blockSize);
+            blocks = signatures.getBlockCount();
+            signatures.writeTo(new DataOutputStream(signatureBytes));
+        }
+        DeltaSync.Signatures received = DeltaSync.Signatures.readFrom(
+                new DataInputStream(new ByteArrayInputStream(signatureBytes.toByteArray())), blockSize, blocks);
+
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        DeltaSync.Delta delta;
+        try (FileChannel origin = FileChannel.open(newPath)) {
+            ByteBuffer mapped = origin.map(FileChannel.MapMode.READ_ONLY, 0, origin.size()); // As FileServer reads it
+            delta = DeltaSync.diff(mapped, received);
+            delta.writeTo(new DataOutputStream(patch), mapped);
+        }
+
+        long literal;
+        try (FileChannel oldCopy = FileChannel.open(oldPath);
+             FileChannel target = FileChannel.open(patched, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            literal = DeltaSync.apply(new DataInputStream(new ByteArrayInputStream(patch.toByteArray())), oldCopy, blockSize,
+                    target, delta.getFileHash());
+        }
+        assertEquals(delta.getLiteralBytes(), literal);
+        assertArrayEquals(Files.readAllBytes(newPath), Files.readAllBytes(patched));
+        return literal;
+    }
+
+    // A few inserts, deletes and overwrites of up to 100 bytes each
+    private static byte[] edit(byte[] file, Random random) {
+        ByteArrayOutputStream edited = new ByteArrayOutputStream(file.length + 1024);
+        int position = 0;
+        for (int i = 0; i < 5; i++) {
+            int at = position + random.nextInt((file.length - position) / (5 - i));
+            edited.write(file, position, at - position);
+            byte[] inserted = new byte[1 + random.nextInt(100)];
+            random.nextBytes(inserted);
+            int kind = random.nextInt(3);
+            if (kind != 1) edited.write(inserted, 0, inserted.length); // Insert or overwrite
+            position = (kind == 0) ? at : Math.min(file.length, at + inserted.length); // Delete and overwrite skip the old bytes
+        }
+        edited.write(file, position, file.length - position);
+        return edited.toByteArray();
+    }
+
+    private Path write(String name, byte[] bytes) throws IOException {
+        return Files.write(directory.resolve(name), bytes);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] joined = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, joined, a.length, b.length);
+        return joined;
+    }
+}
@@ -0,0 +1,112 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InvalidationQueueTest {
+    @Test
+    void coalescesRepeatedInvalidationsIntoTheNewestVersion() throws Exception {
+        RecordingConnections connections = new RecordingConnections();
+        InvalidationQueue queue = new InvalidationQueue("leaf1", "super-peer1", connections, 16, false);
+
+        queue.offer(invalidation("a.txt", 1));
+        connections.awaitSending(); // The writer holds a.txt; everything below waits for the next frame
+        assertTrue(queue.offer(invalidation("b.txt", 1)));
+        assertTrue(queue.offer(invalidation("b.txt", 3)));
+        assertTrue(queue.offer(invalidation("b.txt", 2))); // Older than the one queued, so it changes nothing
+        assertTrue(queue.offer(invalidation("c.txt", 1)));
+        assertEquals(2, queue.size());
+        assertEquals(2, queue.getCoalesced());
+
+        connections.release();
+        assertEquals("a.txt", connections.frames.take().getField(2));
+        Message second = connections.frames.take();
+        assertEquals(Message.INVALIDATIONBATCH, second.getType());
+        assertArrayEquals(new String[] {"id-b.txt-3", "leaf1", "b.txt", "3", "id-c.txt-1", "leaf1", "c.txt", "1"},
+                second.getFields());
+        assertEquals(3, queue.getSent());
+    }
+
+    @Test
+    void dropsWhenFullUnlessBlocking() throws Exception {
+        RecordingConnections connections = new RecordingConnections();
+        InvalidationQueue queue = new InvalidationQueue("super-peer1", "super-peer2", connections, 1, false);
+        queue.offer(invalidation("a.txt", 1));
+        connections.awaitSending();
+        assertTrue(queue.offer(invalidation("b.txt", 1)));
+        assertFalse(queue.offer(invalidation("c.txt", 1)));
+        assertTrue(queue.offer(invalidation("b.txt", 2))); // Coalescing needs no room
+        assertEquals(1, queue.getDropped());
+        connections.release();
+    }
+
+    @Test
+    void blockingWaitsForRoom() throws Exception {
+        RecordingConnections connections = new RecordingConnections();
+        InvalidationQueue queue = new InvalidationQueue("leaf1", "super-peer1", connections, 1, true);
+        queue.offer(invalidation("a.txt", 1));
+        connections.awaitSending();
+        assertTrue(queue.offer(invalidation("b.txt", 1)));
+
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        timer.schedule(connections::release, 200, TimeUnit.MILLISECONDS);
+        assertTrue(queue.offer(invalidation("c.txt", 1))); // Room opens once the writer takes b.txt
+        timer.shutdown();
+        assertEquals(0, queue.getDropped());
+    }
+
+    @Test
+    void failedSendsAreCountedAsDropped() throws Exception {
+        RecordingConnections connections = new RecordingConnections();
+        connections.failing = true;
+        connections.release();
+        InvalidationQueue queue = new InvalidationQueue("leaf1", "super-peer1", connections, 16, false);
+        queue.offer(invalidation("a.txt", 1));
+        queue.offer(invalidation("b.txt", 1));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.getDropped() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, queue.getDropped());
+        assertEquals(0, queue.getSent());
+    }
+
+    private static InvalidationQueue.Invalidation invalidation(String fileName, int version) {
+        return new InvalidationQueue.Invalidation("id-" + fileName + "-" + version, "leaf1", fileName, version);
+    }
+
+    // Records frames instead of sending them; the first send blocks until released, holding the writer
+    private static class RecordingConnections extends ConnectionManager {
+        private BlockingQueue<Message> frames = new LinkedBlockingQueue<>();
+        private CountDownLatch sending = new CountDownLatch(1);
+        private CountDownLatch released = new CountDownLatch(1);
+        private volatile boolean failing;
+
+        RecordingConnections() {
+            super("test", message -> { });
+        }
+
+        @Override
+        public void send(String peerName, Message message) throws IOException {
+            frames.add(message);
+            sending.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (failing) throw new IOException("Connection refused");
+        }
+
+        void awaitSending() throws InterruptedException {
+            assertTrue(sending.await(5, TimeUnit.SECONDS));
+        }
+
+        void release() {
+            released.countDown();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+    @Test
+    void percentilesAreWithinThreePercentOfTheExactOnes() {
+        Random random = new Random(42);
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new long[100000];
+        long sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextGaussian() * 2 + 12); // Log-normal around 160 us
+            histogram.record(values[i]);
+            sum += values[i];
+        }
+        Arrays.sort(values);
+
+        assertEquals(values.length, histogram.getCount());
+        assertEquals(sum, histogram.getSum());
+        assertEquals(values[values.length - 1], histogram.getMax());
+        for (double quantile : new double[] {0.01, 0.5, 0.9, 0.99, 0.999, 1}) {
+            long exact = values[(int) Math.ceil(quantile * values.length) - 1];
+            assertEquals(exact, histogram.getPercentile(quantile), exact * 0.03 + 1, "p" + quantile * 100);
+        }
+    }
+
+    @Test
+    void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 0; value < 32; value++) {
+            histogram.record(value);
+        }
+        assertEquals(15, histogram.getPercentile(0.5));
+        assertEquals(31, histogram.getPercentile(1));
+    }
+
+    @Test
+    void emptyAndNegative() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0.99));
+        histogram.record(-5); // Clock went backwards: counted as zero
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        histogram.record(Long.MAX_VALUE); // Top bucket, reported as its midpoint like any other
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(1), Long.MAX_VALUE * 0.03);
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+    }
+
+    @Test
+    void concurrentRecordsAreAllCounted() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Metrics metrics = new Metrics("test", "histogram");
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 1; i <= 25000; i++) {
+                    histogram.record(i);
+                    metrics.counter("records").increment();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(100000, histogram.getCount());
+        assertEquals(4L * 25000 * 25001 / 2, histogram.getSum());
+        assertEquals(25000, histogram.getMax());
+        assertEquals(100000, metrics.counter("records").sum());
+    }
+}
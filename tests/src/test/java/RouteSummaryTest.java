@@ -0,0 +1,90 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RouteSummaryTest {
+    @Test
+    void patchesOverTheWireReproduceTheFullTable() {
+        RouteSummary summary = new RouteSummary();
+        Random random = new Random(42);
+        List<String> names = new ArrayList<>();
+        RouteSummary.Table patched = null;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 500; i++) {
+                String name = "file" + random.nextInt(1000000) + ".txt";
+                summary.add(name);
+                names.add(name);
+            }
+            for (int i = 0; i < 200 && !names.isEmpty(); i++) {
+                summary.remove(names.remove(random.nextInt(names.size())));
+            }
+            RouteSummary.Patch changes = summary.takeChanges();
+            patched = overTheWire(changes).applyTo(patched);
+            assertNotNull(patched, "round " + round);
+
+            RouteSummary.Table full = overTheWire(summary.fullTable()).applyTo(null);
+            assertEquals(full.getVersion(), patched.getVersion());
+            for (String name : names) {
+                assertTrue(patched.mightContain(name), name);
+            }
+            for (int i = 0; i < 1000; i++) { // The two tables agree everywhere, not just on the names held
+                String probe = "probe" + random.nextInt();
+                assertEquals(full.mightContain(probe), patched.mightContain(probe), probe);
+            }
+        }
+    }
+
+    @Test
+    void bitmapPatchesMatchListPatches() {
+        RouteSummary summary = new RouteSummary();
+        for (int i = 0; i < 20000; i++) { // Flips more slots than a list patch carries
+            summary.add("name" + i);
+        }
+        RouteSummary.Patch patch = summary.takeChanges();
+        assertEquals("b", patch.toFields("super-peer1")[4]);
+        RouteSummary.Table table = overTheWire(patch).applyTo(null);
+        for (int i = 0; i < 20000; i++) {
+            assertTrue(table.mightContain("name" + i));
+        }
+    }
+
+    @Test
+    void removedNamesLeaveTheTable() {
+        RouteSummary summary = new RouteSummary();
+        summary.add("a.txt");
+        summary.add("a.txt"); // Two holders of one name: the slots count both
+        summary.add("b.txt");
+        RouteSummary.Table table = summary.takeChanges().applyTo(null);
+        assertTrue(table.mightContain("a.txt"));
+
+        summary.remove("a.txt");
+        assertNull(summary.takeChanges()); // Still held once, so no slot flipped
+        summary.remove("a.txt");
+        table = overTheWire(summary.takeChanges()).applyTo(table);
+        assertFalse(table.mightContain("a.txt"));
+        assertTrue(table.mightContain("b.txt"));
+        assertEquals(4, summary.getSlotsSet());
+    }
+
+    @Test
+    void patchesApplyOnlyToTheVersionTheyFollow() {
+        RouteSummary summary = new RouteSummary();
+        summary.add("a.txt");
+        RouteSummary.Table first = summary.takeChanges().applyTo(null);
+        summary.add("b.txt");
+        RouteSummary.Patch second = summary.takeChanges();
+        summary.add("c.txt");
+        RouteSummary.Patch third = summary.takeChanges();
+
+        assertNull(third.applyTo(first)); // Missed a patch: the neighbor must ask for the full table
+        assertNull(second.applyTo(null));
+        assertEquals(3, third.applyTo(second.applyTo(first)).getVersion());
+    }
+
+    private static RouteSummary.Patch overTheWire(RouteSummary.Patch patch) {
+        Message message = new Message(Message.ROUTETABLE, UUID.randomUUID().toString(), patch.toFields("super-peer1"));
+        return RouteSummary.Patch.fromFields(Message.parse(message.toText()));
+    }
+}
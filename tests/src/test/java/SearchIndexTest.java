@@ -0,0 +1,142 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchIndexTest {
+    private static final String[] WORDS = {"report", "Report", "q3", "final", "draft", "2024", "photo", "img", "notes",
+            "summary", "backup", "port", "export", "a", "reports"};
+    private static final String[] SEPARATORS = {"-", "_", " ", ".", ""};
+    private static final String[] EXTENSIONS = {".pdf", ".txt", ".jpg", ".tar.gz", ""};
+    private static final String[] QUERIES = {"report", "REPORT", "report draft", "q3 final 2024", "rep*", "*.pdf",
+            "report*.pdf", "q?-*", "*port*", "*port", "img_*.jpg", "*2024*", "notes.txt", "a", "nothing", "--", "*",
+            "draft*final*", "?", "photo img", "*summary.tar.gz", "export*"};
+
+    // Against a scan of every name with the documented rules: keywords must all be tokens of the name, patterns
+    // must match the whole name, ignoring case; ranked by score, then alphabetically
+    @Test
+    void searchMatchesABruteForceScan() {
+        Random random = new Random(42);
+        SearchIndex index = new SearchIndex();
+        Set<String> names = new TreeSet<>();
+        for (int i = 0; i < 20000; i++) { // Enough for the common tokens' postings to become bitmaps
+            String name = randomName(random);
+            index.add(name);
+            names.add(name);
+        }
+        check(index, names);
+
+        List<String> held = new ArrayList<>(names);
+        for (int i = 0; i < 8000; i++) { // Some postings shrink back to arrays, and freed ids are reused
+            String name = held.remove(random.nextInt(held.size()));
+            index.remove(name);
+            names.remove(name);
+        }
+        for (int i = 0; i < 2000; i++) {
+            String name = randomName(random);
+            index.add(name);
+            names.add(name);
+        }
+        check(index, names);
+        assertEquals(names.size(), index.getNameCount());
+    }
+
+    @Test
+    void addAndRemoveAreIdempotent() {
+        SearchIndex index = new SearchIndex();
+        index.add("Q3-report.pdf");
+        index.add("Q3-report.pdf");
+        assertEquals(1, index.getNameCount());
+        assertEquals(Collections.singletonList("Q3-report.pdf"), index.search("report", 10));
+        index.remove("Q3-report.pdf");
+        index.remove("Q3-report.pdf");
+        assertEquals(0, index.getNameCount());
+        assertEquals(0, index.getTokenCount());
+        assertTrue(index.search("report", 10).isEmpty());
+    }
+
+    @Test
+    void exactNameRanksFirst() {
+        SearchIndex index = new SearchIndex();
+        for (String name : Arrays.asList("report.pdf.bak", "report.pdf", "old-report.pdf", "Report.PDF")) {
+            index.add(name);
+        }
+        // Then by how much of the name the query covers, with ties in alphabetical order
+        assertEquals(Arrays.asList("Report.PDF", "report.pdf", "old-report.pdf", "report.pdf.bak"),
+                index.search("report.pdf", 10));
+        assertEquals(Arrays.asList("Report.PDF", "report.pdf"), index.search("report.pdf", 2));
+    }
+
+    @Test
+    void postingsMatchASortedSet() {
+        Random random = new Random(42);
+        SearchIndex.Postings postings = new SearchIndex.Postings();
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int i = 0; i < 200000; i++) {
+            int id = random.nextInt(i < 100000 ? 200000 : 20000); // Spread over four groups, then piled into the first
+            if (random.nextInt(3) == 0) {
+                postings.remove(id);
+                expected.remove(id);
+            } else {
+                postings.add(id);
+                expected.add(id);
+            }
+            if (i % 20000 == 0) assertSame(postings, expected);
+        }
+        assertSame(postings, expected);
+    }
+
+    private static void assertSame(SearchIndex.Postings postings, TreeSet<Integer> expected) {
+        assertEquals(expected.size(), postings.size());
+        if (!expected.isEmpty()) assertEquals(expected.first(), postings.first());
+        List<Integer> ids = new ArrayList<>();
+        postings.forEach(ids::add);
+        assertEquals(new ArrayList<>(expected), ids);
+        for (int id = 0; id < 200000; id += 7) {
+            assertEquals(expected.contains(id), postings.contains(id));
+        }
+    }
+
+    private static void check(SearchIndex index, Set<String> names) {
+        for (String query : QUERIES) {
+            for (int limit : new int[] {5, 100000}) {
+                assertEquals(scan(names, query, limit), index.search(query, limit), query + " limit " + limit);
+            }
+        }
+    }
+
+    private static List<String> scan(Set<String> names, String query, int limit) {
+        List<String> found = new ArrayList<>();
+        if (SearchIndex.isPattern(query)) {
+            StringBuilder regex = new StringBuilder();
+            for (char c : query.toCharArray()) {
+                regex.append(c == '*' ? ".*" : c == '?' ? "." : Pattern.quote(String.valueOf(c)));
+            }
+            Pattern pattern = Pattern.compile(regex.toString(), Pattern.DOTALL | Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+            for (String name : names) {
+                if (pattern.matcher(name).matches()) found.add(name);
+            }
+        } else {
+            Set<String> keywords = SearchIndex.tokens(query);
+            for (String name : names) {
+                if (!keywords.isEmpty() && SearchIndex.tokens(name).containsAll(keywords)) found.add(name);
+            }
+        }
+        found.sort(Comparator.comparingDouble((String name) -> -SearchIndex.score(query, name))
+                .thenComparing(Comparator.naturalOrder()));
+        return found.subList(0, Math.min(limit, found.size()));
+    }
+
+    private static String randomName(Random random) {
+        StringBuilder name = new StringBuilder();
+        int words = 1 + random.nextInt(4);
+        for (int i = 0; i < words; i++) {
+            if (i > 0) name.append(SEPARATORS[random.nextInt(SEPARATORS.length)]);
+            name.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        if (random.nextInt(4) == 0) name.append(random.nextInt(100));
+        return name.append(EXTENSIONS[random.nextInt(EXTENSIONS.length)]).toString();
+    }
+}
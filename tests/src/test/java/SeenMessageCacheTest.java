@@ -0,0 +1,132 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SeenMessageCacheTest {
+    private static final int STRIPES = 16;
+
+    @Test
+    void duplicatesAreSuppressed() {
+        SeenMessageCache cache = new SeenMessageCache(1024, 60000);
+        String id = UUID.randomUUID().toString();
+        assertTrue(cache.markSeen(id));
+        assertFalse(cache.markSeen(id));
+        assertFalse(cache.markSeen(id.toUpperCase())); // The same UUID, as UUID.fromString reads it
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    void nonUuidIdsAreHashed() {
+        SeenMessageCache cache = new SeenMessageCache(1024, 60000);
+        assertTrue(cache.markSeen("query-1"));
+        assertTrue(cache.markSeen("query-2"));
+        assertFalse(cache.markSeen("query-1"));
+        assertTrue(cache.markSeen("0000000g-0000-0000-0000-000000000000")); // UUID-shaped, but not hex
+        assertFalse(cache.markSeen("0000000g-0000-0000-0000-000000000000"));
+    }
+
+    // Against the implementation it replaced: per stripe, a LinkedHashMap in insertion order that drops its
+    // eldest entry when full, and where a duplicate does not refresh the entry
+    @Test
+    void evictsOldestFirstLikeLinkedHashMap() {
+        int stripeCapacity = 8;
+        SeenMessageCache cache = new SeenMessageCache(stripeCapacity * STRIPES, Long.MAX_VALUE / 2);
+        Random random = new Random(42);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            ids.add(new UUID(random.nextLong(), random.nextLong()).toString());
+        }
+        Map<String, Integer> stripeOf = stripes(ids);
+
+        List<LinkedHashMap<String, Boolean>> model = new ArrayList<>();
+        for (int i = 0; i < STRIPES; i++) {
+            model.add(new LinkedHashMap<>());
+        }
+        long evictions = 0;
+        for (int i = 0; i < 50000; i++) {
+            String id = ids.get(random.nextInt(ids.size()));
+            LinkedHashMap<String, Boolean> stripe = model.get(stripeOf.get(id));
+            boolean expected = !stripe.containsKey(id);
+            if (expected) {
+                if (stripe.size() == stripeCapacity) {
+                    stripe.remove(stripe.keySet().iterator().next());
+                    evictions++;
+                }
+                stripe.put(id, true);
+            }
+            assertEquals(expected, cache.markSeen(id), "operation " + i);
+        }
+        assertEquals(evictions, cache.getEvictions());
+        assertEquals(stripeCapacity * STRIPES, cache.size());
+    }
+
+    @Test
+    void expiresIdsOlderThanTheTtl() throws InterruptedException {
+        SeenMessageCache cache = new SeenMessageCache(1024, 500);
+        String older = UUID.randomUUID().toString();
+        String newer = UUID.randomUUID().toString();
+        assertTrue(cache.markSeen(older));
+        Thread.sleep(300);
+        assertTrue(cache.markSeen(newer));
+        Thread.sleep(300);
+        assertFalse(cache.markSeen(newer)); // Seen about 300 ms ago
+        assertTrue(cache.markSeen(older));  // Seen over 500 ms ago: forgotten, so a first sighting again
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    void expiresInTheOrderIdsWereSeen() throws InterruptedException {
+        SeenMessageCache cache = new SeenMessageCache(STRIPES * 64, 400);
+        Random random = new Random(7);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            ids.add(new UUID(random.nextLong(), random.nextLong()).toString());
+        }
+        Map<String, Integer> stripeOf = stripes(ids);
+        String first = null;
+        String second = null;
+        for (String id : ids) { // Two IDs of one stripe, so the second sits behind the first in its ring
+            if (first == null) {
+                first = id;
+            } else if (stripeOf.get(id).equals(stripeOf.get(first))) {
+                second = id;
+                break;
+            }
+        }
+        assertNotNull(second);
+
+        assertTrue(cache.markSeen(first));
+        Thread.sleep(250);
+        assertTrue(cache.markSeen(second));
+        Thread.sleep(250);
+        assertFalse(cache.markSeen(second)); // Expiring the head stops at the first entry still within the TTL
+        assertEquals(1, cache.getEvictions());
+        assertEquals(1, cache.size());
+    }
+
+    // Groups the IDs by stripe through the public API only: with one slot per stripe, marking b evicts a
+    // exactly when the two share a stripe
+    private static Map<String, Integer> stripes(List<String> ids) {
+        List<String> representatives = new ArrayList<>();
+        Map<String, Integer> stripeOf = new HashMap<>();
+        for (String id : ids) {
+            int stripe = -1;
+            for (int i = 0; i < representatives.size() && stripe < 0; i++) {
+                SeenMessageCache probe = new SeenMessageCache(STRIPES, Long.MAX_VALUE / 2);
+                probe.markSeen(representatives.get(i));
+                probe.markSeen(id);
+                if (probe.markSeen(representatives.get(i))) stripe = i;
+            }
+            if (stripe < 0) {
+                stripe = representatives.size();
+                representatives.add(id);
+            }
+            stripeOf.put(id, stripe);
+        }
+        assertTrue(representatives.size() <= STRIPES);
+        return stripeOf;
+    }
+}
@@ -0,0 +1,128 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SwarmDownloaderTest {
+    private static final int SIZE = 5 * SwarmDownloader.CHUNK_SIZE + 1234;
+
+    @TempDir
+    File directory;
+
+    private byte[] content = new byte[SIZE];
+    private ChunkHashes hashes;
+
+    SwarmDownloaderTest() {
+        new Random(42).nextBytes(content);
+    }
+
+    @Test
+    void assemblesTheFileFromSeveralHolders() throws IOException {
+        FakeHolders holders = new FakeHolders(3);
+        Metrics metrics = new Metrics("test", "swarm");
+        FileDownloader.Header header = new SwarmDownloader("leaf9", holders, metrics)
+                .download("big.bin", Arrays.asList("leaf1", "leaf2", "leaf3"), 3, directory);
+
+        assertEquals(SIZE, header.getTotalSize());
+        assertArrayEquals(content, Files.readAllBytes(new File(directory, "big.bin").toPath()));
+        assertFalse(new File(directory, "big.bin.v3.swarm").exists());
+        assertEquals(5, metrics.counter("chunks_downloaded").sum()); // Chunk 0 came with the header
+    }
+
+    @Test
+    void dropsAHolderWhoseChunksFailVerification() throws IOException {
+        FakeHolders holders = new FakeHolders(3);
+        holders.corrupt.add("leaf2");
+        Metrics metrics = new Metrics("test", "swarm");
+        new SwarmDownloader("leaf9", holders, metrics)
+                .download("big.bin", Arrays.asList("leaf2", "leaf1", "leaf3"), 3, directory);
+
+        assertArrayEquals(content, Files.readAllBytes(new File(directory, "big.bin").toPath()));
+        assertEquals(1, metrics.counter("chunk_hash_failures").sum()); // Its first chunk, then it is left out
+    }
+
+    @Test
+    void skipsHoldersOfAnotherVersion() throws IOException {
+        FakeHolders holders = new FakeHolders(3);
+        holders.versions.put("leaf2", 2);
+        new SwarmDownloader("leaf9", holders, new Metrics("test", "swarm"))
+                .download("big.bin", Arrays.asList("leaf2", "leaf3"), 3, directory);
+        assertArrayEquals(content, Files.readAllBytes(new File(directory, "big.bin").toPath()));
+
+        assertNull(new SwarmDownloader("leaf9", holders, new Metrics("test", "swarm"))
+                .download("big.bin", Arrays.asList("leaf2"), 3, directory));
+    }
+
+    @Test
+    void failsWithoutLeavingAFileWhenNoHolderIsGood() {
+        FakeHolders holders = new FakeHolders(3);
+        holders.corrupt.addAll(Arrays.asList("leaf2", "leaf3"));
+        SwarmDownloader swarm = new SwarmDownloader("leaf9", holders, new Metrics("test", "swarm"));
+        assertThrows(IOException.class, () -> swarm.download("big.bin", Arrays.asList("leaf2", "leaf3"), 3, directory));
+        assertArrayEquals(new String[0], directory.list());
+    }
+
+    @Test
+    void chunkHashesSurviveTheirWireFormat() throws IOException {
+        ChunkHashes parsed = ChunkHashes.parse(("CHUNKS:id:big.bin:" + hashes().format()).split(":"), 3);
+        assertEquals(3, parsed.getVersion());
+        assertEquals(SIZE, parsed.getTotalSize());
+        assertEquals(6, parsed.getChunkCount());
+        for (int chunk = 0; chunk < parsed.getChunkCount(); chunk++) {
+            int offset = chunk * SwarmDownloader.CHUNK_SIZE;
+            ByteBuffer bytes = ByteBuffer.wrap(content, offset, Math.min(SwarmDownloader.CHUNK_SIZE, SIZE - offset));
+            assertTrue(parsed.matches(chunk, bytes));
+            assertEquals(offset, bytes.position()); // matches leaves the buffer as it was
+            bytes.put(bytes.position(), (byte) (bytes.get(bytes.position()) ^ 1));
+            assertFalse(parsed.matches(chunk, bytes));
+            bytes.put(bytes.position(), (byte) (bytes.get(bytes.position()) ^ 1));
+        }
+    }
+
+    private ChunkHashes hashes() throws IOException {
+        if (hashes == null) {
+            File original = new File(directory, "original");
+            Files.write(original.toPath(), content);
+            try (FileChannel channel = FileChannel.open(original.toPath())) {
+                hashes = ChunkHashes.compute(channel, 3, SwarmDownloader.CHUNK_SIZE, original.lastModified());
+            }
+            original.delete();
+        }
+        return hashes;
+    }
+
+    // Serves chunks of content from memory; the origin is leaf1, corrupt holders flip a byte of every chunk
+    private class FakeHolders extends FileDownloader {
+        private int version;
+        private Map<String, Integer> versions = new HashMap<>();
+        private Set<String> corrupt = new HashSet<>();
+
+        FakeHolders(int version) {
+            super("leaf9");
+            this.version = version;
+        }
+
+        @Override
+        public Header fetchChunk(String fileName, String holder, int port, long offset, int length, ByteBuffer buffer) {
+            int holderVersion = versions.getOrDefault(holder, version);
+            int sent = (int) Math.min(length, SIZE - offset);
+            buffer.clear();
+            buffer.put(content, (int) offset, sent);
+            if (corrupt.contains(holder)) buffer.put(0, (byte) (buffer.get(0) ^ 1));
+            buffer.flip();
+            return Header.parse("FILE:id:" + fileName + ":" + holderVersion + ":leaf1:" + SIZE + ":" + offset + ":" + sent);
+        }
+
+        @Override
+        public ChunkHashes fetchChunkHashes(String fileName, String holder, int port, int chunkSize) throws IOException {
+            assertEquals("leaf1", holder); // The origin answers, so no holder's copy is trusted
+            return hashes();
+        }
+    }
+}